@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * Generators for the data the benchmarks run on: synthetic Google Books responses that look like
+ * the real ones (all the fields of a {@code volumes.list} response, including those the extractor
+ * skips), descriptions of a given length, tables of volume records, and the recorded responses in
+ * a response cache directory.
+ * <p>
+ * All generators take the random generator as an argument, so that a benchmark seeded with a 
+ * fixed value always runs on the same data.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class BenchFixtures {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Words for titles and descriptions, weighted towards the vocabulary of the example parameter files
+    private static final String[] WORDS = {
+        "the", "of", "and", "a", "in", "to", "is", "for", "on", "with", "as", "by", "this", "that",
+        "from", "are", "an", "be", "which", "its", "their", "between", "how", "new", "can", "these",
+        "risk", "risks", "systemic", "system", "systems", "market", "markets", "financial", "bank",
+        "banking", "network", "networks", "analysis", "model", "models", "theory", "stability",
+        "crisis", "contagion", "management", "economic", "economics", "policy", "regulation",
+        "ecosystem", "complexity", "dynamics", "simulation", "catastrophe", "accident", "hazard",
+        "engineering", "structure", "uncertainty", "decision", "statistical", "learning", "data",
+        "handbook", "introduction", "practice", "evidence", "global", "international", "capital"
+    };
+
+    private static final String[] FIRST_NAMES = { "John", "Maria", "Wei", "Anna", "Peter", "Laura", "Hans", "Yuki", "Carlos", "Sarah" };
+    private static final String[] LAST_NAMES  = { "Smith", "Garcia", "Chen", "M\u00fcller", "Rossi", "Tanaka", "Dubois", "Kowalski", "Brown", "Silva" };
+    private static final String[] CATEGORIES  = { "Business & Economics", "Science", "Technology & Engineering", "Mathematics", "Political Science", "Nature" };
+    private static final String[] PUBLISHERS  = { "Springer", "Elsevier", "John Wiley & Sons", "Cambridge University Press", "Routledge", "OUP Oxford" };
+
+    private BenchFixtures() {}
+
+    /**
+     * A response of Google Books to a {@code volumes.list} request
+     *
+     * @param random
+     * @param numItems the number of volumes in the response
+     * @param totalItems the value of {@code totalItems}
+     * @param ids the pool of volume identifiers, see {@link #volumeIds(Random, int, double)}
+     * @param offset the index of the first volume in the pool
+     * @param descriptionLength the approximate length of the descriptions
+     * @return the JSON response
+     */
+    public static String volumesJson(Random random, int numItems, int totalItems, int[] ids, int offset, int descriptionLength) {
+        StringBuilder sb = new StringBuilder(numItems * (descriptionLength + 2000));
+        sb.append("{\n \"kind\": \"books#volumes\",\n \"totalItems\": ").append(totalItems).append(",\n \"items\": [\n");
+
+        for (int i = 0; i < numItems; i++) {
+            if (i > 0) sb.append(",\n");
+
+            appendVolume(sb, new Random(ids[(offset + i) % ids.length]), ids[(offset + i) % ids.length], descriptionLength);
+        }
+
+        return sb.append("\n ]\n}\n").toString();
+    }
+
+    /**
+     * A single volume of a Google Books response. The volume is the same for the same identifier.
+     *
+     * @param id the identifier of the volume
+     * @param descriptionLength the approximate length of the description
+     * @return the JSON object of the volume
+     */
+    public static String volumeJson(int id, int descriptionLength) {
+        StringBuilder sb = new StringBuilder(descriptionLength + 2000);
+        appendVolume(sb, new Random(id), id, descriptionLength);
+        return sb.toString();
+    }
+
+    /**
+     * The identifiers of a sequence of volumes, where a share of the volumes repeats a volume
+     * returned before, as it happens when the results of different queries overlap
+     *
+     * @param random
+     * @param numVolumes
+     * @param duplicateRatio the share of volumes that are duplicates, between 0 and 1
+     * @return the identifiers
+     */
+    public static int[] volumeIds(Random random, int numVolumes, double duplicateRatio) {
+        int[] ids = new int[numVolumes];
+        int distinct = 0;
+
+        for (int i = 0; i < numVolumes; i++) {
+            if (distinct > 0 && random.nextDouble() < duplicateRatio)
+                ids[i] = ids[random.nextInt(i)];
+            else
+                ids[i] = ++distinct;
+        }
+
+        return ids;
+    }
+
+    /**
+     * The pages of a sequence of volumes, decoded as the extractor decodes the responses
+     *
+     * @param random
+     * @param numPages
+     * @param duplicateRatio the share of volumes that are duplicates, between 0 and 1
+     * @param descriptionLength the approximate length of the descriptions
+     * @return the pages
+     * @throws IOException
+     */
+    public static ArrayList<VolumePage> pages(Random random, int numPages, double duplicateRatio, int descriptionLength) throws IOException {
+        int pageSize = 40;
+        int[] ids = volumeIds(random, numPages * pageSize, duplicateRatio);
+        ArrayList<VolumePage> pages = new ArrayList<VolumePage>(numPages);
+
+        for (int i = 0; i < numPages; i++)
+            pages.add(VolumePageParser.parse(volumesJson(random, pageSize, ids.length, ids, i * pageSize, descriptionLength)));
+
+        return pages;
+    }
+
+    /**
+     * A description made of random words, with a sentence break now and then
+     *
+     * @param random
+     * @param length the approximate length in characters
+     * @return the description
+     */
+    public static String description(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length + 20);
+        boolean capitalize = true;
+
+        while (sb.length() < length) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+
+            if (capitalize) {
+                word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+                capitalize = false;
+            }
+
+            sb.append(word);
+
+            if (random.nextInt(12) == 0) {
+                sb.append(". ");
+                capitalize = true;
+            }
+            else if (random.nextInt(15) == 0)
+                sb.append(", ");
+            else
+                sb.append(' ');
+        }
+
+        String text = sb.toString().trim();
+
+        while (text.endsWith(".") || text.endsWith(","))
+            text = text.substring(0, text.length() - 1);
+
+        return text + ".";
+    }
+
+    /**
+     * A title of two to eight random words
+     */
+    public static String title(Random random) {
+        String title = description(random, 10 + random.nextInt(50));
+        return title.substring(0, title.length() - 1);
+    }
+
+    /**
+     * A table of volume records, as stored by the extractor
+     *
+     * @param random
+     * @param numRows
+     * @param descriptionLength the approximate length of the descriptions
+     * @return the records
+     */
+    public static ArrayList<VolumeRecord> records(Random random, int numRows, int descriptionLength) {
+        ArrayList<VolumeRecord> records = new ArrayList<VolumeRecord>(numRows);
+
+        for (int i = 0; i < numRows; i++) {
+            records.add(new VolumeRecord(title(random), "systemic risk", 
+                    authors(random), 
+                    Collections.singletonList(CATEGORIES[random.nextInt(CATEGORIES.length)]), 
+                    description(random, descriptionLength / 2 + random.nextInt(descriptionLength + 1)), 
+                    publishedDate(random), 
+                    "http://books.google.com/books?id=" + googleId(i) + "&printsec=frontcover&dq=systemic+risk&hl=&cd=1&source=gbs_api", 
+                    isbn13(i)));
+        }
+
+        return records;
+    }
+
+    /**
+     * The records as a table of strings with a header row, the input of {@code CsvResultWriter.write}
+     */
+    public static ArrayList<ArrayList<String>> table(List<VolumeRecord> records) {
+        ArrayList<ArrayList<String>> table = new ArrayList<ArrayList<String>>(records.size() + 1);
+        table.add(new ArrayList<String>(VolumeRecord.HEADER));
+
+        for (VolumeRecord record : records)
+            table.add(record.toRow());
+
+        return table;
+    }
+
+    /**
+     * Reads recorded responses of Google Books from a directory. Both plain JSON files and the
+     * entries of a response cache (gzip-compressed, with a header line) are read.
+     *
+     * @param dir the directory
+     * @return the responses, sorted by file name
+     * @throws IOException
+     */
+    public static ArrayList<String> recordedResponses(String dir) throws IOException {
+        File[] files = new File(dir).listFiles();
+        ArrayList<String> responses = new ArrayList<String>();
+
+        if (files == null)
+            throw new IOException("Cannot list directory " + dir);
+
+        Arrays.sort(files);
+
+        for (File file : files) {
+            if (file.getName().endsWith(".json.gz"))
+                responses.add(read(new GZIPInputStream(new FileInputStream(file))));
+            else if (file.getName().endsWith(".json"))
+                responses.add(read(new FileInputStream(file)));
+        }
+
+        return responses;
+    }
+
+    /**
+     * Reads the volumes of recorded responses, see {@link #recordedResponses(String)}
+     *
+     * @param dir the directory
+     * @return the JSON objects of the volumes
+     * @throws IOException
+     */
+    public static ArrayList<String> recordedVolumes(String dir) throws IOException {
+        ArrayList<String> volumes = new ArrayList<String>();
+        JsonParser parser = new JsonParser();
+
+        for (String json : recordedResponses(dir)) {
+            JsonElement items = parser.parse(json).getAsJsonObject().get("items");
+
+            if (items != null && items.isJsonArray())
+                for (JsonElement item : items.getAsJsonArray())
+                    volumes.add(item.toString());
+        }
+
+        return volumes;
+    }
+
+    private static void appendVolume(StringBuilder sb, Random random, int id, int descriptionLength) {
+        String googleId = googleId(id);
+        String isbn13 = isbn13(id);
+        boolean hasIsbn = random.nextInt(10) > 0;       // some volumes, e.g. journals, don't have an ISBN
+
+        sb.append("  {\n   \"kind\": \"books#volume\",\n   \"id\": \"").append(googleId).append("\",\n");
+        sb.append("   \"etag\": \"").append(Long.toHexString(random.nextLong())).append("\",\n");
+        sb.append("   \"selfLink\": \"https://www.googleapis.com/books/v1/volumes/").append(googleId).append("\",\n");
+        sb.append("   \"volumeInfo\": {\n");
+        sb.append("    \"title\": ").append(quote(title(random))).append(",\n");
+
+        if (random.nextBoolean())
+            sb.append("    \"subtitle\": ").append(quote(title(random))).append(",\n");
+
+        sb.append("    \"authors\": [");
+        List<String> authors = authors(random);
+
+        for (int i = 0; i < authors.size(); i++)
+            sb.append(i > 0 ? ", " : "").append(quote(authors.get(i)));
+
+        sb.append("],\n");
+        sb.append("    \"publisher\": ").append(quote(PUBLISHERS[random.nextInt(PUBLISHERS.length)])).append(",\n");
+        sb.append("    \"publishedDate\": \"").append(publishedDate(random)).append("\",\n");
+
+        if (descriptionLength > 0)
+            sb.append("    \"description\": ").append(quote(description(random, descriptionLength / 2 + random.nextInt(descriptionLength + 1)))).append(",\n");
+
+        if (hasIsbn) {
+            sb.append("    \"industryIdentifiers\": [\n");
+            sb.append("     {\n      \"type\": \"ISBN_10\",\n      \"identifier\": \"").append(isbn10(isbn13)).append("\"\n     },\n");
+            sb.append("     {\n      \"type\": \"ISBN_13\",\n      \"identifier\": \"").append(isbn13).append("\"\n     }\n    ],\n");
+        }
+
+        sb.append("    \"readingModes\": {\n     \"text\": false,\n     \"image\": true\n    },\n");
+        sb.append("    \"pageCount\": ").append(100 + random.nextInt(800)).append(",\n");
+        sb.append("    \"printType\": \"BOOK\",\n");
+        sb.append("    \"categories\": [").append(quote(CATEGORIES[random.nextInt(CATEGORIES.length)])).append("],\n");
+
+        if (random.nextInt(3) == 0)
+            sb.append("    \"averageRating\": ").append(1 + random.nextInt(5)).append(".0,\n    \"ratingsCount\": ").append(random.nextInt(50)).append(",\n");
+
+        sb.append("    \"maturityRating\": \"NOT_MATURE\",\n    \"allowAnonLogging\": false,\n    \"contentVersion\": \"preview-1.0.0\",\n");
+        sb.append("    \"imageLinks\": {\n     \"smallThumbnail\": \"http://books.google.com/books/content?id=").append(googleId)
+          .append("&printsec=frontcover&img=1&zoom=5&source=gbs_api\",\n     \"thumbnail\": \"http://books.google.com/books/content?id=").append(googleId)
+          .append("&printsec=frontcover&img=1&zoom=1&source=gbs_api\"\n    },\n");
+        sb.append("    \"language\": \"en\",\n");
+        sb.append("    \"previewLink\": \"http://books.google.com/books?id=").append(googleId).append("&printsec=frontcover&dq=systemic+risk&hl=&cd=1&source=gbs_api\",\n");
+        sb.append("    \"infoLink\": \"http://books.google.com/books?id=").append(googleId).append("&dq=systemic+risk&hl=&source=gbs_api\",\n");
+        sb.append("    \"canonicalVolumeLink\": \"http://books.google.com/books/about/x.html?hl=&id=").append(googleId).append("\"\n");
+        sb.append("   },\n");
+        sb.append("   \"saleInfo\": {\n    \"country\": \"ES\",\n    \"saleability\": \"NOT_FOR_SALE\",\n    \"isEbook\": false\n   },\n");
+        sb.append("   \"accessInfo\": {\n    \"country\": \"ES\",\n    \"viewability\": \"PARTIAL\",\n    \"embeddable\": true,\n    \"publicDomain\": false,\n");
+        sb.append("    \"textToSpeechPermission\": \"ALLOWED\",\n    \"epub\": {\n     \"isAvailable\": false\n    },\n    \"pdf\": {\n     \"isAvailable\": false\n    },\n");
+        sb.append("    \"webReaderLink\": \"http://books.google.com/books/reader?id=").append(googleId).append("&hl=&printsec=frontcover&output=reader&source=gbs_api\",\n");
+        sb.append("    \"accessViewStatus\": \"SAMPLE\",\n    \"quoteSharingAllowed\": false\n   },\n");
+        sb.append("   \"searchInfo\": {\n    \"textSnippet\": ").append(quote(description(random, 120))).append("\n   }\n  }");
+    }
+
+    private static List<String> authors(Random random) {
+        int n = 1 + random.nextInt(3);
+        ArrayList<String> authors = new ArrayList<String>(n);
+
+        for (int i = 0; i < n; i++)
+            authors.add(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " " + LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+
+        return authors;
+    }
+
+    private static String publishedDate(Random random) {
+        int year = 1960 + random.nextInt(55);
+
+        switch (random.nextInt(3)) {
+        case 0:  return Integer.toString(year);
+        case 1:  return String.format("%d-%02d", year, 1 + random.nextInt(12));
+        default: return String.format("%d-%02d-%02d", year, 1 + random.nextInt(12), 1 + random.nextInt(28));
+        }
+    }
+
+    private static String googleId(int id) {
+        String s = Integer.toString(id, 36);
+        return "gBX" + "00000000".substring(s.length()) + s + "AAJ";
+    }
+
+    private static String isbn13(int id) {
+        String digits = "978" + String.format("%09d", id % 1000000000);
+        int sum = 0;
+
+        for (int i = 0; i < 12; i++)
+            sum += (digits.charAt(i) - '0') * ((i % 2 == 0) ? 1 : 3);
+
+        return digits + ((10 - sum % 10) % 10);
+    }
+
+    private static String isbn10(String isbn13) {
+        String digits = isbn13.substring(3, 12);
+        int sum = 0;
+
+        for (int i = 0; i < 9; i++)
+            sum += (digits.charAt(i) - '0') * (10 - i);
+
+        int check = (11 - sum % 11) % 11;
+
+        return digits + ((check == 10) ? "X" : Integer.toString(check));
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c == '"' || c == '\\') sb.append('\\');
+
+            sb.append(c);
+        }
+
+        return sb.append('"').toString();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(in, UTF8));
+        StringBuilder sb = new StringBuilder();
+
+        try {
+            char[] buffer = new char[8192];
+            int n;
+
+            while ((n = r.read(buffer)) > 0)
+                sb.append(buffer, 0, n);
+        } finally {
+            r.close();
+        }
+
+        int start = sb.indexOf("{");      // skip the header line of a response cache entry
+
+        return (start > 0) ? sb.substring(start) : sb.toString();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+/**
+ * A benchmark of a single operation, run by the {@code BenchmarkRunner}. The runner calls 
+ * {@code setup} once, then {@code run} repeatedly during the warmup and the measurement 
+ * iterations, and finally {@code tearDown}.
+ * <p>
+ * The result of {@code run} is consumed by the runner, so that the JIT compiler cannot remove 
+ * the work as dead code. An operation that processes a batch of items (e.g. the volumes of a
+ * page) reports the size of the batch with {@code getItemsPerRun}, and the runner then reports
+ * the time and the allocation per item.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public abstract class Benchmark {
+
+    private final String name;
+
+    /**
+     * Constructor
+     *
+     * @param name the name of the benchmark, e.g. 'storeBooks/filters=on/duplicates=0.5'
+     */
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Prepares the fixture, not measured
+     *
+     * @throws Exception
+     */
+    public void setup() throws Exception {
+    }
+
+    /**
+     * The measured operation
+     *
+     * @return a result that depends on the work done
+     * @throws Exception
+     */
+    public abstract Object run() throws Exception;
+
+    /**
+     * Releases the fixture, not measured
+     *
+     * @throws Exception
+     */
+    public void tearDown() throws Exception {
+    }
+
+    /**
+     * The number of items processed by one call of {@code run}
+     */
+    public int getItemsPerRun() {
+        return 1;
+    }
+
+    /**
+     * The unit of the items, e.g. 'volume' or 'row'
+     */
+    public String getItemUnit() {
+        return "op";
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * Runs benchmarks with warmup and measurement iterations of a fixed duration each, and reports
+ * per benchmark
+ * <ul>
+ * <li> the time per item, as mean and standard deviation over the measurement iterations
+ * <li> the throughput in items per second
+ * <li> the bytes allocated per item and the allocation rate, measured with the per-thread
+ *      allocation counter of the HotSpot JVM
+ * <li> the number and the time of the garbage collections during the measurement
+ * </ul>
+ * The allocation figures are what {@code -prof gc} reports in JMH. They are shown as 'n/a' on 
+ * JVMs without a per-thread allocation counter.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class BenchmarkRunner {
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationMillis;
+    private final PrintStream out;
+
+    private final com.sun.management.ThreadMXBean allocation;   // null if allocations can't be measured
+
+    // Sink for the results of the operations, see Benchmark.run
+    private volatile int sink;
+
+    /**
+     * Constructor
+     *
+     * @param warmupIterations
+     * @param measurementIterations
+     * @param iterationMillis the duration of an iteration
+     * @param out the stream the results are printed to
+     */
+    public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis, PrintStream out) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationMillis = iterationMillis;
+        this.out = out;
+        this.allocation = allocationBean();
+    }
+
+    /**
+     * Runs the benchmarks one after the other and prints a line with the results of each
+     *
+     * @param benchmarks
+     * @throws Exception
+     */
+    public void run(List<Benchmark> benchmarks) throws Exception {
+        out.println(String.format("%-48s %14s %12s %14s %12s %10s %8s %8s", 
+                "Benchmark", "ns/item", "error", "items/s", "B/item", "MB/s", "gc.count", "gc.ms"));
+
+        for (Benchmark benchmark : benchmarks)
+            out.println(run(benchmark));
+    }
+
+    /**
+     * Runs a single benchmark
+     *
+     * @param benchmark
+     * @return the line with the results
+     * @throws Exception
+     */
+    public String run(Benchmark benchmark) throws Exception {
+        benchmark.setup();
+
+        try {
+            for (int i = 0; i < warmupIterations; i++)
+                iteration(benchmark);
+
+            double[] nanosPerItem = new double[measurementIterations];
+            long items = 0, nanos = 0, bytes = 0;
+            long gcCount = gcCount(), gcMillis = gcMillis();
+
+            for (int i = 0; i < measurementIterations; i++) {
+                long[] m = iteration(benchmark);
+                nanosPerItem[i] = (double) m[1] / m[0];
+                items += m[0];
+                nanos += m[1];
+                bytes += m[2];
+            }
+
+            gcCount = gcCount() - gcCount;
+            gcMillis = gcMillis() - gcMillis;
+
+            double mean = 0, variance = 0;
+
+            for (double x : nanosPerItem) mean += x / nanosPerItem.length;
+            for (double x : nanosPerItem) variance += (x - mean) * (x - mean) / Math.max(1, nanosPerItem.length - 1);
+
+            String name = benchmark.getName() + " [" + benchmark.getItemUnit() + "]";
+
+            return String.format("%-48s %14.1f %12s %14.1f %12s %10s %8d %8d", name, mean, "+- " + String.format("%.1f", Math.sqrt(variance)), 
+                    items * 1e9 / nanos,
+                    (allocation == null) ? "n/a" : String.format("%.1f", (double) bytes / items),
+                    (allocation == null) ? "n/a" : String.format("%.1f", bytes * 1e3 / nanos), 
+                    gcCount, gcMillis);
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * Calls the operation until the iteration time is up
+     *
+     * @return [items processed, nanoseconds, bytes allocated]
+     */
+    private long[] iteration(Benchmark benchmark) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long deadline = System.nanoTime() + iterationMillis * 1000000L;
+        long calls = 0;
+        int hash = 0;
+
+        long allocated = (allocation == null) ? 0 : allocation.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long end;
+
+        do {
+            Object result = benchmark.run();
+            hash += (result == null) ? 0 : result.hashCode();
+            calls++;
+        } while ((end = System.nanoTime()) < deadline);
+
+        allocated = (allocation == null) ? 0 : allocation.getThreadAllocatedBytes(threadId) - allocated;
+        sink += hash;
+
+        return new long[] { calls * benchmark.getItemsPerRun(), end - start, allocated };
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) bean;
+
+        if (!allocation.isThreadAllocatedMemorySupported())
+            return null;
+
+        allocation.setThreadAllocatedMemoryEnabled(true);
+
+        return allocation;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, gc.getCollectionTime());
+
+        return millis;
+    }
+}
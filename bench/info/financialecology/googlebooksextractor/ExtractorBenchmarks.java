@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import jargs.gnu.CmdLineParser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.books.model.Volumes;
+
+/**
+ * The benchmarks of the extraction hot paths:
+ * <ul>
+ * <li> storeBooks: duplicate removal, filtering and storing of the volumes of 25 pages, with 
+ *      and without filters, and with 0%, 50% and 90% duplicates, and with all events recorded in
+ *      an {@code EventLog}
+ * <li> filter: matching the regex filters against descriptions of 200, 1000 and 4000 characters,
+ *      with the {@code FilterEngine} and with {@code String.matches} per filter as the baseline
+ * <li> csv: writing a table of 100000 volumes with {@code CsvResultWriter}, as a table of strings 
+ *      ({@code write}) and from the volume records ({@code writeVolumes}), and to 2, 4 and 8 part
+ *      files in parallel with {@code ShardedResultWriter}
+ * <li> json: decoding Google Books responses with {@code VolumePageParser} and, as the baseline, 
+ *      into the object graph of the Books API client
+ * </ul>
+ * The benchmarks run on synthetic data from {@code BenchFixtures}, seeded with a fixed value. 
+ * The JSON benchmarks can also run on recorded responses, e.g. the entries of a response cache.
+ * <p>
+ * Command line arguments:
+ * <pre>
+ *   -w, --warmup      number of warmup iterations (default 3)
+ *   -i, --iterations  number of measurement iterations (default 5)
+ *   -t, --time        duration of an iteration in milliseconds (default 1000)
+ *   -b, --bench       regex selecting the benchmarks by name, e.g. 'filter/.*' (default all)
+ *   -r, --recorded    directory with recorded responses (*.json or response cache *.json.gz)
+ * </pre>
+ * For stable figures, run with a fixed heap, e.g. {@code java -Xms2g -Xmx2g ...}.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ExtractorBenchmarks {
+
+    private static final long SEED = 20140301L;
+
+    // Filters like those of the example parameter files, one of each kind the FilterEngine handles
+    private static final List<String> FILTERS = Arrays.asList(
+            "(.*)handbook(.*)", ".*systemic risk.*", "(.*)contagion(.*)", 
+            "^(?!.*analysis.*).*$", ".*(bank|banking) (crisis|regulation).*");
+
+    private static final double[] DUPLICATE_RATIOS = { 0.0, 0.5, 0.9 };
+    private static final int[] DESCRIPTION_LENGTHS = { 200, 1000, 4000 };
+
+    private static final int STORE_PAGES = 25;
+    private static final int FILTER_TEXTS = 256;
+    private static final int CSV_ROWS = 100000;
+    private static final int[] SHARDS = { 2, 4, 8 };
+    private static final int JSON_PAGES = 50;
+
+    public static void main(String[] args) throws Exception {
+        CmdLineParser parser = new CmdLineParser();
+        CmdLineParser.Option warmup = parser.addIntegerOption('w', "warmup");
+        CmdLineParser.Option iterations = parser.addIntegerOption('i', "iterations");
+        CmdLineParser.Option time = parser.addIntegerOption('t', "time");
+        CmdLineParser.Option bench = parser.addStringOption('b', "bench");
+        CmdLineParser.Option recorded = parser.addStringOption('r', "recorded");
+
+        try {
+            parser.parse(args);
+        }
+        catch ( CmdLineParser.OptionException e ) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: ExtractorBenchmarks [{-w,--warmup} iterations] [{-i,--iterations} iterations] [{-t,--time} millis] [{-b,--bench} regex] [{-r,--recorded} directory]");
+            System.exit(2);
+        }
+
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);     // the hot paths log at TRACE level
+
+        Pattern selected = Pattern.compile((String) parser.getOptionValue(bench, ".*"));
+        ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        for (Benchmark benchmark : benchmarks((String) parser.getOptionValue(recorded)))
+            if (selected.matcher(benchmark.getName()).matches())
+                benchmarks.add(benchmark);
+
+        BenchmarkRunner runner = new BenchmarkRunner(
+                (Integer) parser.getOptionValue(warmup, 3), 
+                (Integer) parser.getOptionValue(iterations, 5), 
+                (Integer) parser.getOptionValue(time, 1000), 
+                System.out);
+
+        runner.run(benchmarks);
+    }
+
+    /**
+     * All benchmarks
+     *
+     * @param recordedDir the directory with recorded responses, or {@code null}
+     */
+    static List<Benchmark> benchmarks(String recordedDir) {
+        ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        for (boolean filters : new boolean[] { false, true })
+            for (double duplicates : DUPLICATE_RATIOS)
+                benchmarks.add(new StoreBooks(filters, duplicates, false));
+
+        benchmarks.add(new StoreBooks(true, 0.5, true));
+
+        for (int length : DESCRIPTION_LENGTHS) {
+            benchmarks.add(new Filter(true, length));
+            benchmarks.add(new Filter(false, length));
+        }
+
+        benchmarks.add(new CsvWrite(false));
+        benchmarks.add(new CsvWrite(true));
+
+        for (int shards : SHARDS)
+            benchmarks.add(new ShardedWrite(shards));
+
+        benchmarks.add(new JsonDecode(true, recordedDir));
+        benchmarks.add(new JsonDecode(false, recordedDir));
+
+        return benchmarks;
+    }
+
+    /**
+     * Stores the volumes of a sequence of pages in a new extraction state
+     */
+    static class StoreBooks extends Benchmark {
+        private final boolean filters;
+        private final double duplicates;
+        private final boolean events;
+        private ArrayList<VolumePage> pages;
+        private FilterEngine filter;
+        private int items;
+        private File file;
+        private EventLog eventLog;
+
+        StoreBooks(boolean filters, double duplicates, boolean events) {
+            super("storeBooks/filters=" + (filters ? "on" : "off") + "/duplicates=" + duplicates + (events ? "/events=on" : ""));
+            this.filters = filters;
+            this.duplicates = duplicates;
+            this.events = events;
+        }
+
+        @Override
+        public void setup() throws Exception {
+            pages = BenchFixtures.pages(new Random(SEED), STORE_PAGES, duplicates, 1000);
+            filter = new FilterEngine(filters ? FILTERS : null);
+            items = 0;
+
+            for (VolumePage page : pages)
+                items += page.getRows().size();
+
+            if (events) {
+                file = File.createTempFile("gbx-bench", ".events.jsonl");
+                eventLog = new EventLog(file.getPath(), null, 1 << 16);
+            }
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            if (eventLog != null) {
+                eventLog.close();
+                file.delete();
+            }
+        }
+
+        @Override
+        public Object run() {
+            ExtractionState state = new ExtractionState();
+            state.setEventLog(eventLog);
+
+            for (VolumePage page : pages)
+                ExtractionEngine.storeBooks(filter, page, "systemic risk", state);
+
+            return state.getStoredVolCounter();
+        }
+
+        @Override
+        public int getItemsPerRun() {
+            return items;
+        }
+
+        @Override
+        public String getItemUnit() {
+            return "volume";
+        }
+    }
+
+    /**
+     * Matches the filters against titles and descriptions
+     */
+    static class Filter extends Benchmark {
+        private final boolean engine;
+        private final int length;
+        private String[] titles;
+        private String[] descriptions;
+        private FilterEngine filter;
+
+        Filter(boolean engine, int length) {
+            super("filter/" + (engine ? "engine" : "matches") + "/chars=" + length);
+            this.engine = engine;
+            this.length = length;
+        }
+
+        @Override
+        public void setup() {
+            Random random = new Random(SEED);
+            titles = new String[FILTER_TEXTS];
+            descriptions = new String[FILTER_TEXTS];
+
+            for (int i = 0; i < FILTER_TEXTS; i++) {
+                titles[i] = BenchFixtures.title(random);
+                descriptions[i] = BenchFixtures.description(random, length);
+            }
+
+            filter = new FilterEngine(FILTERS);
+        }
+
+        @Override
+        public Object run() {
+            int accepted = 0;
+
+            for (int i = 0; i < FILTER_TEXTS; i++)
+                if (engine ? filter.accepts(titles[i], descriptions[i]) : matches(titles[i], descriptions[i]))
+                    accepted++;
+
+            return accepted;
+        }
+
+        /**
+         * The filtering as it was done before the FilterEngine, compiling each filter on every call
+         */
+        private static boolean matches(String title, String description) {
+            for (String f : FILTERS) {
+                String regex = f.toLowerCase();
+
+                if (description.toLowerCase().matches(regex) || title.toLowerCase().matches(regex))
+                    return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public int getItemsPerRun() {
+            return FILTER_TEXTS;
+        }
+
+        @Override
+        public String getItemUnit() {
+            return "volume";
+        }
+    }
+
+    /**
+     * Writes a large table of volumes to a CSV file
+     */
+    static class CsvWrite extends Benchmark {
+        private final boolean records;
+        private ArrayList<VolumeRecord> volumes;
+        private ArrayList<ArrayList<String>> table;
+        private File file;
+
+        CsvWrite(boolean records) {
+            super("csv/" + (records ? "writeVolumes" : "write") + "/rows=" + CSV_ROWS);
+            this.records = records;
+        }
+
+        @Override
+        public void setup() throws Exception {
+            volumes = BenchFixtures.records(new Random(SEED), CSV_ROWS, 400);
+            table = records ? null : BenchFixtures.table(volumes);
+            file = File.createTempFile("gbx-bench", ".csv");
+        }
+
+        @Override
+        public Object run() {
+            ResultWriter writer = ResultWriterFactory.newCsvWriter(file.getPath());
+
+            if (records)
+                writer.writeVolumes(volumes.iterator());
+            else
+                writer.write(table);
+
+            writer.close();
+
+            return file.length();
+        }
+
+        @Override
+        public void tearDown() {
+            file.delete();
+            volumes = null;
+            table = null;
+        }
+
+        @Override
+        public int getItemsPerRun() {
+            return CSV_ROWS;
+        }
+
+        @Override
+        public String getItemUnit() {
+            return "row";
+        }
+    }
+
+    /**
+     * Writes a large table of volumes to part files in parallel
+     */
+    static class ShardedWrite extends Benchmark {
+        private final int shards;
+        private ArrayList<VolumeRecord> volumes;
+        private File file;
+
+        ShardedWrite(int shards) {
+            super("csv/sharded/shards=" + shards + "/rows=" + CSV_ROWS);
+            this.shards = shards;
+        }
+
+        @Override
+        public void setup() throws Exception {
+            volumes = BenchFixtures.records(new Random(SEED), CSV_ROWS, 400);
+            file = File.createTempFile("gbx-bench", ".csv");
+        }
+
+        @Override
+        public Object run() {
+            VolumeWriter writer = new ShardedResultWriter(file.getPath(), shards, ShardedResultWriter.SHARD_BY_KEY, false, 
+                    ResultWriterFactory.FORMAT_CSV, false, Long.MAX_VALUE);
+
+            writer.writeVolumes(volumes.iterator());
+            writer.close();
+
+            return volumes.size();
+        }
+
+        @Override
+        public void tearDown() {
+            for (int i = 0; i < shards; i++)
+                new File(ShardedResultWriter.partFileName(file.getPath(), i)).delete();
+
+            file.delete();
+            volumes = null;
+        }
+
+        @Override
+        public int getItemsPerRun() {
+            return CSV_ROWS;
+        }
+
+        @Override
+        public String getItemUnit() {
+            return "row";
+        }
+    }
+
+    /**
+     * Decodes Google Books responses
+     */
+    static class JsonDecode extends Benchmark {
+        private final boolean streaming;
+        private final String recordedDir;
+        private final JacksonFactory jsonFactory = new JacksonFactory();
+        private ArrayList<String> responses;
+
+        JsonDecode(boolean streaming, String recordedDir) {
+            super("json/" + (streaming ? "VolumePageParser" : "JacksonFactory") + ((recordedDir != null) ? "/recorded" : "/synthetic"));
+            this.streaming = streaming;
+            this.recordedDir = recordedDir;
+        }
+
+        @Override
+        public void setup() throws Exception {
+            if (recordedDir != null) {
+                responses = BenchFixtures.recordedResponses(recordedDir);
+                Assertion.assertStrict(!responses.isEmpty(), Assertion.Level.ERR, "No recorded responses found in " + recordedDir);
+            }
+            else {
+                Random random = new Random(SEED);
+                int[] ids = BenchFixtures.volumeIds(random, JSON_PAGES * 40, 0.0);
+                responses = new ArrayList<String>(JSON_PAGES);
+
+                for (int i = 0; i < JSON_PAGES; i++)
+                    responses.add(BenchFixtures.volumesJson(random, 40, ids.length, ids, i * 40, 1000));
+            }
+        }
+
+        @Override
+        public Object run() throws Exception {
+            int volumes = 0;
+
+            for (String json : responses) {
+                if (streaming)
+                    volumes += VolumePageParser.parse(json).getRows().size();
+                else {
+                    Volumes page = jsonFactory.fromString(json, Volumes.class);
+                    volumes += (page.getItems() == null) ? 0 : page.getItems().size();
+                }
+            }
+
+            return volumes;
+        }
+
+        @Override
+        public int getItemsPerRun() {
+            return responses.size();
+        }
+
+        @Override
+        public String getItemUnit() {
+            return "page";
+        }
+    }
+}
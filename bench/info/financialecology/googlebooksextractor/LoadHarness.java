@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import jargs.gnu.CmdLineParser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Runs parameter files end to end against a local {@code MockBooksServer} and reports, per 
+ * parameter file, the requests per second, the p50 and p99 latency of the requests, and the 
+ * volumes served and stored per second. 
+ * <p>
+ * Each parameter file is run through {@code GoogleBooksExtractor.main}, as from the command line,
+ * with a copy of the parameter file that points to the mock server and switches off the request
+ * rate limit, the daily quota, the response cache and the global dedup index. The other settings, 
+ * e.g. the concurrency and the connection settings, are those of the parameter file, unless the 
+ * concurrency is given on the command line. The latencies are measured by the server, from the 
+ * arrival of a request to the end of the response.
+ * <p>
+ * Command line arguments:
+ * <pre>
+ *   -c, --concurrency     number of parallel queries, overrides the value in the parameter files
+ *   -o, --output          directory for the output files (default: a temporary directory)
+ *   -T, --threads         number of threads of the mock server (default 64)
+ * </pre>
+ * followed by the options of the mock server (see {@link MockBooksServer#main(String[])}) and the 
+ * parameter files, e.g.
+ * <pre>
+ *   LoadHarness -c 8 -l 150 -j 100 -t 0.02 in/examples/*.xml
+ * </pre>
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class LoadHarness {
+
+    public static void main(String[] args) throws Exception {
+        CmdLineParser parser = new CmdLineParser();
+        MockBooksServer.Options options = new MockBooksServer.Options(parser);
+        CmdLineParser.Option concurrency = parser.addIntegerOption('c', "concurrency");
+        CmdLineParser.Option output = parser.addStringOption('o', "output");
+
+        try {
+            parser.parse(args);
+        }
+        catch ( CmdLineParser.OptionException e ) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(2);
+        }
+
+        String[] paramFiles = parser.getRemainingArgs();
+
+        if (paramFiles.length == 0) {
+            printUsage();
+            System.exit(2);
+        }
+
+        File outputDir = outputDir((String) parser.getOptionValue(output));
+        Integer concurrencyValue = (Integer) parser.getOptionValue(concurrency);
+
+        MockBooksServer server = options.newServer(0, (Integer) parser.getOptionValue(options.threads, 64));
+        server.start();
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%n%-40s %9s %9s %9s %9s %9s %12s %12s %10s%n", 
+                "Parameter file", "seconds", "requests", "req/s", "p50 ms", "p99 ms", "served/s", "stored/s", "errors"));
+
+        try {
+            for (String paramFile : paramFiles) {
+                server.reset();
+
+                String name = new File(paramFile).getName();
+                GoogleBooksExtractorParams params = GoogleBooksExtractorParams.readParameters(paramFile);
+                String runFile = mockParams(params, name, server.getRootUrl(), outputDir);
+                File outputFile = new File(outputDir, name.split("\\.")[0] + ResultWriterFactory.fileExtension(params.outputFormat, params.compressOutput));
+                outputFile.delete();
+
+                String[] runArgs = (concurrencyValue != null) 
+                        ? new String[] { "-p", runFile, "-o", outputDir.getPath() + File.separator, "-a", "mock", "-c", concurrencyValue.toString() }
+                        : new String[] { "-p", runFile, "-o", outputDir.getPath() + File.separator, "-a", "mock" };
+
+                long start = System.nanoTime();
+                GoogleBooksExtractor.main(runArgs);
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                long errors = server.getRequests() - server.getStatusCount(200);
+
+                report.append(String.format("%-40s %9.2f %9d %9.1f %9.1f %9.1f %12.1f %12.1f %10d%n", name, seconds, 
+                        server.getRequests(), server.getRequests() / seconds, 
+                        server.getLatencyPercentile(0.5), server.getLatencyPercentile(0.99), 
+                        server.getVolumesServed() / seconds, countVolumes(outputFile, params) / seconds, errors));
+            }
+        } finally {
+            server.stop();
+        }
+
+        System.out.println(report);
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: LoadHarness [{-c,--concurrency} number of parallel queries] [{-o,--output} directory] [{-T,--threads} threads] " 
+                + MockBooksServer.Options.USAGE + " parameter file...");
+    }
+
+    /**
+     * Writes the copy of the parameter file that is run against the mock server
+     */
+    private static String mockParams(GoogleBooksExtractorParams params, String name, String rootUrl, File dir) throws IOException {
+        params.rootUrl = rootUrl;
+        params.requestsPerSecond = 0;
+        params.dailyQuota = 0;
+        params.quotaFile = "";
+        params.cacheDir = null;
+        params.globalDedupFile = null;
+        params.newVolumesOnly = false;
+
+        File runFile = new File(new File(dir, "params"), name);
+        runFile.getParentFile().mkdirs();
+        XmlParameters.writeParamsDefinition(runFile.getPath(), params);
+
+        return runFile.getPath();
+    }
+
+    private static File outputDir(String name) throws IOException {
+        File dir;
+
+        if (name != null)
+            dir = new File(name);
+        else {
+            dir = File.createTempFile("gbx-load", "");
+            dir.delete();
+        }
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create output directory " + dir);
+
+        return dir;
+    }
+
+    /**
+     * The number of stored volumes in the output file, i.e. the CSV records without the header row,
+     * or the non-empty lines of a JSON Lines file
+     */
+    private static int countVolumes(File file, GoogleBooksExtractorParams params) throws IOException {
+        if (!file.exists()) return 0;
+
+        InputStream in = new FileInputStream(file);
+
+        if (params.compressOutput) in = new GZIPInputStream(in);
+
+        BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        int volumes = 0;
+
+        try {
+            if (ResultWriterFactory.FORMAT_JSON_LINES.equalsIgnoreCase(params.outputFormat)) {
+                String line;
+
+                while ((line = r.readLine()) != null)
+                    if (!line.trim().isEmpty()) volumes++;
+            }
+            else {
+                CSVReader csv = new CSVReader(r);
+
+                while (csv.readNext() != null)
+                    volumes++;
+
+                volumes = Math.max(0, volumes - 1);
+            }
+        } finally {
+            r.close();
+        }
+
+        return volumes;
+    }
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import jargs.gnu.CmdLineParser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the {@code volumes.list} endpoint of the Google Books API, so that the 
+ * throughput and the concurrency behaviour of the extractor can be measured without network 
+ * access and without using quota. Point the extractor to the server with the root URL, e.g.
+ * {@code -u http://localhost:8088/}.
+ * <p>
+ * The server answers {@code GET /books/v1/volumes?q=...&startIndex=...&maxResults=...} like 
+ * Google Books does:
+ * <ul>
+ * <li> each query has a fixed number of matches ({@code totalItems}), derived from the hash of
+ *      the query and at most {@code maxTotalItems}
+ * <li> the matches of a query are a fixed run of volumes from a pool, starting at a position 
+ *      derived from the query, so that the results of different queries overlap as they do for 
+ *      real queries. The pool holds synthetic volumes (see {@code BenchFixtures}) or the volumes 
+ *      of recorded responses.
+ * <li> pages beyond the matches, or beyond the ~1000 volumes that Google Books returns for any
+ *      query, have no items but still report {@code totalItems}
+ * <li> with {@code orderBy=newest}, the matches are returned in reverse order, i.e. the last 
+ *      volumes of the run are the newest. To mimic the volumes indexed since an earlier run, 
+ *      a number of new volumes can be added to the matches of each query.
+ * <li> more than 40 results per page are rejected with 400, and responses are gzip-compressed 
+ *      if the client asks for it. The {@code fields} selector is ignored, i.e. full volumes are
+ *      returned.
+ * </ul>
+ * Latency, server errors (503), rate limit errors (403 userRateLimitExceeded, 429) and a daily 
+ * quota (403 dailyLimitExceeded) can be injected, with the error bodies of Google Books, so that
+ * the retries and the quota handling of the extractor can be exercised. The server counts the 
+ * requests, the responses by status and the volumes served, and records the latency of each
+ * request.
+ * <p>
+ * The server can be run on its own with the main method, see {@link #main(String[])}.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class MockBooksServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(MockBooksServer.class.getSimpleName());
+
+    public static final String VOLUMES_PATH = "/books/v1/volumes";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_RESULTS = 40;                  // maximum page size accepted by Google Books
+    private static final int MAX_SERVED_ITEMS = 1000;           // Google Books returns ~1000 volumes per query at most
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // Volume pool, either synthetic volumes generated on first use or recorded volumes
+    private final AtomicReferenceArray<String> pool;
+    private final int descriptionLength;
+
+    // Injected behaviour
+    private volatile long latencyMillis = 0;
+    private volatile long jitterMillis = 0;
+    private volatile double errorRate = 0;         // share of requests answered with 503
+    private volatile double throttleRate = 0;      // share of requests answered with 403 userRateLimitExceeded
+    private volatile double tooManyRate = 0;       // share of requests answered with 429
+    private volatile int dailyQuota = 0;           // requests after which 403 dailyLimitExceeded is returned, 0 means no limit
+    private volatile int maxTotalItems = 1500;
+    private volatile int newItems = 0;             // volumes added to the matches of each query
+    private final Random random;
+
+    // Statistics
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong volumesServed = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final HashMap<Integer, Integer> statusCounts = new HashMap<Integer, Integer>();
+    private long[] latencies = new long[1024];     // nanoseconds
+    private int numLatencies = 0;
+
+    /**
+     * Creates a server with a pool of synthetic volumes
+     *
+     * @param port the port, 0 for any free port
+     * @param threads the number of threads serving requests
+     * @param poolSize the number of distinct volumes
+     * @param descriptionLength the approximate length of the descriptions
+     * @param seed the seed of the injected latencies and errors
+     * @throws IOException
+     */
+    public MockBooksServer(int port, int threads, int poolSize, int descriptionLength, long seed) throws IOException {
+        this(port, threads, new AtomicReferenceArray<String>(poolSize), descriptionLength, seed);
+    }
+
+    /**
+     * Creates a server with a pool of recorded volumes
+     *
+     * @param port the port, 0 for any free port
+     * @param threads the number of threads serving requests
+     * @param volumes the JSON objects of the volumes, see {@link BenchFixtures#recordedVolumes(String)}
+     * @param seed the seed of the injected latencies and errors
+     * @throws IOException
+     */
+    public MockBooksServer(int port, int threads, List<String> volumes, long seed) throws IOException {
+        this(port, threads, new AtomicReferenceArray<String>(volumes.toArray(new String[volumes.size()])), 0, seed);
+    }
+
+    private MockBooksServer(int port, int threads, AtomicReferenceArray<String> pool, int descriptionLength, long seed) throws IOException {
+        Assertion.assertStrict(pool.length() > 0, Assertion.Level.ERR, "The volume pool of the mock server is empty");
+
+        this.pool = pool;
+        this.descriptionLength = descriptionLength;
+        this.random = new Random(seed);
+
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 128);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext(VOLUMES_PATH, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Mock Books API listening on {}", getRootUrl());
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * The root URL to configure in the extractor, e.g. 'http://localhost:8088/'
+     */
+    public String getRootUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Sets the latency of each response
+     *
+     * @param latencyMillis the fixed latency in milliseconds
+     * @param jitterMillis the maximum random latency added to the fixed latency
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Sets the shares of the requests that fail
+     *
+     * @param errorRate share of requests answered with 503 backendError
+     * @param throttleRate share of requests answered with 403 userRateLimitExceeded
+     * @param tooManyRate share of requests answered with 429 rateLimitExceeded
+     */
+    public void setErrorRates(double errorRate, double throttleRate, double tooManyRate) {
+        this.errorRate = errorRate;
+        this.throttleRate = throttleRate;
+        this.tooManyRate = tooManyRate;
+    }
+
+    /**
+     * Sets the number of requests after which all requests fail with 403 dailyLimitExceeded, 
+     * 0 for no limit. The requests are counted since the start or the last reset.
+     */
+    public void setDailyQuota(int dailyQuota) {
+        this.dailyQuota = dailyQuota;
+    }
+
+    /**
+     * Sets the maximum number of matches of a query
+     */
+    public void setMaxTotalItems(int maxTotalItems) {
+        this.maxTotalItems = maxTotalItems;
+    }
+
+    /**
+     * Sets the number of volumes added to the matches of each query, e.g. to test refreshes
+     */
+    public void setNewItems(int newItems) {
+        this.newItems = newItems;
+    }
+
+    /**
+     * Resets the statistics and the request counter of the daily quota
+     */
+    public synchronized void reset() {
+        requests.set(0);
+        volumesServed.set(0);
+        bytesSent.set(0);
+        statusCounts.clear();
+        numLatencies = 0;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getVolumesServed() {
+        return volumesServed.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * The number of responses with the status
+     */
+    public synchronized int getStatusCount(int status) {
+        Integer count = statusCounts.get(status);
+        return (count == null) ? 0 : count;
+    }
+
+    /**
+     * The latency percentile of the requests, in milliseconds, from the arrival of the request to
+     * the end of the response
+     *
+     * @param percentile e.g. 0.99
+     * @return the latency, or 0 if no requests were served
+     */
+    public synchronized double getLatencyPercentile(double percentile) {
+        if (numLatencies == 0) return 0;
+
+        long[] sorted = Arrays.copyOf(latencies, numLatencies);
+        Arrays.sort(sorted);
+
+        return sorted[Math.min(numLatencies - 1, (int) Math.ceil(percentile * numLatencies) - 1)] / 1e6;
+    }
+
+    /**
+     * The number of matches of a query
+     */
+    int totalItems(String query) {
+        return (int) ((query.hashCode() & 0x7fffffffL) % (maxTotalItems + 1)) + newItems;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        long request = requests.incrementAndGet();
+        int status;
+
+        try {
+            pause();
+
+            HashMap<String, String> query = parseQuery(exchange.getRequestURI());
+            String error = injectedError(request);
+
+            if (!exchange.getRequestMethod().equals("GET"))
+                status = sendError(exchange, 405, "global", "httpMethodNotAllowed", "HTTP method not allowed");
+            else if (error != null)
+                status = sendError(exchange, error);
+            else if (query.get("q") == null || query.get("q").isEmpty())
+                status = sendError(exchange, 400, "global", "required", "Required parameter: q");
+            else {
+                int startIndex = intValue(query.get("startIndex"), 0);
+                int maxResults = intValue(query.get("maxResults"), 10);
+
+                if (maxResults < 0 || maxResults > MAX_RESULTS || startIndex < 0)
+                    status = sendError(exchange, 400, "global", "invalid", "Invalid value");
+                else
+                    status = sendVolumes(exchange, query.get("q"), startIndex, maxResults, "newest".equals(query.get("orderBy")));
+            }
+        } catch (NumberFormatException e) {
+            status = sendError(exchange, 400, "global", "invalid", "Invalid value");
+        } finally {
+            exchange.close();
+        }
+
+        record(status, System.nanoTime() - start);
+    }
+
+    /**
+     * Sends the page of volumes
+     */
+    private int sendVolumes(HttpExchange exchange, String q, int startIndex, int maxResults, boolean newest) throws IOException {
+        int totalItems = totalItems(q);
+        int end = Math.min(Math.min(totalItems, MAX_SERVED_ITEMS), startIndex + maxResults);
+        int offset = (int) (((q.hashCode() * 31L) & 0x7fffffffL) % pool.length());
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n \"kind\": \"books#volumes\",\n \"totalItems\": ").append(totalItems);
+
+        if (startIndex < end) {
+            sb.append(",\n \"items\": [\n");
+
+            for (int i = startIndex; i < end; i++) {
+                if (i > startIndex) sb.append(",\n");
+
+                sb.append(volume((offset + (newest ? totalItems - 1 - i : i)) % pool.length()));
+            }
+
+            sb.append("\n ]");
+            volumesServed.addAndGet(end - startIndex);
+        }
+
+        sb.append("\n}\n");
+        send(exchange, 200, sb.toString());
+
+        return 200;
+    }
+
+    /**
+     * The volume at the position of the pool, synthetic volumes are generated on first use
+     */
+    private String volume(int index) {
+        String volume = pool.get(index);
+
+        if (volume == null) {
+            volume = BenchFixtures.volumeJson(index + 1, descriptionLength);
+            pool.compareAndSet(index, null, volume);
+        }
+
+        return volume;
+    }
+
+    /**
+     * Returns the injected error for the request, or {@code null}
+     */
+    private String injectedError(long request) {
+        if (dailyQuota > 0 && request > dailyQuota)
+            return "dailyLimitExceeded";
+
+        double r;
+
+        synchronized (random) {
+            r = random.nextDouble();
+        }
+
+        if (r < errorRate) return "backendError";
+        if (r < errorRate + throttleRate) return "userRateLimitExceeded";
+        if (r < errorRate + throttleRate + tooManyRate) return "rateLimitExceeded";
+
+        return null;
+    }
+
+    private int sendError(HttpExchange exchange, String reason) throws IOException {
+        if (reason.equals("backendError"))
+            return sendError(exchange, 503, "global", reason, "Backend Error");
+        if (reason.equals("rateLimitExceeded"))
+            return sendError(exchange, 429, "usageLimits", reason, "Rate Limit Exceeded");
+        if (reason.equals("dailyLimitExceeded"))
+            return sendError(exchange, 403, "usageLimits", reason, "Daily Limit Exceeded");
+
+        return sendError(exchange, 403, "usageLimits", reason, "User Rate Limit Exceeded");
+    }
+
+    /**
+     * Sends an error in the format of the Google APIs
+     */
+    private int sendError(HttpExchange exchange, int status, String domain, String reason, String message) throws IOException {
+        send(exchange, status, "{\n \"error\": {\n  \"errors\": [\n   {\n    \"domain\": \"" + domain + "\",\n    \"reason\": \"" + reason 
+                + "\",\n    \"message\": \"" + message + "\"\n   }\n  ],\n  \"code\": " + status + ",\n  \"message\": \"" + message + "\"\n }\n}\n");
+
+        return status;
+    }
+
+    private void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(UTF8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(status, 0);    // chunked
+
+            CountingOutputStream counter = new CountingOutputStream(exchange.getResponseBody());
+            OutputStream out = new GZIPOutputStream(counter);
+
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+
+            bytesSent.addAndGet(counter.count);
+        }
+        else {
+            exchange.sendResponseHeaders(status, body.length);
+
+            OutputStream out = exchange.getResponseBody();
+
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+
+            bytesSent.addAndGet(body.length);
+        }
+    }
+
+    private void pause() {
+        long millis = latencyMillis;
+
+        if (jitterMillis > 0) {
+            synchronized (random) {
+                millis += (long) (random.nextDouble() * jitterMillis);
+            }
+        }
+
+        if (millis <= 0) return;
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void record(int status, long nanos) {
+        Integer count = statusCounts.get(status);
+        statusCounts.put(status, (count == null) ? 1 : count + 1);
+
+        if (numLatencies == latencies.length)
+            latencies = Arrays.copyOf(latencies, 2 * latencies.length);
+
+        latencies[numLatencies++] = nanos;
+    }
+
+    private static HashMap<String, String> parseQuery(URI uri) throws IOException {
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        String query = uri.getRawQuery();
+
+        if (query == null) return parameters;
+
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+
+            if (eq > 0)
+                parameters.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+
+        return parameters;
+    }
+
+    private static int intValue(String value, int defaultValue) {
+        return (value == null) ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Counts the compressed bytes of a response
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Runs the server until it is killed. Command line arguments:
+     * <pre>
+     *   -P, --port            port (default 8088)
+     *   -T, --threads         number of threads serving requests (default 64)
+     *   -l, --latency         fixed latency in milliseconds (default 0)
+     *   -j, --jitter          maximum random latency added in milliseconds (default 0)
+     *   -e, --error-rate      share of requests answered with 503 (default 0)
+     *   -t, --throttle-rate   share of requests answered with 403 userRateLimitExceeded (default 0)
+     *   -m, --too-many-rate   share of requests answered with 429 (default 0)
+     *   -q, --quota           number of requests after which 403 dailyLimitExceeded is returned (default no limit)
+     *   -n, --max-total-items maximum number of matches of a query (default 1500)
+     *   -N, --new-items       number of volumes added to the matches of each query (default 0)
+     *   -s, --pool-size       number of distinct synthetic volumes (default 20000)
+     *   -r, --recorded        directory with recorded responses, whose volumes are served instead
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        CmdLineParser parser = new CmdLineParser();
+        Options options = new Options(parser);
+
+        try {
+            parser.parse(args);
+        }
+        catch ( CmdLineParser.OptionException e ) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: MockBooksServer [{-P,--port} port] [{-T,--threads} threads] " + Options.USAGE);
+            System.exit(2);
+        }
+
+        MockBooksServer server = options.newServer((Integer) parser.getOptionValue(options.port, 8088), 
+                (Integer) parser.getOptionValue(options.threads, 64));
+        server.start();
+    }
+
+    /**
+     * The command line options of the server, shared with the {@code LoadHarness}
+     */
+    static class Options {
+        static final String USAGE = "[{-l,--latency} millis] [{-j,--jitter} millis] [{-e,--error-rate} share] "
+                + "[{-t,--throttle-rate} share] [{-m,--too-many-rate} share] [{-q,--quota} requests] [{-n,--max-total-items} items] "
+                + "[{-N,--new-items} items] [{-s,--pool-size} volumes] [{-r,--recorded} directory]";
+
+        private final CmdLineParser parser;
+        final CmdLineParser.Option port;
+        final CmdLineParser.Option threads;
+        final CmdLineParser.Option latency;
+        final CmdLineParser.Option jitter;
+        final CmdLineParser.Option errorRate;
+        final CmdLineParser.Option throttleRate;
+        final CmdLineParser.Option tooManyRate;
+        final CmdLineParser.Option quota;
+        final CmdLineParser.Option maxTotalItems;
+        final CmdLineParser.Option newItems;
+        final CmdLineParser.Option poolSize;
+        final CmdLineParser.Option recorded;
+
+        Options(CmdLineParser parser) {
+            this.parser = parser;
+            port = parser.addIntegerOption('P', "port");
+            threads = parser.addIntegerOption('T', "threads");
+            latency = parser.addIntegerOption('l', "latency");
+            jitter = parser.addIntegerOption('j', "jitter");
+            errorRate = parser.addDoubleOption('e', "error-rate");
+            throttleRate = parser.addDoubleOption('t', "throttle-rate");
+            tooManyRate = parser.addDoubleOption('m', "too-many-rate");
+            quota = parser.addIntegerOption('q', "quota");
+            maxTotalItems = parser.addIntegerOption('n', "max-total-items");
+            newItems = parser.addIntegerOption('N', "new-items");
+            poolSize = parser.addIntegerOption('s', "pool-size");
+            recorded = parser.addStringOption('r', "recorded");
+        }
+
+        /**
+         * Creates the server configured with the parsed options
+         */
+        MockBooksServer newServer(int port, int threads) throws IOException {
+            String dir = (String) parser.getOptionValue(recorded);
+            MockBooksServer server;
+
+            if (dir != null) {
+                ArrayList<String> volumes = BenchFixtures.recordedVolumes(dir);
+                logger.info("Serving {} recorded volumes from {}", volumes.size(), dir);
+                server = new MockBooksServer(port, threads, volumes, 1L);
+            }
+            else
+                server = new MockBooksServer(port, threads, (Integer) parser.getOptionValue(poolSize, 20000), 1000, 1L);
+
+            server.setLatency((Integer) parser.getOptionValue(latency, 0), (Integer) parser.getOptionValue(jitter, 0));
+            server.setErrorRates((Double) parser.getOptionValue(errorRate, 0.0), (Double) parser.getOptionValue(throttleRate, 0.0), 
+                    (Double) parser.getOptionValue(tooManyRate, 0.0));
+            server.setDailyQuota((Integer) parser.getOptionValue(quota, 0));
+            server.setMaxTotalItems((Integer) parser.getOptionValue(maxTotalItems, 1500));
+            server.setNewItems((Integer) parser.getOptionValue(newItems, 0));
+
+            return server;
+        }
+    }
+}
@@ -17,11 +17,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A simple class to check the truth value of a statement and do one of two things:
+ * A simple class to check the truth value of a statement and do one of three things:
  *    - stop execution if the level is 'ERR'
+ *    - throw an {@code IllegalArgumentException} if the level is 'EXCEPTION', e.g. to reject 
+ *      the parameters of a job without stopping a long-running service
  *    - continue execution if the level id 'INFO'
- *    
- * TODO Add an assertion method that throws an exception 
  *
  * @author Gilbert Peffer
  *
@@ -32,6 +32,7 @@ public class Assertion {
 
     public enum Level {
         INFO,
+        EXCEPTION,
         ERR;
     }
     
@@ -43,6 +44,8 @@ public class Assertion {
                 logger.error("----- Stopping execution -----");
                 System.exit(0);
             }
+            else if (level == Level.EXCEPTION)
+                throw new IllegalArgumentException(err);
             else if (level == Level.INFO)
                 return false;
         }
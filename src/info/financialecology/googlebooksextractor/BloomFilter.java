@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+/**
+ * A Bloom filter over 64-bit fingerprints. A negative answer is definite, a positive answer is 
+ * wrong with a probability of about 1% at 10 bits per value. The k bit positions of a value are
+ * derived from two hashes of the fingerprint (double hashing). Not thread-safe for adds.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class BloomFilter {
+
+    private static final int BITS_PER_VALUE = 10;
+    private static final int HASHES = 7;        // optimal for 10 bits per value
+
+    private final long[] bits;
+    private final long numBits;
+
+    /**
+     * Constructor
+     *
+     * @param expectedValues the number of values to be added
+     */
+    public BloomFilter(long expectedValues) {
+        long n = Math.max(64, expectedValues * BITS_PER_VALUE);
+        bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (n + 63) / 64)];
+        numBits = bits.length * 64L;
+    }
+
+    public void add(long fingerprint) {
+        long h1 = fingerprint;
+        long h2 = rehash(fingerprint);
+
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Returns false if the value was definitely not added, true if it probably was
+     */
+    public boolean mightContain(long fingerprint) {
+        long h1 = fingerprint;
+        long h2 = rehash(fingerprint);
+
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+
+        return true;
+    }
+
+    private static long rehash(long h) {
+        h ^= h >>> 31;
+        h *= 0x9e3779b97f4a7c15L;
+        h ^= h >>> 29;
+
+        return h | 1;   // odd, so that the k positions differ
+    }
+}
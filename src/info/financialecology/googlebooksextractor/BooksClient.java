@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProxySelector;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.books.Books;
+import com.google.api.services.books.BooksRequestInitializer;
+import com.google.api.services.books.Books.Volumes.List;
+
+/**
+ * A long-lived Google Books client that is shared by all queries of a run. The client holds a
+ * single HTTP transport with a pool of keep-alive connections, so that only the first requests
+ * pay for connection and TLS setup. {@code Books} and the transports are thread-safe, so the
+ * client can be used by several query threads at the same time.
+ * <p>
+ * Two transports are supported:
+ * <ul>
+ * <li> apache - the Apache HttpClient with a thread-safe connection pool of {@code poolSize}
+ *      connections (default)
+ * <li> net - the JDK {@code HttpURLConnection}, which keeps up to {@code http.maxConnections}
+ *      idle connections alive per host
+ * </ul>
+ * To keep the payloads small, the client by default only requests the fields of the volumes
+ * that are written to the output ({@code fields} selector of the API, see {@link #VOLUME_FIELDS})
+ * and asks for gzip-compressed responses. Both can be switched off.
+ * <p>
+ * The client talks to Google Books, unless a different root URL is given, e.g. that of a local
+ * mock server for load tests without network access or quota.
+ * <p>
+ * Call {@link #shutdown()} at the end of the run to close the pooled connections.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class BooksClient {
+
+    /**
+     * The name of the application. If the application name is {@code null} or blank, the Google
+     * Books API will log a warning.
+     */
+    public static final String APPLICATION_NAME = "GilbertPeffer-GoogleBookParser/1.0";
+
+    public static final String TRANSPORT_APACHE = "apache";
+    public static final String TRANSPORT_NET    = "net";
+
+    /**
+     * The partial response of a volume query: the number of matches, used to plan the
+     * paginations, and the volume information that is written to the output
+     */
+    public static final String VOLUME_FIELDS = "totalItems,items(volumeInfo(title,subtitle,authors,"
+            + "categories,description,publishedDate,previewLink,industryIdentifiers))";
+
+    private final HttpTransport transport;
+    private final Books books;
+    private ResponseCache cache = null;
+    private ResponseArchive archive = null;
+    private QuotaGovernor governor = null;
+    private final String fields;        // null to request full volumes
+    private final String rootUrl;       // the root URL of the Books API
+
+    /**
+     * Constructor
+     *
+     * @param apiKey the Google Books API key
+     * @param transportName the HTTP transport, either {@code apache} or {@code net}
+     * @param poolSize the maximum number of pooled connections
+     * @param connectTimeout the connect timeout in milliseconds
+     * @param readTimeout the read timeout in milliseconds
+     */
+    public BooksClient(String apiKey, String transportName, int poolSize, int connectTimeout, int readTimeout) {
+        this(apiKey, transportName, poolSize, connectTimeout, readTimeout, true, true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param apiKey the Google Books API key
+     * @param transportName the HTTP transport, either {@code apache} or {@code net}
+     * @param poolSize the maximum number of pooled connections
+     * @param connectTimeout the connect timeout in milliseconds
+     * @param readTimeout the read timeout in milliseconds
+     * @param partialResponses request only the {@link #VOLUME_FIELDS}, rather than full volumes
+     * @param gzip ask for gzip-compressed responses
+     */
+    public BooksClient(String apiKey, String transportName, int poolSize, final int connectTimeout, final int readTimeout, 
+            boolean partialResponses, final boolean gzip) {
+        this(apiKey, transportName, poolSize, connectTimeout, readTimeout, partialResponses, gzip, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param apiKey the Google Books API key
+     * @param transportName the HTTP transport, either {@code apache} or {@code net}
+     * @param poolSize the maximum number of pooled connections
+     * @param connectTimeout the connect timeout in milliseconds
+     * @param readTimeout the read timeout in milliseconds
+     * @param partialResponses request only the {@link #VOLUME_FIELDS}, rather than full volumes
+     * @param gzip ask for gzip-compressed responses
+     * @param rootUrl the root URL of the Books API, e.g. 'http://localhost:8088/' for a local mock
+     *                server, or {@code null} for Google Books
+     */
+    public BooksClient(String apiKey, String transportName, int poolSize, final int connectTimeout, final int readTimeout, 
+            boolean partialResponses, final boolean gzip, String rootUrl) {
+
+        if (TRANSPORT_NET.equalsIgnoreCase(transportName)) {
+            System.setProperty("http.keepAlive", "true");
+            System.setProperty("http.maxConnections", Integer.toString(poolSize));
+            transport = new NetHttpTransport();
+        }
+        else
+            transport = new ApacheHttpTransport(newPooledHttpClient(poolSize, connectTimeout, readTimeout));
+
+        JsonFactory jsonFactory = new JacksonFactory();
+
+        Books.Builder builder = new Books.Builder(transport, jsonFactory, new HttpRequestInitializer() {
+                        public void initialize(HttpRequest request) throws IOException {
+                            request.setConnectTimeout(connectTimeout);
+                            request.setReadTimeout(readTimeout);
+                            request.getHeaders().setAcceptEncoding(gzip ? "gzip" : null);   // gzip responses are decoded by HttpResponse
+                        }
+                    })
+                    .setApplicationName(APPLICATION_NAME)
+                    .setGoogleClientRequestInitializer(new BooksRequestInitializer(apiKey));
+
+        if (rootUrl != null && !rootUrl.trim().isEmpty()) {
+            this.rootUrl = rootUrl.trim().endsWith("/") ? rootUrl.trim() : rootUrl.trim() + "/";
+            builder.setRootUrl(this.rootUrl);   // the service path 'books/v1/' is appended
+        }
+        else
+            this.rootUrl = Books.DEFAULT_ROOT_URL;
+
+        books = builder.build();
+
+        fields = partialResponses ? VOLUME_FIELDS : null;
+    }
+
+    /**
+     * Creates the client from the connection settings in the parameter file
+     *
+     * @param params
+     * @param apiKey
+     * @return the client
+     */
+    public static BooksClient newInstance(GoogleBooksExtractorParams params, String apiKey) {
+        int poolSize = params.connectionPoolSize;
+
+        if (poolSize <= 0) poolSize = params.concurrency;   // one connection per query thread
+
+        return new BooksClient(apiKey, params.httpTransport, poolSize, params.connectTimeout, params.readTimeout, 
+                params.partialResponses, params.gzipResponses, params.rootUrl);
+    }
+
+    /**
+     * Creates an Apache HttpClient with a thread-safe pool of keep-alive connections
+     */
+    private static DefaultHttpClient newPooledHttpClient(int poolSize, int connectTimeout, int readTimeout) {
+        HttpParams params = new BasicHttpParams();
+
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpConnectionParams.setStaleCheckingEnabled(params, false);    // stale connections are retried instead, see below
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, readTimeout);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        ConnManagerParams.setMaxTotalConnections(params, poolSize);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(poolSize));
+        ConnManagerParams.setTimeout(params, connectTimeout);           // wait for a free pooled connection
+        params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        ThreadSafeClientConnManager connManager = new ThreadSafeClientConnManager(params, registry);
+        DefaultHttpClient httpClient = new DefaultHttpClient(connManager, params);
+        httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(1, false));  // a kept-alive connection may have been closed by the server
+        httpClient.setRoutePlanner(new ProxySelectorRoutePlanner(registry, ProxySelector.getDefault()));
+
+        return httpClient;
+    }
+
+    /**
+     * Returns the raw JSON response of a volume query. If a response cache is set, the response
+     * is taken from the cache when available and stored in the cache otherwise. Requests that go 
+     * to Google Books pass through the quota governor, if one is set, which limits the request 
+     * rate and retries throttled or failed requests. If a response archive is set, the response
+     * is appended to the archive.
+     *
+     * @param query
+     * @param startIndex
+     * @param maxResults
+     * @return the JSON response
+     * @throws IOException
+     * @throws QuotaExhaustedException if the daily quota is used up
+     */
+    public String fetchVolumesPage(String query, int startIndex, int maxResults) throws IOException, QuotaExhaustedException {
+        return fetchVolumesPage(query, startIndex, maxResults, null);
+    }
+
+    /**
+     * Returns the raw JSON response of a volume query, recording the request in the metrics of 
+     * the run, since the client is shared by several runs
+     *
+     * @param query
+     * @param startIndex
+     * @param maxResults
+     * @param metrics the metrics of the run, or {@code null}
+     * @return the JSON response
+     * @throws IOException
+     * @throws QuotaExhaustedException if the daily quota is used up
+     * @see #fetchVolumesPage(String, int, int)
+     */
+    public String fetchVolumesPage(String query, int startIndex, int maxResults, RunMetrics metrics) throws IOException, QuotaExhaustedException {
+        return fetchVolumesPage(query, startIndex, maxResults, null, metrics);
+    }
+
+    /**
+     * Returns the raw JSON response of a volume query in the given order, e.g. 'newest'. Ordered
+     * responses change as Google Books indexes new volumes, so they are neither taken from nor 
+     * stored in the response cache.
+     *
+     * @param query
+     * @param startIndex
+     * @param maxResults
+     * @param orderBy the order of the volumes, either 'relevance' or 'newest', or {@code null} for 
+     *                the default order (relevance)
+     * @param metrics the metrics of the run, or {@code null}
+     * @return the JSON response
+     * @throws IOException
+     * @throws QuotaExhaustedException if the daily quota is used up
+     * @see #fetchVolumesPage(String, int, int, RunMetrics)
+     */
+    public String fetchVolumesPage(String query, int startIndex, int maxResults, String orderBy, RunMetrics metrics) 
+            throws IOException, QuotaExhaustedException {
+        String key = null;
+
+        if (cache != null && orderBy == null) {
+            key = ResponseCache.key(rootUrl, fields, query, startIndex, maxResults);
+            String json = cache.get(key);
+
+            if (json != null) {
+                if (metrics != null) metrics.recordCacheHit(query);
+
+                if (archive != null && !archive.contains(query, startIndex, maxResults, null))    // cached before the archive was set up
+                    archive.append(query, startIndex, maxResults, null, json);
+
+                return json;
+            }
+        }
+
+        String json = null;
+
+        try {
+            for (int attempt = 0; json == null; attempt++) {
+                if (governor != null) governor.acquire();
+
+                List volumesList = books.volumes().list(query);
+                volumesList.setStartIndex((long) startIndex);
+                volumesList.setMaxResults((long) maxResults);
+
+                if (fields != null) volumesList.setFields(fields);
+                if (orderBy != null) volumesList.setOrderBy(orderBy);
+
+                long start = System.nanoTime();
+
+                try {
+                    HttpResponse response = volumesList.executeUnparsed();      // execute the query
+                    json = response.parseAsString();
+
+                    if (metrics != null) {
+                        Long length = response.getHeaders().getContentLength();    // the compressed size, if the server reports it
+                        metrics.recordRequest(query, System.nanoTime() - start, response.getStatusCode(), (length != null) ? length : json.length());
+                    }
+                } catch (HttpResponseException e) {
+                    if (metrics != null) metrics.recordRequest(query, System.nanoTime() - start, e.getStatusCode(), 0);
+
+                    if (governor == null) throw e;
+
+                    governor.backoff(e, attempt);   // throws if the request isn't retried
+
+                    if (metrics != null) metrics.recordRetry(query);
+                } catch (IOException e) {
+                    if (metrics != null) metrics.recordRequest(query, System.nanoTime() - start, 0, 0);
+
+                    throw e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the quota governor");
+        }
+
+        if (key != null) cache.put(key, json);
+        if (archive != null) archive.append(query, startIndex, maxResults, orderBy, json);
+
+        return json;
+    }
+
+    public void setQuotaGovernor(QuotaGovernor governor) {
+        this.governor = governor;
+    }
+
+    public QuotaGovernor getQuotaGovernor() {
+        return governor;
+    }
+
+    public void setResponseCache(ResponseCache cache) {
+        this.cache = cache;
+    }
+
+    public ResponseCache getResponseCache() {
+        return cache;
+    }
+
+    /**
+     * Sets the archive to which all responses are appended, see {@link ResponseArchive}
+     *
+     * @param archive
+     */
+    public void setResponseArchive(ResponseArchive archive) {
+        this.archive = archive;
+    }
+
+    public ResponseArchive getResponseArchive() {
+        return archive;
+    }
+
+    /**
+     * Closes the pooled connections. The client cannot be used afterwards.
+     */
+    public void shutdown() {
+        try {
+            transport.shutdown();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The queries of a term cluster search: for every combination of {@code arity} clusters, all 
+ * queries that take one term from each of the clusters. For two clusters and an arity of 2 these 
+ * are the binomial combinations of the terms, for a single cluster (arity 1) the terms themselves.
+ * <p>
+ * The queries are generated lazily, one at a time, so that the cartesian product of the clusters
+ * is never held in memory. Its size can be computed in advance with {@link #count()}. The order
+ * is that of nested loops: the cluster combinations in lexicographic order of the cluster 
+ * indices, and within a combination the terms of the last cluster vary fastest. 
+ * <p>
+ * The terms of a query are joined by '+', with spaces around each '+' to prevent strange 
+ * (unexplicable) behaviour of the Google Books query, e.g. {@code risk + finance}.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ClusterCombinations implements Iterable<String> {
+
+    private final List<? extends List<String>> clusters;
+    private final int arity;
+
+    /**
+     * Constructor
+     *
+     * @param clusters the term clusters
+     * @param arity the number of clusters combined in a query, at most the number of clusters
+     */
+    public ClusterCombinations(List<? extends List<String>> clusters, int arity) {
+        if (arity < 1 || arity > clusters.size())
+            throw new IllegalArgumentException("Cannot combine " + arity + " of " + clusters.size() + " clusters");
+
+        this.clusters = clusters;
+        this.arity = arity;
+    }
+
+    /**
+     * The number of queries, i.e. the sum of the products of the cluster sizes over all 
+     * combinations of clusters, computed without generating the queries. Saturates at 
+     * {@code Long.MAX_VALUE}.
+     */
+    public long count() {
+        // count[j] = sum over the combinations of j of the clusters seen so far of the products of their sizes
+        long[] count = new long[arity + 1];
+        count[0] = 1;
+
+        for (List<String> cluster : clusters)
+            for (int j = arity; j >= 1; j--)
+                count[j] = saturatedAdd(count[j], saturatedMultiply(count[j - 1], cluster.size()));
+
+        return count[arity];
+    }
+
+    public int getArity() {
+        return arity;
+    }
+
+    public Iterator<String> iterator() {
+        return new CombinationIterator();
+    }
+
+    /**
+     * Joins the terms of a query
+     */
+    static String query(List<String> terms) {
+        StringBuilder sb = new StringBuilder();
+
+        for (String term : terms) {
+            if (sb.length() > 0) sb.append('+');
+
+            sb.append(term);
+        }
+
+        return sb.toString().replace("+", " + ");  // surround '+' with spaces, also within terms
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+
+        return (sum < 0) ? Long.MAX_VALUE : sum;
+    }
+
+    private static long saturatedMultiply(long a, long b) {
+        if (a == 0 || b == 0) return 0;
+
+        return (a > Long.MAX_VALUE / b) ? Long.MAX_VALUE : a * b;
+    }
+
+    /**
+     * Walks the cluster combinations and, within each, the terms like an odometer
+     */
+    private class CombinationIterator implements Iterator<String> {
+        private final int[] subset = new int[arity];    // the indices of the combined clusters
+        private final int[] terms = new int[arity];     // the index of the term in each combined cluster
+        private final ArrayList<String> query = new ArrayList<String>(arity);
+        private boolean hasNext;
+
+        CombinationIterator() {
+            for (int i = 0; i < arity; i++)
+                subset[i] = i;
+
+            hasNext = true;
+
+            if (isEmptySubset()) hasNext = nextSubset();
+        }
+
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        public String next() {
+            if (!hasNext) throw new NoSuchElementException();
+
+            query.clear();
+
+            for (int i = 0; i < arity; i++)
+                query.add(clusters.get(subset[i]).get(terms[i]));
+
+            hasNext = nextTerms() || nextSubset();
+
+            return query(query);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Advances the terms within the current combination of clusters
+         */
+        private boolean nextTerms() {
+            for (int i = arity - 1; i >= 0; i--) {
+                if (++terms[i] < clusters.get(subset[i]).size()) return true;
+
+                terms[i] = 0;
+            }
+
+            return false;
+        }
+
+        /**
+         * Advances to the next combination of clusters that has no empty cluster
+         */
+        private boolean nextSubset() {
+            do {
+                int i = arity - 1;
+
+                while (i >= 0 && subset[i] == clusters.size() - arity + i) i--;
+
+                if (i < 0) return false;
+
+                subset[i]++;
+
+                for (int j = i + 1; j < arity; j++)
+                    subset[j] = subset[j - 1] + 1;
+            } while (isEmptySubset());
+
+            return true;
+        }
+
+        private boolean isEmptySubset() {
+            for (int i = 0; i < arity; i++)
+                if (clusters.get(subset[i]).isEmpty()) return true;
+
+            return false;
+        }
+    }
+}
@@ -13,21 +13,42 @@
  */
 package info.financialecology.googlebooksextractor;
 
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import au.com.bytecode.opencsv.CSVWriter;
 
 /**
  * A class to write string values provided in an array list of array lists of strings to
- * a CSV file.  
+ * a CSV file. Rows can also be streamed to the file one by one with {@code writeRow}. The output
+ * is buffered and flushed at least every {@code flushIntervalMillis}, so that a crashed run
+ * loses at most the rows of the last interval. The file is only created when the first row is
+ * written. The file is written in UTF-8 through a large buffer, and can be gzip-compressed. 
+ * Flushing a compressed file doesn't flush the deflater (Java 6 has no sync flush), so its last 
+ * rows only become readable when the file is closed.
  * 
  * @author Gilbert Peffer
  */
 public class CsvResultWriter implements ResultWriter {
+    private static final Logger logger = LoggerFactory.getLogger(CsvResultWriter.class.getSimpleName());
+
     private static final char SEPARATOR = ',';
-    private CSVWriter w;
+    private static final long DEFAULT_FLUSH_INTERVAL = 10000;  // milliseconds
+
+    private final String fileName;
+    private final char separator;
+    private final long flushIntervalMillis;
+    private final boolean append;
+    private final boolean gzip;
+    private CSVWriter w = null;
+    private long lastFlush;
+    private boolean closed = false;
+    private boolean failed = false;     // a row couldn't be written
     
     /**
      * Constructor
@@ -35,12 +56,7 @@ public class CsvResultWriter implements ResultWriter {
      * @param fileName
      */
     public CsvResultWriter(String fileName) {
-        try {
-            w = new CSVWriter(new FileWriter(fileName), SEPARATOR);
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        this(fileName, SEPARATOR, DEFAULT_FLUSH_INTERVAL);
     }
     
     /**
@@ -50,12 +66,47 @@ public class CsvResultWriter implements ResultWriter {
      * @param separator
      */
     public CsvResultWriter(String fileName, char separator) {
-        try {
-            w = new CSVWriter(new FileWriter(fileName), separator);
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        this(fileName, separator, DEFAULT_FLUSH_INTERVAL);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param fileName
+     * @param separator
+     * @param flushIntervalMillis the maximum time between flushes of streamed rows
+     */
+    public CsvResultWriter(String fileName, char separator, long flushIntervalMillis) {
+        this(fileName, separator, flushIntervalMillis, false);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param fileName
+     * @param separator
+     * @param flushIntervalMillis the maximum time between flushes of streamed rows
+     * @param append append the rows to an existing file, e.g. when resuming a run
+     */
+    public CsvResultWriter(String fileName, char separator, long flushIntervalMillis, boolean append) {
+        this(fileName, separator, flushIntervalMillis, append, false);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param fileName
+     * @param separator
+     * @param flushIntervalMillis the maximum time between flushes of streamed rows
+     * @param append append the rows to an existing file, e.g. when resuming a run
+     * @param gzip compress the file with gzip
+     */
+    public CsvResultWriter(String fileName, char separator, long flushIntervalMillis, boolean append, boolean gzip) {
+        this.fileName = fileName;
+        this.separator = separator;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.append = append;
+        this.gzip = gzip;
     }
     
     /**
@@ -72,6 +123,72 @@ public class CsvResultWriter implements ResultWriter {
           writeTableOfStrings((ArrayList<ArrayList<String>>) result);
     }
 
+    /**
+     * Write a single row to the file. The first row needs to contain the header labels.
+     * 
+     * @param row
+     */
+    public void writeRow(List<String> row) {
+        CSVWriter csv = open();
+        
+        if (csv == null) return;
+        
+        String csvItems[] = new String[row.size() + 1];     // the extra item ends each line with a separator, as for tables
+        
+        for (int j = 0; j < row.size(); j++)
+            csvItems[j] = row.get(j);
+        
+        csv.writeNext(csvItems);
+        
+        if (System.currentTimeMillis() - lastFlush >= flushIntervalMillis)
+            flush();
+    }
+
+    /**
+     * Write the volumes to the file, preceded by the header labels
+     * 
+     * @param volumes
+     */
+    public void writeVolumes(Iterator<VolumeRecord> volumes) {
+        writeHeader();
+        
+        while (volumes.hasNext())
+            writeVolume(volumes.next());
+        
+        flush();
+    }
+
+    /**
+     * Write the row with the header labels
+     */
+    public void writeHeader() {
+        writeRow(VolumeRecord.HEADER);
+    }
+
+    /**
+     * Write a single volume as a row
+     * 
+     * @param volume
+     */
+    public void writeVolume(VolumeRecord volume) {
+        writeRow(volume.toRow());
+    }
+
+    /**
+     * Flush and close the file
+     */
+    public void close() {
+        if (w == null || closed) return;
+        
+        closed = true;
+        
+        try {
+            w.close();
+        } catch (IOException e) {
+            logger.error("Cannot close CSV file {}: {}", fileName, e.getMessage());
+        }
+    }
+
     /**
      * Write the table (ArrayList of ArrayLists) data to the file in CSV format. The first 
      * inner ArrayList needs to contain the header labels for the CSV file.
@@ -82,6 +199,10 @@ public class CsvResultWriter implements ResultWriter {
         
         // TODO validate argument
 
+        CSVWriter w = open();
+        
+        if (w == null) return;
+        
         ArrayList<String> row = table.get(0);			// header labels
         int numRows       = table.size();				// number of rows in the table
         int numCols	      = row.size();				    // number of columns in the table
@@ -97,12 +218,50 @@ public class CsvResultWriter implements ResultWriter {
         	w.writeNext(csvItems);
         }
         
+        flush();
+    }
+    
+    /**
+     * Opens the file when the first row is written
+     */
+    private CSVWriter open() {
+        if (w == null && !closed) {
+            try {
+                w = new CSVWriter(ResultWriterFactory.newBufferedWriter(fileName, append, gzip), separator);
+                lastFlush = System.currentTimeMillis();
+            } catch (IOException e) {
+                logger.error("Cannot open CSV file {}: {}", fileName, e.getMessage());
+                closed = true;
+                failed = true;
+            }
+        }
+        
+        return w;
+    }
+    
+    /**
+     * Flush the rows written so far to the file
+     * 
+     * @return false if any row couldn't be written
+     */
+    public boolean flush() {
+        if (w == null || closed) return !failed;
+        
         try {
-            w.flush();  // TODO the file stream needs to be closed properly, but where?
+            w.flush();
         } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            logger.error("Cannot write CSV file {}: {}", fileName, e.getMessage());
+            failed = true;
+        }
+        
+        if (w.checkError() && !failed) {    // the CSV writer doesn't throw on write errors
+            logger.error("Error writing CSV file {}", fileName);
+            failed = true;
         }
+        
+        lastFlush = System.currentTimeMillis();
+        
+        return !failed;
     }
     
 }
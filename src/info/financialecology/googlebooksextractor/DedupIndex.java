@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+/**
+ * The index of the books seen so far, used to remove duplicate volumes. 
+ * <ul>
+ * <li> Volumes are keyed on their first industry identifier, normalized to a canonical ISBN-13 
+ *      where possible, so that the ISBN-10 and the ISBN-13 of a book map to the same key. Other 
+ *      identifiers (e.g. OCLC or library ids) are kept as they are.
+ * <li> Volumes without an identifier are keyed on their full normalized title (lower case, 
+ *      punctuation removed), rather than on a title prefix, so that unrelated titles that share
+ *      a prefix are no longer merged.
+ * <li> The keys are held as 64-bit fingerprints in a {@link LongHashSet}, rather than as strings.
+ *      The chance of two different keys sharing a fingerprint is negligible (about 1 in 10^5 for
+ *      ten million keys).
+ * <li> Optionally, near-duplicate titles are detected with MinHash/LSH, see 
+ *      {@link TitleLshIndex}.
+ * <li> Optionally, the books stored in earlier runs are looked up in a {@link GlobalDedupIndex}, 
+ *      so that only books that were never seen before are stored.
+ * </ul>
+ * Keys are plain strings, so that they can be journaled and restored, see {@link #restore(String)}.
+ * Not thread-safe, see {@code ExtractionState} for synchronized access.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class DedupIndex {
+
+    public static final String ISBN_PREFIX  = "isbn:";
+    public static final String ID_PREFIX    = "id:";
+    public static final String TITLE_PREFIX = "title:";
+    public static final String FUZZY_PREFIX = "fuzzy:";    // a title registered for near-duplicate detection
+    public static final String STORED_PREFIX = "stored:";  // the key of a stored volume
+
+    private final LongHashSet fingerprints = new LongHashSet();
+    private final LongHashSet stored = new LongHashSet();  // the fingerprints of the keys of the stored volumes
+    private final TitleLshIndex fuzzyTitles;            // null if near-duplicate detection is off
+    private GlobalDedupIndex global = null;             // the books of earlier runs, null if not used
+
+    /**
+     * Constructor
+     *
+     * @param fuzzyTitleThreshold the estimated Jaccard similarity above which two titles are 
+     *                            near-duplicates, 0 to switch near-duplicate detection off
+     */
+    public DedupIndex(double fuzzyTitleThreshold) {
+        fuzzyTitles = (fuzzyTitleThreshold > 0) ? new TitleLshIndex(fuzzyTitleThreshold) : null;
+    }
+
+    /**
+     * Sets the index of the books stored in earlier runs. Keys that are in the global index are
+     * then treated as duplicates.
+     *
+     * @param global
+     */
+    public void setGlobalIndex(GlobalDedupIndex global) {
+        this.global = global;
+    }
+
+    /**
+     * Adds the key to the index
+     *
+     * @param key
+     * @return true if the key is new, false if the volume is a duplicate or was stored in an 
+     *         earlier run
+     */
+    public boolean add(String key) {
+        long fingerprint = fingerprint(key);
+
+        if (!fingerprints.add(fingerprint)) return false;
+
+        return (global == null) || !global.contains(fingerprint);
+    }
+
+    /**
+     * The fingerprints of the keys added so far
+     */
+    public long[] getFingerprints() {
+        return fingerprints.toArray();
+    }
+
+    /**
+     * Records that the volume with the key was stored, rather than removed by the filters or as
+     * a near-duplicate
+     *
+     * @param key
+     */
+    public void addStored(String key) {
+        stored.add(fingerprint(key));
+    }
+
+    /**
+     * The fingerprints of the keys of the stored volumes, e.g. to be saved in the global index
+     */
+    public long[] getStoredFingerprints() {
+        return stored.toArray();
+    }
+
+    public boolean isFuzzy() {
+        return fuzzyTitles != null;
+    }
+
+    /**
+     * Adds a normalized title for near-duplicate detection. Does nothing if near-duplicate 
+     * detection is off.
+     *
+     * @param title the normalized title
+     * @param match check whether a near-duplicate of the title was added before
+     * @return false if a near-duplicate was found, true otherwise
+     */
+    public boolean addTitle(String title, boolean match) {
+        if (fuzzyTitles == null || title.isEmpty()) return true;
+
+        if (match && fuzzyTitles.containsNear(title)) return false;
+
+        fuzzyTitles.add(title);
+
+        return true;
+    }
+
+    /**
+     * Restores a key that was journaled in an earlier run, including the titles registered for
+     * near-duplicate detection
+     *
+     * @param key
+     */
+    public void restore(String key) {
+        if (key.startsWith(FUZZY_PREFIX))
+            addTitle(key.substring(FUZZY_PREFIX.length()), false);
+        else if (key.startsWith(STORED_PREFIX))
+            addStored(key.substring(STORED_PREFIX.length()));
+        else
+            add(key);
+    }
+
+    public int size() {
+        return fingerprints.size();
+    }
+
+    /**
+     * The key of an industry identifier: the canonical ISBN-13 if the identifier is a valid 
+     * ISBN-10 or ISBN-13, the upper-cased identifier otherwise
+     *
+     * @param identifier
+     * @return the key, or {@code null} if the identifier is empty
+     */
+    public static String identifierKey(String identifier) {
+        if (identifier == null || identifier.trim().isEmpty()) return null;
+
+        String isbn13 = toIsbn13(identifier);
+
+        return (isbn13 != null) ? ISBN_PREFIX + isbn13 : ID_PREFIX + identifier.trim().toUpperCase();
+    }
+
+    /**
+     * The key of a volume without an industry identifier, i.e. its normalized title
+     *
+     * @param title
+     * @return the key, or {@code null} if the title is empty
+     */
+    public static String titleKey(String title) {
+        String normalized = normalizeTitle(title);
+
+        return normalized.isEmpty() ? null : TITLE_PREFIX + normalized;
+    }
+
+    /**
+     * Lower-cases the title and reduces any run of characters that are not letters or digits to 
+     * a single space
+     *
+     * @param title the title, or {@code null}
+     * @return the normalized title, empty if there is none
+     */
+    public static String normalizeTitle(String title) {
+        if (title == null) return "";
+
+        StringBuilder sb = new StringBuilder(title.length());
+        boolean space = false;
+
+        for (int i = 0; i < title.length(); i++) {
+            char c = title.charAt(i);
+
+            if (Character.isLetterOrDigit(c)) {
+                if (space && sb.length() > 0) sb.append(' ');
+
+                sb.append(Character.toLowerCase(c));
+                space = false;
+            }
+            else
+                space = true;
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Converts an ISBN-10 or ISBN-13, with or without hyphens or spaces, to the canonical ISBN-13
+     *
+     * @param identifier
+     * @return the ISBN-13, or {@code null} if the identifier is not a valid ISBN
+     */
+    static String toIsbn13(String identifier) {
+        StringBuilder digits = new StringBuilder(13);
+
+        for (int i = 0; i < identifier.length(); i++) {
+            char c = identifier.charAt(i);
+
+            if (c >= '0' && c <= '9')
+                digits.append(c);
+            else if (c == 'X' || c == 'x')
+                digits.append('X');
+            else if (c != '-' && c != ' ')
+                return null;
+        }
+
+        if (digits.length() == 10) {
+            int sum = 0;
+
+            for (int i = 0; i < 10; i++) {
+                char c = digits.charAt(i);
+
+                if (c == 'X' && i < 9) return null;
+
+                sum += (10 - i) * ((c == 'X') ? 10 : c - '0');
+            }
+
+            if (sum % 11 != 0) return null;
+
+            String isbn13 = "978" + digits.substring(0, 9);
+
+            return isbn13 + isbn13CheckDigit(isbn13);
+        }
+
+        if (digits.length() == 13 && digits.indexOf("X") < 0) {
+            String isbn13 = digits.toString();
+
+            if ((isbn13.startsWith("978") || isbn13.startsWith("979")) && isbn13.charAt(12) - '0' == isbn13CheckDigit(isbn13))
+                return isbn13;
+        }
+
+        return null;
+    }
+
+    private static int isbn13CheckDigit(String digits) {
+        int sum = 0;
+
+        for (int i = 0; i < 12; i++)
+            sum += ((i % 2 == 0) ? 1 : 3) * (digits.charAt(i) - '0');
+
+        return (10 - sum % 10) % 10;
+    }
+
+    /**
+     * A 64-bit fingerprint of the key: FNV-1a over the characters, followed by the MurmurHash3 
+     * finalizer to spread the bits
+     *
+     * @param key
+     * @return the fingerprint
+     */
+    public static long fingerprint(String key) {
+        long h = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            h = (h ^ (c & 0xff)) * 0x100000001b3L;
+            h = (h ^ (c >>> 8)) * 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+}
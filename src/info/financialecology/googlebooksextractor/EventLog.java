@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+
+/**
+ * A structured log of the events of a run, written asynchronously to a JSON Lines file with one
+ * compact object per event, e.g.
+ * <pre>
+ *   {"event":"pageFetched","time":1392829415123,"query":"risk + bank","page":2,"volumes":40,"totalItems":571}
+ *   {"event":"duplicate","time":1392829415125,"query":"risk + bank","id":"9780262013192","title":"...","reason":"identifier"}
+ * </pre>
+ * The events are: a query is started, a page is fetched, and a volume is stored, removed as a 
+ * duplicate or rejected by the filters. They replace the per-volume and per-page trace logging,
+ * which formatted strings on the hot path.
+ * <p>
+ * Recording an event only copies its fields into a preallocated slot of a ring buffer; the events
+ * are formatted and written by a background thread. Any number of threads can record events: a
+ * slot is claimed by advancing a sequence counter and published by writing its sequence number,
+ * which the writer thread waits for. When the buffer is full, e.g. because the disk can't keep up,
+ * events are dropped rather than slowing down the run, and counted.
+ * <p>
+ * Each event type can be sampled, e.g. a sampling of 0.01 for 'volumeStored' logs one in 100 
+ * stored volumes. The sampling is deterministic, every n-th event of the type is logged.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class EventLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventLog.class.getSimpleName());
+
+    // Event types
+    public static final int QUERY_STARTED = 0;
+    public static final int PAGE_FETCHED  = 1;
+    public static final int VOLUME_STORED = 2;
+    public static final int DUPLICATE     = 3;
+    public static final int FILTERED      = 4;
+
+    private static final String[] EVENT_NAMES = {"queryStarted", "pageFetched", "volumeStored", "duplicate", "filtered"};
+
+    // Reasons for duplicates
+    public static final String BY_IDENTIFIER = "identifier";
+    public static final String BY_TITLE      = "title";
+    public static final String BY_NEAR_TITLE = "nearTitle";
+
+    private static final int DEFAULT_CAPACITY = 1 << 16;        // slots of the ring buffer
+    private static final long IDLE_NANOS = 1000000;             // the time the writer waits when there are no events
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final String fileName;
+    private final Event[] ring;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();       // the sequence of the next slot to be claimed
+    private volatile long consumed = 0;                     // the sequence of the next slot to be written
+    private final long[] sampleIntervals = new long[EVENT_NAMES.length];    // log one in n events, 0 means none
+    private final AtomicLong[] counts = new AtomicLong[EVENT_NAMES.length]; // events per type, before sampling
+    private final AtomicLong dropped = new AtomicLong();
+    private final JsonGenerator g;
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private volatile boolean failed = false;                // the file couldn't be written
+    private long written = 0;
+
+    /**
+     * Opens the file and starts the writer thread
+     *
+     * @param fileName the JSON Lines file
+     * @param sampling the share of the events of a type that are logged (0..1), by event name, e.g. 
+     *                 'volumeStored'. All events of the types that aren't given are logged.
+     * @param capacity the number of events the buffer holds, rounded up to a power of 2
+     * @throws IOException if the file can't be opened
+     */
+    public EventLog(String fileName, Map<String, Double> sampling, int capacity) throws IOException {
+        this.fileName = fileName;
+
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        ring = new Event[size];
+        mask = size - 1;
+
+        for (int i = 0; i < size; i++)
+            ring[i] = new Event();
+
+        for (int type = 0; type < EVENT_NAMES.length; type++) {
+            Double share = (sampling != null) ? sampling.get(EVENT_NAMES[type]) : null;
+            sampleIntervals[type] = (share == null) ? 1 : (share <= 0) ? 0 : Math.max(1, Math.round(1 / share));
+            counts[type] = new AtomicLong();
+        }
+
+        g = jsonFactory.createJsonGenerator(ResultWriterFactory.newBufferedWriter(fileName, false, false));
+        g.setPrettyPrinter(new MinimalPrettyPrinter("\n"));    // one object per line
+
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Creates the event log with the sampling in the parameter file
+     *
+     * @param fileName
+     * @param params
+     * @return the event log
+     * @throws IOException if the file can't be opened
+     */
+    public static EventLog newInstance(String fileName, GoogleBooksExtractorParams params) throws IOException {
+        return new EventLog(fileName, params.eventSampling, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * The type of an event name, e.g. 'volumeStored'
+     *
+     * @param name
+     * @return the type, or -1 if there is no such event
+     */
+    public static int eventType(String name) {
+        for (int type = 0; type < EVENT_NAMES.length; type++)
+            if (EVENT_NAMES[type].equals(name)) return type;
+
+        return -1;
+    }
+
+    public void queryStarted(String query) {
+        record(QUERY_STARTED, query, 0, 0, 0, null, null, null);
+    }
+
+    /**
+     * @param query
+     * @param page the index of the page, starting at 0
+     * @param volumes the number of volumes on the page
+     * @param totalItems the total number of matches reported by Google Books
+     */
+    public void pageFetched(String query, int page, int volumes, int totalItems) {
+        record(PAGE_FETCHED, query, page, volumes, totalItems, null, null, null);
+    }
+
+    public void volumeStored(String query, String bookId, String title) {
+        record(VOLUME_STORED, query, 0, 0, 0, bookId, title, null);
+    }
+
+    /**
+     * @param query
+     * @param bookId
+     * @param title
+     * @param reason the key the duplicate was found by: {@code BY_IDENTIFIER}, {@code BY_TITLE} 
+     *               or {@code BY_NEAR_TITLE}
+     */
+    public void duplicate(String query, String bookId, String title, String reason) {
+        record(DUPLICATE, query, 0, 0, 0, bookId, title, reason);
+    }
+
+    public void filtered(String query, String bookId, String title) {
+        record(FILTERED, query, 0, 0, 0, bookId, title, null);
+    }
+
+    /**
+     * Writes the remaining events, stops the writer thread and closes the file
+     */
+    public void close() {
+        if (closed) return;
+
+        closed = true;
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            g.close();
+        } catch (IOException e) {
+            logger.error("Cannot close event log {}: {}", fileName, e.getMessage());
+        }
+
+        long recorded = 0;
+
+        for (AtomicLong count : counts)
+            recorded += count.get();
+
+        logger.debug("Event log {}: {} events, {} written, {} dropped", new Object[] {fileName, recorded, written, dropped.get()});
+    }
+
+    /**
+     * The number of events dropped because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Claims a slot, copies the fields of the event and publishes the slot
+     */
+    private void record(int type, String query, int page, int volumes, int totalItems, String bookId, String title, String reason) {
+        if (closed || failed) return;
+
+        long interval = sampleIntervals[type];
+        long n = counts[type].getAndIncrement();
+
+        if (interval == 0 || n % interval != 0) return;
+
+        long seq;
+
+        do {
+            seq = next.get();
+
+            if (seq - consumed >= ring.length) {     // the writer can't keep up
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!next.compareAndSet(seq, seq + 1));
+
+        Event e = ring[(int) seq & mask];
+        e.type = type;
+        e.time = System.currentTimeMillis();
+        e.query = query;
+        e.page = page;
+        e.volumes = volumes;
+        e.totalItems = totalItems;
+        e.bookId = bookId;
+        e.title = title;
+        e.reason = reason;
+        e.sequence = seq;       // publishes the event
+    }
+
+    /**
+     * The loop of the writer thread, which writes the events in the order of their sequence until 
+     * the log is closed and all claimed events are written
+     */
+    private void write() {
+        boolean dirty = false;
+
+        try {
+            while (true) {
+                Event e = ring[(int) consumed & mask];
+
+                if (e.sequence != consumed) {
+                    if (closed && next.get() == consumed) break;
+
+                    if (dirty) {
+                        g.flush();
+                        dirty = false;
+                    }
+
+                    LockSupport.parkNanos(IDLE_NANOS);
+                    continue;
+                }
+
+                writeEvent(e);
+                e.query = e.bookId = e.title = null;    // the strings of the volumes can be collected
+                written++;
+                dirty = true;
+                consumed++;     // frees the slot, only the writer thread writes it
+            }
+
+            g.flush();
+        } catch (IOException e) {
+            logger.error("Cannot write event log {}: {}", fileName, e.getMessage());
+            failed = true;
+        }
+    }
+
+    private void writeEvent(Event e) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("event", EVENT_NAMES[e.type]);
+        g.writeNumberField("time", e.time);
+        g.writeStringField("query", e.query);
+
+        if (e.type == PAGE_FETCHED) {
+            g.writeNumberField("page", e.page);
+            g.writeNumberField("volumes", e.volumes);
+            g.writeNumberField("totalItems", e.totalItems);
+        }
+        else if (e.type != QUERY_STARTED) {
+            g.writeStringField("id", e.bookId);
+            g.writeStringField("title", e.title);
+
+            if (e.reason != null) g.writeStringField("reason", e.reason);
+        }
+
+        g.writeEndObject();
+    }
+
+    /**
+     * A slot of the ring buffer
+     */
+    private static class Event {
+        volatile long sequence = -1;    // the sequence of the event in the slot, written last
+        int type;
+        long time;
+        String query;
+        int page;
+        int volumes;
+        int totalItems;
+        String bookId;
+        String title;
+        String reason;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.File;
+
+/**
+ * The input of a run of the {@link ExtractionEngine}: the parameters, the name of the run, from
+ * which the names of the output files are derived, the output directory, and whether the run 
+ * resumes an interrupted run, refreshes an earlier run, is re-run offline from the response archive 
+ * or is only a dry run. A listener can be set to follow the progress of the run.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ExtractionContext {
+
+    private final String name;
+    private final GoogleBooksExtractorParams params;
+    private final String outputDir;
+    private final boolean resume;
+    private final boolean dryRun;
+    private final boolean refresh;
+    private final boolean offline;
+    private ExtractionListener listener = null;
+
+    /**
+     * Constructor
+     *
+     * @param name the name of the run, e.g. 'books' for the output file 'books.csv'
+     * @param params
+     * @param outputDir the output directory, ending with a separator, or {@code null} to keep the 
+     *                  stored volumes in memory only
+     */
+    public ExtractionContext(String name, GoogleBooksExtractorParams params, String outputDir) {
+        this(name, params, outputDir, false, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name the name of the run, e.g. 'books' for the output file 'books.csv'
+     * @param params
+     * @param outputDir the output directory, ending with a separator, or {@code null} to keep the 
+     *                  stored volumes in memory only
+     * @param resume resume an interrupted run from its journal
+     * @param dryRun only estimate the cost of the run, without sending queries
+     */
+    public ExtractionContext(String name, GoogleBooksExtractorParams params, String outputDir, boolean resume, boolean dryRun) {
+        this(name, params, outputDir, resume, dryRun, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name the name of the run, e.g. 'books' for the output file 'books.csv'
+     * @param params
+     * @param outputDir the output directory, ending with a separator, or {@code null} to keep the 
+     *                  stored volumes in memory only
+     * @param resume resume an interrupted run from its journal
+     * @param dryRun only estimate the cost of the run, without sending queries
+     * @param refresh only fetch the volumes that are new since the earlier runs, see {@link RefreshState}
+     */
+    public ExtractionContext(String name, GoogleBooksExtractorParams params, String outputDir, boolean resume, boolean dryRun, 
+            boolean refresh) {
+        this(name, params, outputDir, resume, dryRun, refresh, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name the name of the run, e.g. 'books' for the output file 'books.csv'
+     * @param params
+     * @param outputDir the output directory, ending with a separator, or {@code null} to keep the 
+     *                  stored volumes in memory only
+     * @param resume resume an interrupted run from its journal
+     * @param dryRun only estimate the cost of the run, without sending queries
+     * @param refresh only fetch the volumes that are new since the earlier runs, see {@link RefreshState}
+     * @param offline read the responses from the response archive instead of Google Books, see 
+     *                {@link ResponseArchive}
+     */
+    public ExtractionContext(String name, GoogleBooksExtractorParams params, String outputDir, boolean resume, boolean dryRun, 
+            boolean refresh, boolean offline) {
+        this.name = name;
+        this.params = params;
+        this.outputDir = outputDir;
+        this.resume = resume;
+        this.dryRun = dryRun;
+        this.refresh = refresh;
+        this.offline = offline;
+    }
+
+    /**
+     * The name of the run for a parameter file: the file name without the path and the extension
+     *
+     * @param paramFile
+     * @return the name
+     */
+    public static String runName(String paramFile) {
+        String fileName = new File(paramFile.replace('\\', '/')).getName();     // path name with backslashes (when running from MS-DOS)
+
+        return fileName.split("\\.")[0];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public GoogleBooksExtractorParams getParams() {
+        return params;
+    }
+
+    public String getOutputDir() {
+        return outputDir;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public boolean isRefresh() {
+        return refresh;
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * Sets the listener that receives the progress of the run
+     *
+     * @param listener
+     */
+    public void setListener(ExtractionListener listener) {
+        this.listener = listener;
+    }
+
+    public ExtractionListener getListener() {
+        return listener;
+    }
+}
@@ -0,0 +1,850 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Logger;
+
+/**
+ * The extraction engine, which runs the queries of a parameter file against Google Books and 
+ * returns the stored volumes and the statistics of the run. The engine holds the resources that
+ * are costly to set up and can be shared by many runs: the pooled client with its response cache
+ * and quota governor, and the worker threads that fetch the pages of the queries. All other state
+ * of a run is kept in the run, so that an engine can run any number of parameter files in one 
+ * JVM, one after another or from several threads at the same time. For example:
+ * <pre>
+ *   ExtractionEngine engine = ExtractionEngine.newInstance(params, apiKey);
+ *   
+ *   try {
+ *       ExtractionResult result = engine.run(new ExtractionContext("books", params, "./out/"));
+ *       VolumeStore volumes = result.getVolumes();
+ *       ...
+ *   } finally {
+ *       engine.close();
+ *   }
+ * </pre>
+ * The connection, cache, archive and quota settings are those of the parameters the engine is 
+ * created with. The other settings, e.g. the queries, filters, concurrency and output, are those of the 
+ * parameters of each run.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ExtractionEngine {
+
+    // Misc parameters
+    private static int maxResults = 40;         // maximum number of results returned by the Google Books API (40 is the maximum allowed)
+    private static int maxTotalResults = 1000;  // approx. maximum number of volumes Google Books returns for a query, over all pages
+
+    // Loggers of the methods on the hot path, looked up once rather than on every call
+    private static final Logger taskLogger  = (Logger)LoggerFactory.getLogger("QueryTask");
+    private static final Logger storeLogger = (Logger)LoggerFactory.getLogger("storeBooks");
+
+    private final BooksClient client;
+    private final ExecutorService executor;
+    private final int offlineThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService offlineExecutor = null;    // reads the pages of offline runs, created with the first one
+
+    /**
+     * Constructor
+     *
+     * @param client the client shared by all runs
+     * @param threads the number of worker threads fetching pages, shared by all runs
+     */
+    public ExtractionEngine(BooksClient client, int threads) {
+        this.client = client;
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Creates the engine from the connection, cache and quota settings in the parameter file, 
+     * with one worker thread per parallel query
+     *
+     * @param params
+     * @param apiKey
+     * @return the engine
+     */
+    public static ExtractionEngine newInstance(GoogleBooksExtractorParams params, String apiKey) {
+        BooksClient client = BooksClient.newInstance(params, apiKey);
+        client.setResponseCache(ResponseCache.newInstance(params));
+        client.setResponseArchive(ResponseArchive.newInstance(params));
+        client.setQuotaGovernor(QuotaGovernor.newInstance(params));
+
+        return new ExtractionEngine(client, params.concurrency);
+    }
+
+    /**
+     * Runs the queries of a parameter file and stores the volumes they return:
+     *     - Determine whether simple search or a term cluster search
+     *     - For each term or term combination
+     *         - build the query string
+     *         - get the volumes (books) using the query, up to the maximum number of paginations
+     *         - remove duplicates and store the volumes
+     *     - Write the stored volumes and the run metrics, if an output directory is given
+     *     - In refresh mode, merge the new volumes into the output of the earlier runs
+     *     - In offline mode, the pages are read from the response archive instead of Google Books
+     *
+     * @param context the parameters, the name and the output directory of the run
+     * @return the stored volumes and the statistics of the run
+     * @throws IllegalArgumentException if the parameters or the mode of the run are not valid
+     * @throws IllegalStateException if the run cannot be resumed from its journal
+     * @throws Exception
+     */
+    public ExtractionResult run(ExtractionContext context) throws Exception {
+        Logger logger = (Logger)LoggerFactory.getLogger("run");
+        GoogleBooksExtractorParams params = context.getParams();
+        String outputDir = context.getOutputDir();
+        String fileNameStripped = context.getName();
+
+        logger.debug("\n\nSTART PROCESSING GOOGLE BOOKS METADATA [{}]\n", fileNameStripped);
+
+        // Validate parameters
+        GoogleBooksExtractorParams.validate(params, Assertion.Level.EXCEPTION);
+
+        // Extract book volumes from Google Books for all inter-cluster term combinations
+        Set<String> clusterNames = params.clusters.keySet();
+        ArrayList<String> clusterNameList = new ArrayList<String>(clusterNames);
+        ArrayList<ArrayList<String>> clusters = new ArrayList<ArrayList<String>>();
+
+        for (String clusterName : clusterNameList)
+            clusters.add(params.clusters.get(clusterName));
+
+        logger.trace("Term clusters: {}", params.clusters);
+
+        int numClusters = clusterNameList.size();
+
+        /*
+         * Combine one term from each of 'clusterArity' clusters, e.g. pairs of terms for the default 
+         * arity of 2. With a single cluster, its terms are the queries. The queries are generated 
+         * lazily, so the cartesian product of the clusters is never held in memory.
+         */
+        ClusterCombinations combinations = new ClusterCombinations(clusters, Math.min(params.clusterArity, numClusters));
+
+        /*
+         * Plan the queries before sending any request: queries that are equivalent to an earlier 
+         * query (same terms in a different order, repeated terms, different case) are dropped
+         */
+        QueryPlan plan = new QueryPlan(combinations);
+        long totalTermCombinations = plan.getCandidateCount();
+
+        logger.debug("\n\nQUERY PLAN: {} term combinations of {} clusters, {} equivalent queries dropped, {} queries\n", 
+                new Object[] {totalTermCombinations, combinations.getArity(), plan.getPrunedCount(), plan.size()});
+
+        logCostEstimate(plan, params);
+
+        // Metrics of the requests and volumes, exported during the run if configured and reported at the end
+        RunMetrics metrics = new RunMetrics();
+        metrics.setQueriesPlanned(plan.size());
+
+        if (context.isDryRun()) {
+            logger.debug("\n\nDRY RUN - no queries sent\n");
+            metrics.finish();
+            return new ExtractionResult(context, null, new ExtractionState(), metrics, plan.size(), null);
+        }
+
+        /*
+         * Run the queries. The pages of each query are fetched by the worker threads of the engine, but 
+         * the volumes are stored strictly in the order of the query plan, so that duplicate removal, the 
+         * row order and the logged search information are the same as for a sequential run. At most 
+         * 2 x concurrency queries are in flight, which bounds the number of pages held in memory.
+         */
+        int concurrency = params.concurrency;
+        logger.trace("Running {} queries with concurrency {}", plan.size(), concurrency);
+
+        /*
+         * In streaming mode the stored volumes are written to the output file as they come in, rather 
+         * than being kept in memory until the end of the run. Each stored page is then checkpointed
+         * in the run journal, so that an interrupted run can be resumed with --resume.
+         */
+        String fileExtension = ResultWriterFactory.fileExtension(params.outputFormat, params.compressOutput);
+        boolean refresh = context.isRefresh();
+        String outputName = refresh ? fileNameStripped + ".delta" : fileNameStripped;     // a refresh writes the new volumes to the delta file
+        String outputFile = (outputDir != null) ? outputDir + outputName + fileExtension : null;
+        VolumeWriter streamWriter = null;
+        RunJournal journal = null;
+        boolean resume = context.isResume();
+
+        Assertion.assertStrict(!resume || (outputFile != null && params.streamOutput), Assertion.Level.EXCEPTION, 
+                "Resuming a run requires an output file (-o) and streamed output");
+        Assertion.assertStrict(!resume || !params.compressOutput, Assertion.Level.EXCEPTION, 
+                "Resuming a run requires uncompressed output");
+        Assertion.assertStrict(!resume || params.outputShards == 1, Assertion.Level.EXCEPTION, 
+                "Resuming a run requires a single output file");
+        Assertion.assertStrict(!refresh || (outputFile != null && !resume), Assertion.Level.EXCEPTION, 
+                "A refresh requires an output file (-o) and cannot be resumed");
+        Assertion.assertStrict(!refresh || (params.outputShards == 1 && !params.newVolumesOnly), Assertion.Level.EXCEPTION, 
+                "A refresh requires a single output file and cannot be combined with newVolumesOnly");
+
+        /*
+         * An offline run reads the pages from the response archive rather than from Google Books. The pages
+         * are read, inflated and parsed by one worker thread per core, while the volumes are deduplicated, 
+         * filtered and written in the order of the query plan as in an online run, so that re-running an 
+         * archived run with the same parameters gives the same output.
+         */
+        boolean offline = context.isOffline();
+        ResponseArchive archive = offline ? client.getResponseArchive() : null;
+
+        Assertion.assertStrict(!offline || archive != null, Assertion.Level.EXCEPTION, 
+                "An offline run requires a response archive (archiveDir)");
+        Assertion.assertStrict(!offline || !refresh, Assertion.Level.EXCEPTION, 
+                "A refresh cannot be run offline");
+
+        ExecutorService workers = offline ? offlineExecutor() : executor;
+        int window = 2 * (offline ? offlineThreads : concurrency);
+
+        if (offline)
+            logger.debug("\n\nOFFLINE RUN: {} responses in the archive, read by {} threads\n", archive.size(), offlineThreads);
+
+        /*
+         * A refresh only stores the volumes that are new since the earlier runs of the parameter file,
+         * and stops paginating a query at the first page of known volumes, see RefreshState
+         */
+        RefreshState refreshState = null;
+
+        if (refresh) {
+            refreshState = new RefreshState(outputDir + fileNameStripped + fileExtension, outputFile, 
+                    outputDir + fileNameStripped + ".known", params);
+            logger.debug("\n\nREFRESH: {} books known from earlier runs\n", refreshState.getKnown().size());
+        }
+
+        if ((outputFile != null) && params.streamOutput) {
+            if (params.outputShards == 1) {    // part files can't be checkpointed by their length
+                journal = new RunJournal(outputDir + outputName + ".journal", resume);
+
+                if (journal.isComplete()) {
+                    journal.close();
+                    throw new IllegalStateException("The run " + fileNameStripped + " is complete, there is nothing to resume");
+                }
+
+                if (resume)    // remove the rows written after the last checkpoint
+                    truncateFile(outputFile, journal.getOutputLength());
+            }
+
+            logger.debug("\n\nStreaming results to file: {}\n", outputFile);
+            streamWriter = ResultWriterFactory.newWriter(outputFile, params, resume);
+        }
+
+        DedupIndex dedup = new DedupIndex(params.fuzzyTitleThreshold);
+
+        if (refresh) dedup.setGlobalIndex(refreshState.getKnown());     // known volumes are duplicates
+
+        ExtractionState state = new ExtractionState(streamWriter, dedup);
+
+        if (resume) {
+            state.resumeFrom(journal, journal.getRetainedSoFarTotal());
+            logger.debug("\n\nRESUMING RUN: {} of {} queries completed, {} volumes stored\n", 
+                    new Object[] {journal.getCompletedQueryCount(), plan.size(), state.getStoredVolCounter()});
+        }
+
+        state.setJournal(journal);
+
+        FilterEngine filter = new FilterEngine(params.filters);
+        LinkedList<QueryResult> inFlight = new LinkedList<QueryResult>();
+        Iterator<String> plannedQueries = plan.iterator();
+        int nextQuery = 0;     // the index of the next query of the plan
+        String quotaExhausted = null;
+        int incompleteQueries = 0;    // the queries stopped by the daily quota
+        int notArchived = 0;    // the queries with pages missing from the archive, in an offline run
+        MetricsExporter exporter = MetricsExporter.newInstance(params, metrics);
+
+        /*
+         * The events of the run, i.e. the queries, the pages and what happened to each volume, are 
+         * written to a JSON Lines file by a background thread, see EventLog
+         */
+        EventLog eventLog = ((outputDir != null) && params.eventLog) 
+                ? EventLog.newInstance(outputDir + fileNameStripped + ".events.jsonl", params) : null;
+        state.setEventLog(eventLog);
+
+        /*
+         * The global dedup index holds the books stored in earlier runs. The books stored in this run
+         * are added to it at the end. Only in new-only mode is the index read, so that the books of 
+         * earlier runs are not stored again.
+         */
+        GlobalDedupIndex globalDedup = params.newVolumesOnly ? new GlobalDedupIndex(params.globalDedupFile) : null;
+        if (globalDedup != null) dedup.setGlobalIndex(globalDedup);
+
+        try {
+            while (true) {
+                // Submit queries until the window is full, skipping the queries completed before resuming
+                while (quotaExhausted == null && plannedQueries.hasNext() && inFlight.size() < window) {
+                    int next = nextQuery++;
+                    String nextQueryString = plannedQueries.next();
+                    String completed = (journal != null) ? journal.getCompletedQuery(next) : null;
+
+                    if (completed != null) {
+                        if (!completed.equals(nextQueryString))
+                            throw new IllegalStateException("The queries differ from those of the interrupted run, the parameter file has changed");
+
+                        continue;
+                    }
+
+                    int nextStartPage = (journal != null) ? journal.getPagesDone(next) : 0;
+                    QueryResult pages = new QueryResult(next, nextQueryString, nextStartPage);
+                    pages.future = workers.submit(new QueryTask(client, archive, metrics, nextQueryString, nextStartPage, params.paginations, 
+                            refreshState, eventLog, pages));
+                    inFlight.add(pages);
+                }
+
+                if (inFlight.isEmpty()) break;
+
+                QueryResult result = inFlight.removeFirst();
+                int q = result.index;
+                String query = result.query;
+                int startPage = result.startPage;
+
+                int retainedVolCounter = (journal != null) ? journal.getRetainedSoFar(q) : 0;
+                int retainedBefore = retainedVolCounter;
+                int returnedBefore = state.getTotalVolCounter();
+                int duplicatesBefore = state.getDuplicateCounter();
+                int filteredBefore = state.getFilteredCounter();
+
+                VolumePage volumes;
+
+                for (int page = 0; (volumes = result.nextPage()) != null; page++) {    // the task fetches the next page meanwhile
+                    retainedVolCounter += storeBooks(filter, volumes, query, state);
+                    state.addReturnedVolumes(volumes.getRows().size());
+
+                    // Checkpoint: the rows of the page are in the output file before the page is journaled
+                    if (journal != null) {
+                        if (!streamWriter.flush())     // the page isn't journaled, so that a resumed run fetches it again
+                            throw new IOException("Cannot write the output file " + outputFile + ", the run can be resumed from the last checkpoint");
+
+                        journal.recordPage(q, startPage + page, volumes.getRows().size(), retainedVolCounter, 
+                                state.getStoredVolCounter(), new File(outputFile).length());
+                    }
+                }
+
+                result.future.get();   // rethrows the error if the task failed
+
+                if (result.notArchived) {
+                    notArchived++;
+                    logger.warn("Pages of query [{}] are missing from the response archive", query);
+                }
+
+                // Volume information
+                ArrayList<String> logInfo = state.logQuery(query, retainedVolCounter);
+                metrics.recordQuery(query, state.getTotalVolCounter() - returnedBefore, retainedVolCounter - retainedBefore, 
+                        state.getDuplicateCounter() - duplicatesBefore, state.getFilteredCounter() - filteredBefore);
+
+                logger.debug("Logged query: [query, totalVol, retainedVol, start index in the stored volumes] {}", logInfo);
+
+                if (context.getListener() != null)
+                    context.getListener().queryCompleted(context, query, q + 1, plan.size(), state.getStoredVolCounter(), state.getTotalVolCounter());
+
+                /*
+                 * Stop cleanly when the daily quota is used up: no further queries are submitted, but the 
+                 * pages already fetched by the queries in flight are still stored and journaled, so that
+                 * the requests spent on them aren't lost. These queries are resumed from their stored pages.
+                 */
+                if (result.quotaExhausted != null) {
+                    if (quotaExhausted == null) {
+                        quotaExhausted = result.quotaExhausted;
+                        logger.error("\n\n### QUOTA EXHAUSTED ### {} - stopping in query [{}], storing the pages of the {} queries in flight\n", 
+                                new Object[] {result.quotaExhausted, query, inFlight.size()});
+                    }
+
+                    incompleteQueries++;
+                    continue;
+                }
+
+                if (journal != null) journal.recordQuery(q, logInfo);
+            }
+
+            if (journal != null && quotaExhausted == null) journal.recordDone();
+        } finally {
+            for (QueryResult result : inFlight)     // the worker threads are shared with other runs
+                result.future.cancel(true);
+
+            metrics.finish();
+
+            if (exporter != null) exporter.stop();     // writes the final metrics
+            if (eventLog != null) eventLog.close();     // writes the remaining events
+            if (globalDedup != null) globalDedup.close();
+
+            if (streamWriter != null) streamWriter.close();    // also writes the rows of an interrupted run
+            if (journal != null) journal.close();
+        }
+
+        if (quotaExhausted != null)
+            logger.error("\n\n### QUOTA EXHAUSTED ### {} of {} queries not run, {} queries incomplete. Continue with --resume\n", 
+                    new Object[] {plan.size() - nextQuery, plan.size(), incompleteQueries});
+
+        if (params.globalDedupFile != null) GlobalDedupIndex.merge(params.globalDedupFile, dedup.getStoredFingerprints());
+
+        logger.debug("Requests to Google Books today: {}", client.getQuotaGovernor().getRequestsToday());
+
+        if (client.getResponseCache() != null)
+            logger.debug("Response cache: {} hits, {} misses", client.getResponseCache().getHits(), client.getResponseCache().getMisses());
+
+        if (offline)
+            logger.debug("\n\nOFFLINE RUN: {} of {} queries with pages missing from the response archive\n", notArchived, plan.size());
+        else if (client.getResponseArchive() != null)
+            logger.debug("Response archive: {} responses, {} appended", client.getResponseArchive().size(), client.getResponseArchive().getAppended());
+
+        if (numClusters == 1)   // only one cluster was provided
+            logger.debug("\n\nPROCESSED {} CLUSTER TERMS\n", totalTermCombinations);
+        else
+            logger.debug("\n\nPROCESSED {} TERM COMBINATIONS FROM {} CLUSTERS\n", totalTermCombinations, clusterNameList.size());
+
+        VolumeStore volumes = state.getVolumes();
+
+        /*
+         *  Write the stored volumes to the output file
+         */
+        if ((outputFile != null) && (volumes.size() != 0)) {
+            logger.debug("\n\nWriting results to file: {}\n", outputFile);
+            VolumeWriter writer = ResultWriterFactory.newWriter(outputFile, params, false);
+            writer.writeVolumes(volumes.iterator());
+            writer.close();
+        }
+
+        String resultFile = outputFile;
+
+        if (refresh) {
+            resultFile = outputDir + fileNameStripped + fileExtension;
+            int merged = refreshState.finish(dedup.getFingerprints(), params);
+            logger.debug("\n\nREFRESH: {} new volumes, {} volumes in {}, {} of {} queries stopped at a page of known volumes\n", 
+                    new Object[] {state.getStoredVolCounter(), merged, resultFile, refreshState.getStoppedQueries(), plan.size()});
+        }
+
+        logger.debug("\n\nFINISHED PROCESSING GOOGLE BOOKS METADATA [{}]\n", fileNameStripped);
+        logger.debug("Requests: {}, pages: {}, request latency p50: {} s, p99: {} s", new Object[] {metrics.getRequests(), metrics.getPages(), 
+                String.format("%.3f", metrics.getLatencyPercentile(0.5)), String.format("%.3f", metrics.getLatencyPercentile(0.99))});
+
+        if ((outputFile != null) && params.metricsReport) {
+            String reportFile = outputDir + fileNameStripped + ".metrics.json";
+            logger.debug("Writing run metrics to: {}", reportFile);
+            metrics.writeJson(reportFile);
+        }
+
+        logger.debug("Total number of volumes returned by Google Books API: {}", state.getTotalVolCounter());
+        logger.debug("Total number of volumes stored: {}", state.getStoredVolCounter());
+
+        if (state.getStoredVolCounter() == 0 && !refresh && !offline) {    // a refresh often has no new volumes
+            logger.debug("\n\n### IMPORTANT ### Google Books has returned no results, which can mean "
+                    + "that your API key has not been set\n");
+        }
+
+        return new ExtractionResult(context, resultFile, state, metrics, plan.size(), quotaExhausted);
+    }
+
+    public BooksClient getClient() {
+        return client;
+    }
+
+    /**
+     * Stops the worker threads and closes the pooled connections. The engine cannot be used 
+     * afterwards.
+     */
+    public void close() {
+        executor.shutdownNow();
+
+        synchronized (this) {
+            if (offlineExecutor != null) offlineExecutor.shutdownNow();
+        }
+
+        if (client.getResponseArchive() != null) client.getResponseArchive().close();
+
+        client.shutdown();
+    }
+
+    /**
+     * The worker threads of offline runs, one per core, since reading archived pages is bound by
+     * inflating and parsing them rather than by the network
+     */
+    private synchronized ExecutorService offlineExecutor() {
+        if (offlineExecutor == null)
+            offlineExecutor = Executors.newFixedThreadPool(offlineThreads);
+
+        return offlineExecutor;
+    }
+
+    /**
+     * Fetches the pages of a single query, up to the maximum number of paginations. The task only
+     * talks to Google Books and does not touch the extraction state, so that several queries can
+     * be fetched in parallel, also for different runs. Each page is handed to the main thread as soon as it arrives, so
+     * that the next page is fetched while the current one is being filtered and stored.
+     * <p>
+     * The number of pages is planned from the {@code totalItems} reported with each page, capped
+     * by the maximum number of paginations and by the ~1000 volumes that Google Books returns for
+     * a query, so that no requests are sent for pages beyond the end. Pagination also stops at the
+     * first page for which no volumes are returned. If a request fails, the error is printed and
+     * the previous page is kept, as in the original sequential loop. If the daily quota is used
+     * up, the task ends after the pages fetched so far. When resuming a run, the task starts at
+     * the first page that wasn't stored before. When refreshing a run, the newest volumes are 
+     * fetched first and pagination stops after the first page that only holds known volumes.
+     * In an offline run, the pages are read from the response archive, and pagination stops at 
+     * the first page that isn't archived.
+     */
+    private static class QueryTask implements Callable<Void> {
+        private final BooksClient client;
+        private final ResponseArchive archive;  // null unless the run is offline
+        private final RunMetrics metrics;
+        private final String query;
+        private final int startPage;
+        private final int paginations;
+        private final RefreshState refresh;     // null unless refreshing a run
+        private final EventLog events;          // null if the events aren't logged
+        private final QueryResult result;
+
+        QueryTask(BooksClient client, ResponseArchive archive, RunMetrics metrics, String query, int startPage, int paginations, 
+                RefreshState refresh, EventLog events, QueryResult result) {
+            this.client = client;
+            this.archive = archive;
+            this.metrics = metrics;
+            this.query = query;
+            this.startPage = startPage;
+            this.paginations = paginations;
+            this.refresh = refresh;
+            this.events = events;
+            this.result = result;
+        }
+
+        public Void call() throws Exception {
+            try {
+                /*
+                 * Apply pagination to extract all (available) book volumes - there seems
+                 * to be a limit of approx. 1000 volumes returned, imposed (probably) by
+                 * Google Books API.
+                 */
+                VolumePage volumes = null;
+                int startIndex = startPage * maxResults;
+                int numPaginations = startPage;
+                int plannedPaginations = paginations;   // narrowed down once totalItems is known
+
+                if (numPaginations >= paginations) return null; // all pages were stored before resuming
+
+                if (events != null) events.queryStarted(query);
+
+                do {
+                    try {
+                        if (archive != null)
+                            volumes = readArchive(archive, metrics, query, startIndex, maxResults, result);
+                        else
+                            volumes = queryGoogleBooks(client, metrics, query, startIndex, maxResults, 
+                                    (refresh != null) ? RefreshState.ORDER_BY_NEWEST : null);
+                    } catch (IOException e) {
+                        System.err.println(e.getMessage());
+                    } catch (QuotaExhaustedException e) {
+                        result.quotaExhausted = e.getMessage();
+                        break;
+                    }
+
+                    if (volumes != null) {
+                        result.addPage(volumes);
+                        startIndex += maxResults;
+                        plannedPaginations = plannedPaginations(volumes.getTotalItems(), paginations);
+
+                        if (events != null) events.pageFetched(query, numPaginations, volumes.getRows().size(), volumes.getTotalItems());
+
+                        if (refresh != null && refresh.isKnownPage(volumes)) {     // the later pages hold older volumes
+                            taskLogger.trace("Only known volumes on page {} [{}]", numPaginations + 1, query);
+                            refresh.addStoppedQuery();
+                            break;
+                        }
+                    }
+
+                    numPaginations++;
+
+                } while ((volumes != null) && (numPaginations < plannedPaginations) && !Thread.currentThread().isInterrupted());   // interrupted when the run stops
+            } finally {
+                result.end();  // also when the task fails, so that the main thread doesn't wait forever
+            }
+
+            return null;
+        }
+    }
+
+
+    /**
+     * The number of pages needed to get all the volumes of a query, given the total number of
+     * matches reported by Google Books. Capped by the maximum number of paginations and by the
+     * number of volumes that Google Books returns at most for a query.
+     *
+     * @param totalItems the total number of matches
+     * @param paginations the maximum number of paginations
+     * @return the number of pages
+     */
+    static int plannedPaginations(int totalItems, int paginations) {
+        int available = Math.min(totalItems, maxTotalResults);
+
+        return Math.min(paginations, (available + maxResults - 1) / maxResults);
+    }
+
+
+    /**
+     * Logs the estimated cost of the query plan: the number of queries, the worst-case number of
+     * requests (all queries need all paginations) and the expected runtime and number of quota
+     * days under the configured request rate and daily quota. Cached responses are not taken
+     * into account.
+     */
+    private static void logCostEstimate(QueryPlan plan, GoogleBooksExtractorParams params) {
+        Logger logger = (Logger)LoggerFactory.getLogger("costEstimate");
+        long maxRequests = plan.getMaxRequests(params.paginations);
+
+        logger.debug("Estimated cost: {} queries, at most {} requests ({} paginations per query)",
+                new Object[] {plan.size(), maxRequests, params.paginations});
+
+        if (params.requestsPerSecond > 0) {
+            long seconds = (long) Math.ceil(maxRequests / params.requestsPerSecond);
+            logger.debug("Estimated runtime at {} requests/s: at most {}h {}m {}s",
+                    new Object[] {params.requestsPerSecond, seconds / 3600, (seconds / 60) % 60, seconds % 60});
+        }
+        else
+            logger.debug("Estimated runtime: no request rate limit set");
+
+        if (params.dailyQuota > 0 && maxRequests > params.dailyQuota)
+            logger.warn("The run may need up to {} days of the daily quota of {} requests, continue with --resume",
+                    (maxRequests + params.dailyQuota - 1) / params.dailyQuota, params.dailyQuota);
+    }
+
+
+    /**
+     * Truncates the file to the given length, if it is longer
+     */
+    private static void truncateFile(String fileName, long length) throws IOException {
+        File file = new File(fileName);
+
+        if (!file.exists() || file.length() <= length) return;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    /**
+     * The pages fetched for a query, handed from the query task to the main thread as they arrive.
+     * The end of the pages is marked by {@code END}.
+     */
+    private static class QueryResult {
+        private static final VolumePage END = new VolumePage(0, null);
+
+        final int index;        // the index of the query in the query plan
+        final String query;
+        final int startPage;    // the first page fetched, after the pages stored before resuming
+        private final LinkedBlockingQueue<VolumePage> pages = new LinkedBlockingQueue<VolumePage>();
+        volatile String quotaExhausted = null;   // the reason, if the daily quota was used up while fetching the pages
+        volatile boolean notArchived = false;    // a page is missing from the archive, in an offline run
+        Future<Void> future = null;              // the task fetching the pages
+
+        QueryResult(int index, String query, int startPage) {
+            this.index = index;
+            this.query = query;
+            this.startPage = startPage;
+        }
+
+        void addPage(VolumePage volumes) {
+            pages.add(volumes);
+        }
+
+        void end() {
+            pages.add(END);
+        }
+
+        /**
+         * Waits for the next page, returns {@code null} after the last page
+         */
+        VolumePage nextPage() throws InterruptedException {
+            VolumePage volumes = pages.take();
+
+            return (volumes == END) ? null : volumes;
+        }
+    }
+
+
+    /**
+     * Execute the query on Google Books to obtain the list of volumes. The maximum number of volumes
+     * returned is 40. The query is sent through the shared client, which reuses pooled connections
+     * and answers repeated queries from the response cache, if one is configured. The response is
+     * decoded straight into compact volume rows by {@code VolumePageParser}.
+     *
+     * @param client
+     * @param metrics the metrics of the run
+     * @param query
+     * @param startIndex
+     * @param maxResults
+     * @param orderBy the order of the volumes, or {@code null} for the default order
+     * @return volumes, or {@code null} if no (further) volumes were found
+     * @throws Exception
+     */
+    private static VolumePage queryGoogleBooks(BooksClient client, RunMetrics metrics, String query, int startIndex, int maxResults, 
+            String orderBy) throws Exception {
+        String json = client.fetchVolumesPage(query, startIndex, maxResults, orderBy, metrics);    // Execute the query
+        VolumePage volumes = VolumePageParser.parse(json);
+
+        return volumes.isEmpty() ? null : volumes;     // null if no (further) volumes were found
+    }
+
+
+    /**
+     * Read the response of a query from the response archive and decode it as in {@code queryGoogleBooks}. 
+     * If the response isn't archived, e.g. because the archived run ran out of quota, the query 
+     * result is marked as incomplete.
+     *
+     * @param archive
+     * @param metrics the metrics of the run
+     * @param query
+     * @param startIndex
+     * @param maxResults
+     * @param result the query result, marked if the response isn't archived
+     * @return volumes, or {@code null} if no (further) volumes were found
+     * @throws IOException
+     */
+    private static VolumePage readArchive(ResponseArchive archive, RunMetrics metrics, String query, int startIndex, int maxResults, 
+            QueryResult result) throws IOException {
+        String json = archive.get(query, startIndex, maxResults, null);
+
+        if (json == null) {
+            result.notArchived = true;
+            return null;
+        }
+
+        metrics.recordArchivedPage(query);
+        VolumePage volumes = VolumePageParser.parse(json);
+
+        return volumes.isEmpty() ? null : volumes;
+    }
+
+
+    /**
+     * Storing the volumes (books) in the volume store of the extraction state, or streaming them to
+     * the result writer. Each stored volume is represented as a {@code VolumeRecord}.
+     *
+     * Duplicates and books that have no title are not stored. If filters are provided in the parameter
+     * file, they are applied here and only those books are stored whose title or description (if
+     * provided) are matched by the regex filter(s).
+     *
+     * What happens to each volume (stored, duplicate, filtered) is recorded in the event log of the
+     * state, if it has one. Recording an event doesn't format anything, see {@code EventLog}.
+     *
+     * @param filter the compiled regex filters
+     * @param volumes
+     * @param query
+     * @param state
+     * @return the number of stored volumes
+     */
+    static int storeBooks(FilterEngine filter, VolumePage volumes, String query, ExtractionState state) {
+
+        EventLog events = state.getEventLog();
+        int retainedVolCounter = 0; // counter for the number of stored volumes (books)
+
+        // Store each book (volume) if it isn't there already
+        for (VolumeRow volumeInfo : volumes.getRows()) {
+            String title = volumeInfo.getTitle();
+            String bookId = "";
+
+            if (title != null) // skip volumes where a title is not provided
+                   if (title.isEmpty()) continue;
+
+            /*
+             * We are using the industry identifiers such as ISBN to avoid duplicate entries, normalized
+             * to ISBN-13 so that the ISBN-10 and ISBN-13 of a book match. In case that the identifier
+             * is not available, we use the normalized title. See DedupIndex.
+             */
+            String dedupKey = volumeInfo.hasIndustryIds() ? DedupIndex.identifierKey(volumeInfo.getIndustryId()) : null;
+            boolean hasIdentifier = (dedupKey != null);
+
+            if (hasIdentifier) {
+                bookId = volumeInfo.getIndustryId();
+
+                if (!state.registerBookId(dedupKey)) {     // industry identifier already registered
+                    if (events != null) events.duplicate(query, bookId, title, EventLog.BY_IDENTIFIER);
+                    state.addDuplicate();
+                    continue;
+                }
+            }
+            else {
+                dedupKey = DedupIndex.titleKey(title);
+
+                if (dedupKey != null) {
+                    bookId = dedupKey.substring(DedupIndex.TITLE_PREFIX.length());
+
+                    if (!state.registerBookId(dedupKey)) {     // title already registered
+                        if (events != null) events.duplicate(query, bookId, title, EventLog.BY_TITLE);
+                        state.addDuplicate();
+                        continue;
+                    }
+                } else {
+                    storeLogger.error("Book not added, because of both the industry identifier and the title are missing");
+                    continue;
+                }
+            }
+
+            /*
+             * Optionally, titles that are near-duplicates of titles seen before are removed as well. Only
+             * volumes without an industry identifier are matched, since different editions of a book
+             * have different identifiers but often the same title.
+             */
+            if (!state.registerTitle(title, !hasIdentifier)) {
+                if (events != null) events.duplicate(query, bookId, title, EventLog.BY_NEAR_TITLE);
+                state.addDuplicate();
+                continue;
+            }
+
+            /*
+             *  Apply regex filters to titles and descriptions. Filters are OR'ed, meaning
+             *  that if several are provided, one match is sufficient to store the volume.
+             *  The filters are compiled once per run, see FilterEngine.
+             */
+            boolean storeVolume = filter.accepts(title, volumeInfo.getDescription());
+
+            /*
+             * Create a record containing the book information (in string form)
+             */
+            if (storeVolume) {
+                if (volumeInfo.getSubtitle() != null)
+                    title += ". " + volumeInfo.getSubtitle();
+
+                VolumeRecord volInfo = new VolumeRecord(title, query,
+                        volumeInfo.getAuthors(),        // written in list form, [author A, author B], to CSV files
+                        volumeInfo.getCategories(),
+                        volumeInfo.getDescription(),
+                        volumeInfo.getPublishedDate(),      // TODO extract year, using regex
+                        volumeInfo.getPreviewLink(),
+                        bookId);
+                state.addVolume(volInfo, dedupKey);   // when streaming, a header with the entry labels is written before the first volume
+
+                if (events != null) events.volumeStored(query, bookId, title);
+
+                retainedVolCounter++;   // counter for the number of stored volumes (books)
+            }
+            else {
+                if (events != null) events.filtered(query, bookId, title);
+                state.addFiltered();
+            }
+
+        }
+
+        return retainedVolCounter;
+    }
+}
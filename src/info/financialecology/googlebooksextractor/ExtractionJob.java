@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Future;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * A job of the {@link ExtractionService}: the parameters of a run, submitted by a client, and the
+ * status and progress of the run. The progress is kept as a list of events, each a single-line
+ * JSON object, which clients can follow while the job runs:
+ * <pre>
+ *   {"event":"queued","job":"3","time":"2014-03-01T10:00:00Z"}
+ *   {"event":"started","job":"3","time":"2014-03-01T10:00:02Z"}
+ *   {"event":"query","job":"3","time":"2014-03-01T10:00:03Z","query":"systemic + risk","completed":1,"planned":12,"stored":38,"returned":40}
+ *   {"event":"done","job":"3","time":"2014-03-01T10:00:09Z","status":"DONE","stored":412,"returned":480}
+ * </pre>
+ * Of the result of the run, only the name of the output file is kept, so that a finished job 
+ * doesn't hold on to the volumes. All methods are thread-safe.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ExtractionJob implements ExtractionListener {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        DONE,
+        QUOTA_EXHAUSTED,    // done, but stopped early because the daily quota was used up
+        FAILED,
+        CANCELLED;
+
+        public boolean isFinal() {
+            return this != QUEUED && this != RUNNING;
+        }
+    }
+
+    private final String id;
+    private final String client;
+    private final String name;
+    private final GoogleBooksExtractorParams params;
+    private final String outputDir;
+    private final long submitted = System.currentTimeMillis();
+
+    private Status status = Status.QUEUED;
+    private long started = 0;
+    private long finished = 0;
+    private long completedQueries = 0;
+    private long plannedQueries = 0;
+    private int storedVolumes = 0;
+    private int returnedVolumes = 0;
+    private String error = null;
+    private String outputFile = null;       // the output file of the run, once it is done
+    private Future<?> future = null;        // the task running the job, once it is dispatched
+    private final ArrayList<String> events = new ArrayList<String>();
+
+    /**
+     * Constructor
+     *
+     * @param id the identifier of the job
+     * @param client the client that submitted the job, used for fair scheduling
+     * @param name the name of the run, from which the names of the output files are derived
+     * @param params
+     * @param outputDir the output directory of the job, ending with a separator
+     */
+    public ExtractionJob(String id, String client, String name, GoogleBooksExtractorParams params, String outputDir) {
+        this.id = id;
+        this.client = client;
+        this.name = name;
+        this.params = params;
+        this.outputDir = outputDir;
+
+        synchronized (this) {
+            addEvent("queued", null);
+        }
+    }
+
+    /**
+     * Marks the job as running, unless it was cancelled before
+     *
+     * @return false if the job was cancelled
+     */
+    public synchronized boolean start() {
+        if (status != Status.QUEUED) return false;
+
+        status = Status.RUNNING;
+        started = System.currentTimeMillis();
+        addEvent("started", null);
+
+        return true;
+    }
+
+    public synchronized void queryCompleted(ExtractionContext context, String query, long completed, long planned, int stored, int returned) {
+        completedQueries = completed;
+        plannedQueries = planned;
+        storedVolumes = stored;
+        returnedVolumes = returned;
+
+        addEvent("query", query);
+    }
+
+    /**
+     * Marks the job as done
+     *
+     * @param result the result of the run
+     */
+    public synchronized void finish(ExtractionResult result) {
+        if (status.isFinal()) return;
+
+        outputFile = result.getOutputFile();
+        storedVolumes = result.getStoredVolCounter();
+        returnedVolumes = result.getTotalVolCounter();
+        plannedQueries = result.getQueries();
+        end(result.isQuotaExhausted() ? Status.QUOTA_EXHAUSTED : Status.DONE, result.getQuotaExhausted());
+    }
+
+    /**
+     * Marks the job as failed
+     *
+     * @param t the error
+     */
+    public synchronized void fail(Throwable t) {
+        if (status.isFinal()) return;
+
+        end(Status.FAILED, t.toString());
+    }
+
+    /**
+     * Cancels the job, interrupting the run if it is running
+     *
+     * @return false if the job was already finished
+     */
+    public synchronized boolean cancel() {
+        if (status.isFinal()) return false;
+
+        if (future != null) future.cancel(true);
+
+        end(Status.CANCELLED, null);
+
+        return true;
+    }
+
+    /**
+     * Waits until there are more than {@code from} events or the job is finished, and returns the
+     * events from index {@code from} on
+     *
+     * @param from the number of events the caller has seen
+     * @param timeoutMillis the maximum time to wait
+     * @return the new events, empty if there are none
+     * @throws InterruptedException
+     */
+    public synchronized List<String> awaitEvents(int from, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while (events.size() <= from && !status.isFinal()) {
+            long wait = deadline - System.currentTimeMillis();
+
+            if (wait <= 0) break;
+
+            wait(wait);
+        }
+
+        return new ArrayList<String>(events.subList(Math.min(from, events.size()), events.size()));
+    }
+
+    synchronized void setFuture(Future<?> future) {
+        this.future = future;
+
+        if (status == Status.CANCELLED) future.cancel(true);    // cancelled while being dispatched
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getClient() {
+        return client;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public GoogleBooksExtractorParams getParams() {
+        return params;
+    }
+
+    public String getOutputDir() {
+        return outputDir;
+    }
+
+    public synchronized Status getStatus() {
+        return status;
+    }
+
+    /**
+     * The output file of the run, {@code null} unless the job is done and wrote an output file
+     */
+    public synchronized String getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * The time the job finished in milliseconds, 0 if it isn't finished
+     */
+    public synchronized long getFinished() {
+        return finished;
+    }
+
+    /**
+     * The status of the job as a JSON object
+     */
+    public synchronized void writeJson(JsonGenerator g) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("id", id);
+        g.writeStringField("client", client);
+        g.writeStringField("name", name);
+        g.writeStringField("status", status.toString());
+        g.writeStringField("submitted", timestamp(submitted));
+        g.writeStringField("started", (started > 0) ? timestamp(started) : null);
+        g.writeStringField("finished", (finished > 0) ? timestamp(finished) : null);
+        g.writeNumberField("completedQueries", completedQueries);
+        g.writeNumberField("plannedQueries", plannedQueries);
+        g.writeNumberField("storedVolumes", storedVolumes);
+        g.writeNumberField("returnedVolumes", returnedVolumes);
+        g.writeStringField("outputFile", outputFile);
+        g.writeStringField("error", error);
+        g.writeEndObject();
+    }
+
+    private void end(Status status, String error) {
+        this.status = status;
+        this.error = error;
+        finished = System.currentTimeMillis();
+
+        addEvent("done", null);
+    }
+
+    private void addEvent(String event, String query) {
+        StringWriter w = new StringWriter();
+
+        try {
+            JsonGenerator g = jsonFactory.createJsonGenerator(w);
+            g.writeStartObject();
+            g.writeStringField("event", event);
+            g.writeStringField("job", id);
+            g.writeStringField("time", timestamp(System.currentTimeMillis()));
+
+            if (event.equals("query")) {
+                g.writeStringField("query", query);
+                g.writeNumberField("completed", completedQueries);
+                g.writeNumberField("planned", plannedQueries);
+            }
+            else if (event.equals("done")) {
+                g.writeStringField("status", status.toString());
+
+                if (error != null) g.writeStringField("error", error);
+            }
+
+            if (!event.equals("queued") && !event.equals("started")) {
+                g.writeNumberField("stored", storedVolumes);
+                g.writeNumberField("returned", returnedVolumes);
+            }
+
+            g.writeEndObject();
+            g.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     // can't happen with a StringWriter
+        }
+
+        events.add(w.toString());
+        notifyAll();
+    }
+
+    private static String timestamp(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        return format.format(new Date(millis));
+    }
+}
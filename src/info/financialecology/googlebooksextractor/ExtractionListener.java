@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+/**
+ * Receives the progress of a run of the {@link ExtractionEngine}, see 
+ * {@link ExtractionContext#setListener(ExtractionListener)}. The listener is called on the 
+ * thread of the run, so it should return quickly.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public interface ExtractionListener {
+
+    /**
+     * Called when the volumes of a query are stored
+     *
+     * @param context the run
+     * @param query the query
+     * @param completed the number of queries of the query plan completed so far
+     * @param planned the number of queries of the query plan
+     * @param storedVolumes the number of volumes stored so far
+     * @param returnedVolumes the number of volumes returned by Google Books so far
+     */
+    public void queryCompleted(ExtractionContext context, String query, long completed, long planned, int storedVolumes, int returnedVolumes);
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.util.ArrayList;
+
+/**
+ * The output of a run of the {@link ExtractionEngine}: the stored volumes, unless they were 
+ * streamed to the output file, the logged search information, the volume counters and the 
+ * metrics of the requests.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ExtractionResult {
+
+    private final ExtractionContext context;
+    private final String outputFile;
+    private final ExtractionState state;
+    private final RunMetrics metrics;
+    private final long queries;
+    private final String quotaExhausted;
+
+    /**
+     * Constructor
+     *
+     * @param context the input of the run
+     * @param outputFile the output file, {@code null} if none was written. For a refresh, the output 
+     *                   file with the new volumes merged in.
+     * @param state the final state of the run
+     * @param metrics
+     * @param queries the number of queries in the query plan
+     * @param quotaExhausted the reason, if the run stopped because the daily quota was used up
+     */
+    public ExtractionResult(ExtractionContext context, String outputFile, ExtractionState state, RunMetrics metrics, long queries, 
+            String quotaExhausted) {
+        this.context = context;
+        this.outputFile = outputFile;
+        this.state = state;
+        this.metrics = metrics;
+        this.queries = queries;
+        this.quotaExhausted = quotaExhausted;
+    }
+
+    public ExtractionContext getContext() {
+        return context;
+    }
+
+    public String getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * The stored volumes, which is empty if the volumes were streamed to the output file
+     */
+    public VolumeStore getVolumes() {
+        return state.getVolumes();
+    }
+
+    /**
+     * The logged search information: [query, totalVol, retainedVol, start index in the stored volumes]
+     */
+    public ArrayList<ArrayList<String>> getLogList() {
+        return state.getLogList();
+    }
+
+    public int getTotalVolCounter() {
+        return state.getTotalVolCounter();
+    }
+
+    public int getStoredVolCounter() {
+        return state.getStoredVolCounter();
+    }
+
+    public int getDuplicateCounter() {
+        return state.getDuplicateCounter();
+    }
+
+    public int getFilteredCounter() {
+        return state.getFilteredCounter();
+    }
+
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The number of queries in the query plan
+     */
+    public long getQueries() {
+        return queries;
+    }
+
+    /**
+     * True if the run stopped early because the daily quota was used up
+     */
+    public boolean isQuotaExhausted() {
+        return quotaExhausted != null;
+    }
+
+    public String getQuotaExhausted() {
+        return quotaExhausted;
+    }
+}
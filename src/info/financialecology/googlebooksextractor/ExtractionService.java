@@ -0,0 +1,569 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A long-running extraction service that takes extraction jobs over a local HTTP endpoint. A job
+ * is a parameter document in JSON, with the field names of the parameter files (see 
+ * {@link GoogleBooksExtractorParams#fromJson(String)}), posted as {@code application/json}. The 
+ * xml format isn't accepted, as XStream would instantiate any class named in the document, and 
+ * as a browser can post it to the loopback interface from any web page. All jobs run on one warm 
+ * {@link ExtractionEngine}, so they share the pooled connections, the response cache, the quota
+ * governor and the worker threads, and a job is dispatched without any setup.
+ * <p>
+ * The endpoint, bound to the loopback interface:
+ * <pre>
+ *   POST   /jobs[?client=name&amp;name=run]   submit a job in JSON, returns the job
+ *   GET    /jobs                           the jobs
+ *   GET    /jobs/{id}                      the status of a job
+ *   GET    /jobs/{id}/events               the progress of a job, streamed as JSON lines until it is finished
+ *   GET    /jobs/{id}/result               download the output file of a finished job
+ *   GET    /jobs/{id}/metrics              download the metrics report of a finished job
+ *   DELETE /jobs/{id}                      cancel a queued or running job
+ * </pre>
+ * Scheduling: at most {@code maxRunningJobs} jobs run at the same time. The queued jobs are 
+ * dispatched round-robin over the clients that submitted them, so that a client with many jobs 
+ * doesn't hold up the others, and in the order of submission for each client. Running jobs share
+ * the worker threads, and each holds at most 2 x its concurrency queries in flight, so that the 
+ * request quota is shared between them. When the daily quota is used up, the running jobs stop 
+ * and no further jobs are dispatched until the quota is reset.
+ * <p>
+ * Finished jobs are kept for {@value #FINISHED_JOB_HOURS} hours, and at most the last 
+ * {@value #MAX_FINISHED_JOBS} of them; older ones are forgotten, their output files are left in 
+ * place.
+ * <p>
+ * Each job writes its output files to its own directory below the output directory of the 
+ * service, and nowhere else. The connection, cache and quota settings of the jobs are ignored in 
+ * favour of those of the engine, the global dedup index of the jobs is that of the service, and 
+ * the Prometheus export of the jobs is switched off. The jobs that run at the same time merge 
+ * their books into the global dedup index one after the other.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ExtractionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExtractionService.class.getSimpleName());
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final long QUOTA_CHECK_MILLIS = 60000;   // how often a used-up quota is checked for a reset
+    private static final long EVENT_WAIT_MILLIS = 15000;    // the maximum wait for a progress event before streaming a keep-alive
+    private static final int MAX_JOB_SIZE = 1 << 20;        // the maximum size of a parameter document in bytes
+    private static final int FINISHED_JOB_HOURS = 24;       // how long finished jobs are kept
+    private static final int MAX_FINISHED_JOBS = 1000;      // the maximum number of finished jobs kept
+
+    private final ExtractionEngine engine;
+    private final String outputDir;
+    private final int maxRunningJobs;
+    private final String globalDedupFile;
+    private final HttpServer server;
+    private final ExecutorService jobThreads;
+    private final Thread scheduler;
+
+    private final LinkedHashMap<String, ExtractionJob> jobs = new LinkedHashMap<String, ExtractionJob>();
+    private final HashMap<String, LinkedList<ExtractionJob>> queues = new HashMap<String, LinkedList<ExtractionJob>>();   // queued jobs by client
+    private final LinkedList<String> clients = new LinkedList<String>();    // clients with queued jobs, in round-robin order
+    private int runningJobs = 0;
+    private long nextId = 1;
+    private boolean stopped = false;
+
+    /**
+     * Constructor
+     *
+     * @param engine the engine that runs the jobs
+     * @param port the port of the HTTP endpoint
+     * @param outputDir the directory below which the jobs write their output, ending with a separator
+     * @param maxRunningJobs the number of jobs that run at the same time
+     * @param globalDedupFile the global dedup index of the jobs, or {@code null} if the jobs don't 
+     *                        use one
+     * @throws IOException if the endpoint cannot be bound
+     */
+    public ExtractionService(ExtractionEngine engine, int port, String outputDir, int maxRunningJobs, String globalDedupFile) 
+            throws IOException {
+        this.engine = engine;
+        this.outputDir = outputDir;
+        this.maxRunningJobs = maxRunningJobs;
+        this.globalDedupFile = globalDedupFile;
+
+        jobThreads = Executors.newFixedThreadPool(maxRunningJobs);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/jobs", new JobsHandler());
+        server.setExecutor(Executors.newCachedThreadPool());    // progress streams hold a thread each
+
+        scheduler = new Thread(new Runnable() {
+            public void run() {
+                schedule();
+            }
+        }, "job-scheduler");
+    }
+
+    public void start() {
+        server.start();
+        scheduler.start();
+
+        logger.info("Extraction service listening on http://127.0.0.1:{}/jobs, running up to {} jobs, output in {}", 
+                new Object[] {server.getAddress().getPort(), maxRunningJobs, outputDir});
+    }
+
+    /**
+     * Stops the endpoint and cancels the queued and running jobs. The engine is not closed.
+     */
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+
+            for (ExtractionJob job : jobs.values())
+                job.cancel();
+
+            notifyAll();
+        }
+
+        server.stop(1);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+        jobThreads.shutdownNow();
+        scheduler.interrupt();
+    }
+
+    /**
+     * Queues a job. The file settings of the job are replaced by those of the service, the 
+     * parameters are validated and the job's output directory is created.
+     *
+     * @param client the client submitting the job
+     * @param name the name of the run, {@code null} for 'job-{id}'
+     * @param params
+     * @return the job
+     * @throws IllegalArgumentException if the parameters are not valid
+     */
+    public synchronized ExtractionJob submit(String client, String name, GoogleBooksExtractorParams params) {
+        evictFinishedJobs();
+
+        params.prometheusFile = null;               // the metrics of a job are in its metrics report
+        params.prometheusPort = 0;
+        params.globalDedupFile = globalDedupFile;   // a job only writes to its output directory
+
+        GoogleBooksExtractorParams.validate(params, Assertion.Level.EXCEPTION);
+
+        String id = Long.toString(nextId++);
+
+        if (name == null || name.trim().isEmpty()) name = "job-" + id;
+
+        Assertion.assertStrict(name.matches("[A-Za-z0-9_.-]+") && !name.startsWith("."), Assertion.Level.EXCEPTION, 
+                "The job name may only hold letters, digits, '_', '-' and '.'");
+
+        String jobDir = outputDir + id + File.separator;
+        new File(jobDir).mkdirs();
+
+        ExtractionJob job = new ExtractionJob(id, client, name, params, jobDir);
+        jobs.put(id, job);
+
+        LinkedList<ExtractionJob> queue = queues.get(client);
+
+        if (queue == null) {
+            queue = new LinkedList<ExtractionJob>();
+            queues.put(client, queue);
+            clients.add(client);
+        }
+
+        queue.add(job);
+        notifyAll();
+
+        logger.info("Job {} queued for client {}", id, client);
+
+        return job;
+    }
+
+    public synchronized ExtractionJob getJob(String id) {
+        return jobs.get(id);
+    }
+
+    public synchronized List<ExtractionJob> getJobs() {
+        return new ArrayList<ExtractionJob>(jobs.values());
+    }
+
+    /**
+     * Cancels a queued or running job
+     *
+     * @param id
+     * @return false if there is no such job or if it is finished
+     */
+    public synchronized boolean cancel(String id) {
+        ExtractionJob job = jobs.get(id);
+
+        if (job == null || !job.cancel()) return false;
+
+        LinkedList<ExtractionJob> queue = queues.get(job.getClient());
+
+        if (queue != null && queue.remove(job) && queue.isEmpty()) {
+            queues.remove(job.getClient());
+            clients.remove(job.getClient());
+        }
+
+        notifyAll();
+
+        return true;
+    }
+
+    /**
+     * Forgets the finished jobs that are older than {@link #FINISHED_JOB_HOURS}, and the oldest 
+     * ones beyond {@link #MAX_FINISHED_JOBS}
+     */
+    private synchronized void evictFinishedJobs() {
+        long oldest = System.currentTimeMillis() - FINISHED_JOB_HOURS * 3600000L;
+        int finished = 0;
+
+        for (ExtractionJob job : jobs.values())
+            if (job.getStatus().isFinal()) finished++;
+
+        Iterator<ExtractionJob> it = jobs.values().iterator();    // in the order of submission
+
+        while (it.hasNext()) {
+            ExtractionJob job = it.next();
+
+            if (job.getStatus().isFinal() && (finished > MAX_FINISHED_JOBS || job.getFinished() < oldest)) {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+
+    /**
+     * Dispatches the queued jobs round-robin over the clients, as long as fewer than 
+     * {@code maxRunningJobs} are running and the daily quota isn't used up
+     */
+    private void schedule() {
+        try {
+            while (true) {
+                final ExtractionJob job;
+
+                synchronized (this) {
+                    while (!stopped && (clients.isEmpty() || runningJobs >= maxRunningJobs || quotaExhausted()))
+                        wait(QUOTA_CHECK_MILLIS);
+
+                    if (stopped) return;
+
+                    String client = clients.removeFirst();
+                    LinkedList<ExtractionJob> queue = queues.get(client);
+                    job = queue.removeFirst();
+
+                    if (queue.isEmpty())
+                        queues.remove(client);
+                    else
+                        clients.addLast(client);    // the client's next job waits for the other clients
+
+                    if (!job.start()) continue;     // cancelled meanwhile
+
+                    runningJobs++;
+                }
+
+                job.setFuture(jobThreads.submit(new Runnable() {
+                    public void run() {
+                        runJob(job);
+                    }
+                }));
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private void runJob(ExtractionJob job) {
+        logger.info("Job {} started", job.getId());
+
+        try {
+            ExtractionContext context = new ExtractionContext(job.getName(), job.getParams(), job.getOutputDir());
+            context.setListener(job);
+
+            job.finish(engine.run(context));
+        } catch (Throwable t) {
+            if (job.getStatus() != ExtractionJob.Status.CANCELLED)
+                logger.error("Job " + job.getId() + " failed", t);
+
+            job.fail(t);
+        } finally {
+            synchronized (this) {
+                runningJobs--;
+                evictFinishedJobs();
+                notifyAll();
+            }
+        }
+
+        logger.info("Job {} finished: {}", job.getId(), job.getStatus());
+    }
+
+    private boolean quotaExhausted() {
+        QuotaGovernor governor = engine.getClient().getQuotaGovernor();
+
+        return governor != null && governor.isExhausted();
+    }
+
+    /**
+     * The handler of the /jobs endpoint
+     */
+    private class JobsHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String method = exchange.getRequestMethod();
+                String[] path = exchange.getRequestURI().getPath().replaceAll("/+$", "").split("/");  // "", "jobs", id, action
+                ExtractionJob job = (path.length > 2) ? getJob(path[2]) : null;
+                String action = (path.length > 3) ? path[3] : null;
+
+                if (path.length == 2 && method.equals("POST"))
+                    submitJob(exchange);
+                else if (path.length == 2 && method.equals("GET"))
+                    sendJobs(exchange, 200, getJobs());
+                else if (path.length > 4 || (path.length > 2 && job == null))
+                    sendError(exchange, 404, "No such job");
+                else if (action == null && method.equals("GET"))
+                    sendJob(exchange, 200, job);
+                else if (action == null && method.equals("DELETE")) {
+                    if (cancel(job.getId()))
+                        sendJob(exchange, 200, job);
+                    else
+                        sendError(exchange, 409, "The job is finished");
+                }
+                else if ("events".equals(action) && method.equals("GET"))
+                    streamEvents(exchange, job);
+                else if ("result".equals(action) && method.equals("GET"))
+                    sendFile(exchange, job, job.getOutputFile());
+                else if ("metrics".equals(action) && method.equals("GET"))
+                    sendFile(exchange, job, job.getOutputDir() + job.getName() + ".metrics.json");
+                else
+                    sendError(exchange, 405, "Method not allowed");
+            } catch (IOException e) {
+                logger.debug("Request {} failed: {}", exchange.getRequestURI(), e.getMessage());    // e.g. the client went away
+            } catch (RuntimeException e) {
+                logger.error("Request " + exchange.getRequestURI() + " failed", e);
+                
+                try {
+                    sendError(exchange, 500, e.toString());
+                } catch (IOException e1) {
+                    // the response was sent already
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void submitJob(HttpExchange exchange) throws IOException {
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+
+            if (contentType == null || !contentType.split(";")[0].trim().equalsIgnoreCase("application/json")) {
+                sendError(exchange, 415, "The parameter document must be posted as application/json");
+                return;
+            }
+
+            HashMap<String, String> query = queryParameters(exchange);
+            byte[] body = readBody(exchange.getRequestBody());
+
+            if (body == null) {
+                sendError(exchange, 413, "The parameter document is larger than " + MAX_JOB_SIZE + " bytes");
+                return;
+            }
+
+            String document = new String(body, "UTF-8").trim();
+            String client = query.containsKey("client") ? query.get("client") : exchange.getRemoteAddress().getAddress().getHostAddress();
+            ExtractionJob job;
+
+            try {
+                job = submit(client, query.get("name"), GoogleBooksExtractorParams.fromJson(document));
+            } catch (JsonParseException e) {
+                sendError(exchange, 400, "Invalid JSON parameters: " + e.getMessage());
+                return;
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Location", "/jobs/" + job.getId());
+            sendJob(exchange, 201, job);
+        }
+
+        /**
+         * Streams the events of the job as JSON lines until the job is finished
+         */
+        private void streamEvents(HttpExchange exchange, ExtractionJob job) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);   // chunked
+
+            OutputStream out = exchange.getResponseBody();
+            int seen = 0;
+
+            try {
+                while (true) {
+                    List<String> events = job.awaitEvents(seen, EVENT_WAIT_MILLIS);
+
+                    for (String event : events)
+                        out.write((event + "\n").getBytes("UTF-8"));
+
+                    if (events.isEmpty())
+                        out.write('\n');    // keep-alive, so that a client that went away is noticed
+
+                    out.flush();
+                    seen += events.size();
+
+                    if (events.isEmpty() && job.getStatus().isFinal()) break;
+                }
+            } catch (InterruptedException e) {
+                // the service is stopped
+            }
+
+            out.close();
+        }
+
+        private void sendFile(HttpExchange exchange, ExtractionJob job, String fileName) throws IOException {
+            if (!job.getStatus().isFinal() || job.getStatus() == ExtractionJob.Status.CANCELLED || job.getStatus() == ExtractionJob.Status.FAILED) {
+                sendError(exchange, 409, "The job is " + job.getStatus());
+                return;
+            }
+
+            File file = (fileName != null) ? new File(fileName) : null;
+
+            if (file == null || !file.isFile()) {
+                sendError(exchange, 404, "The job has no such output file" + ((job.getParams().outputShards > 1) ? ", the volumes are in part files" : ""));
+                return;
+            }
+
+            String contentType = file.getName().endsWith(".gz") ? "application/gzip"
+                    : file.getName().endsWith(".csv") ? "text/csv; charset=utf-8"
+                    : file.getName().endsWith(".jsonl") ? "application/x-ndjson; charset=utf-8" : "application/json; charset=utf-8";
+
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"");
+            exchange.sendResponseHeaders(200, file.length());
+
+            InputStream in = new FileInputStream(file);
+            OutputStream out = exchange.getResponseBody();
+
+            try {
+                byte[] buffer = new byte[1 << 16];
+                int n;
+
+                while ((n = in.read(buffer)) > 0)
+                    out.write(buffer, 0, n);
+            } finally {
+                in.close();
+                out.close();
+            }
+        }
+
+        private void sendJob(HttpExchange exchange, int status, ExtractionJob job) throws IOException {
+            StringWriter w = new StringWriter();
+            JsonGenerator g = jsonFactory.createJsonGenerator(w);
+            job.writeJson(g);
+            g.close();
+
+            send(exchange, status, w.toString());
+        }
+
+        private void sendJobs(HttpExchange exchange, int status, List<ExtractionJob> jobList) throws IOException {
+            StringWriter w = new StringWriter();
+            JsonGenerator g = jsonFactory.createJsonGenerator(w);
+            g.writeStartArray();
+
+            for (ExtractionJob job : jobList)
+                job.writeJson(g);
+
+            g.writeEndArray();
+            g.close();
+
+            send(exchange, status, w.toString());
+        }
+
+        private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+            StringWriter w = new StringWriter();
+            JsonGenerator g = jsonFactory.createJsonGenerator(w);
+            g.writeStartObject();
+            g.writeStringField("error", message);
+            g.writeEndObject();
+            g.close();
+
+            send(exchange, status, w.toString());
+        }
+
+        private void send(HttpExchange exchange, int status, String json) throws IOException {
+            byte[] body = (json + "\n").getBytes("UTF-8");
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+
+        /**
+         * Reads the request body, returns {@code null} if it is too large
+         */
+        private byte[] readBody(InputStream in) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+
+            while ((n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+
+                if (body.size() > MAX_JOB_SIZE) return null;
+            }
+
+            return body.toByteArray();
+        }
+
+        private HashMap<String, String> queryParameters(HttpExchange exchange) throws IOException {
+            HashMap<String, String> parameters = new HashMap<String, String>();
+            String query = exchange.getRequestURI().getRawQuery();
+
+            if (query == null) return parameters;
+
+            for (String parameter : query.split("&")) {
+                int eq = parameter.indexOf('=');
+
+                if (eq > 0)
+                    parameters.put(URLDecoder.decode(parameter.substring(0, eq), "UTF-8"), URLDecoder.decode(parameter.substring(eq + 1), "UTF-8"));
+            }
+
+            return parameters;
+        }
+    }
+}
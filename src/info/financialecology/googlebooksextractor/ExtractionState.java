@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.util.ArrayList;
+
+/**
+ * The state of a single extraction run: the identifiers of the books seen so far, the store
+ * of stored volumes, the logged search information and the volume counters. The counters of 
+ * duplicates and filtered volumes start at 0 when a run is resumed.
+ * <p>
+ * All access goes through synchronized methods, so that the state can be shared between the
+ * threads that query Google Books concurrently. Note that the order in which volumes are stored
+ * determines which of two duplicates is retained, so callers that want reproducible results
+ * need to store the pages of the queries in a fixed order (see {@code ExtractionEngine}).
+ * <p>
+ * If the state is created with a result writer, the stored volumes are streamed to the writer 
+ * instead of being kept in the {@code VolumeStore}, so that memory use doesn't grow with the 
+ * number of stored volumes.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ExtractionState {
+
+    // Book identifiers = the normalized industry identifier or title of the volume, see DedupIndex
+    private final DedupIndex bookIds;
+
+    // Details of all identified book volumes
+    private final VolumeStore volumes = new VolumeStore();
+
+    // Logged search information: [query, totalVol, retainedVol, start index in the stored volumes]
+    private final ArrayList<ArrayList<String>> logList = new ArrayList<ArrayList<String>>();
+
+    private int startVolList = 0;       // start index for a given set of volumes in the volume store
+    private int totalVolCounter = 0;    // total number of volumes returned by Google Books over all queries
+    private int storedVolCounter = 0;   // total number of volumes stored over all queries
+    private int duplicateCounter = 0;   // total number of volumes removed as duplicates
+    private int filteredCounter = 0;    // total number of volumes rejected by the filters
+
+    private final VolumeWriter writer;  // streams the stored volumes, null if they are kept in the volume store
+    private RunJournal journal = null;  // records the registered book identifiers, if set
+    private EventLog eventLog = null;   // records the events of the run, if set
+
+    /**
+     * Constructor for a state that keeps the stored volumes in the volume store
+     */
+    public ExtractionState() {
+        this(null);
+    }
+
+    /**
+     * Constructor for a state that streams the stored volumes to the writer
+     *
+     * @param writer the result writer, or {@code null} to keep the volumes in the volume store
+     */
+    public ExtractionState(VolumeWriter writer) {
+        this(writer, new DedupIndex(0));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param writer the result writer, or {@code null} to keep the volumes in the volume store
+     * @param bookIds the index used for duplicate removal
+     */
+    public ExtractionState(VolumeWriter writer, DedupIndex bookIds) {
+        this.writer = writer;
+        this.bookIds = bookIds;
+    }
+
+    /**
+     * Registers the book identifier. Returns false if the identifier was already registered,
+     * meaning that the volume is a duplicate.
+     *
+     * @param bookId the key of the volume, see {@link DedupIndex#identifierKey(String)} and
+     *               {@link DedupIndex#titleKey(String)}
+     * @return true if the identifier is new
+     */
+    public synchronized boolean registerBookId(String bookId) {
+        boolean added = bookIds.add(bookId);
+
+        if (added && journal != null)
+            journal.recordBookId(bookId);
+
+        return added;
+    }
+
+    /**
+     * Registers the title for near-duplicate detection, if it is switched on. Returns false if
+     * a near-duplicate of the title was registered before, meaning that the volume is a duplicate.
+     *
+     * @param title the title of the volume
+     * @param match check for near-duplicates, otherwise the title is only registered
+     * @return true if no near-duplicate was found
+     */
+    public synchronized boolean registerTitle(String title, boolean match) {
+        if (!bookIds.isFuzzy()) return true;
+
+        String normalized = DedupIndex.normalizeTitle(title);
+        boolean added = bookIds.addTitle(normalized, match);
+
+        if (added && journal != null && !normalized.isEmpty())
+            journal.recordBookId(DedupIndex.FUZZY_PREFIX + normalized);
+
+        return added;
+    }
+
+    /**
+     * Sets the journal that records the registered book identifiers, so that the run can be
+     * resumed
+     *
+     * @param journal
+     */
+    public synchronized void setJournal(RunJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets the log that records the events of the run, e.g. the stored volumes
+     *
+     * @param eventLog
+     */
+    public synchronized void setEventLog(EventLog eventLog) {
+        this.eventLog = eventLog;
+    }
+
+    /**
+     * The log that records the events of the run, {@code null} if there is none
+     */
+    public synchronized EventLog getEventLog() {
+        return eventLog;
+    }
+
+    /**
+     * Restores the state of an interrupted run from its journal. The volumes stored before are
+     * already in the output file, so only the counters, the book identifiers and the logged
+     * search information are restored.
+     *
+     * @param journal
+     * @param retainedSoFar the number of volumes stored for the query that was interrupted
+     */
+    public synchronized void resumeFrom(RunJournal journal, int retainedSoFar) {
+        for (String bookId : journal.getBookIds())
+            bookIds.restore(bookId);
+        logList.addAll(journal.getLogList());
+        totalVolCounter = journal.getTotalVolCounter();
+        storedVolCounter = journal.getStoredVolCounter();
+        startVolList = storedVolCounter - retainedSoFar;
+    }
+
+    /**
+     * Adds the volume to the volume store, or writes it to the result writer. When streaming, the 
+     * header (e.g. the row with the entry labels of a CSV file) is written before the first volume.
+     *
+     * @param volume
+     */
+    public synchronized void addVolume(VolumeRecord volume) {
+        addVolume(volume, null);
+    }
+
+    /**
+     * Adds the volume as {@link #addVolume(VolumeRecord)}, and records its key as the key of a
+     * stored volume, see {@link DedupIndex#addStored(String)}
+     *
+     * @param volume
+     * @param bookId the key of the volume, or {@code null}
+     */
+    public synchronized void addVolume(VolumeRecord volume, String bookId) {
+        if (bookId != null) {
+            bookIds.addStored(bookId);
+
+            if (journal != null)
+                journal.recordBookId(DedupIndex.STORED_PREFIX + bookId);
+        }
+
+        if (writer != null) {
+            if (storedVolCounter == 0) writer.writeHeader();
+
+            writer.writeVolume(volume);
+        }
+        else
+            volumes.add(volume);
+
+        storedVolCounter++;
+    }
+
+    /**
+     * Adds the number of volumes returned by Google Books for a page of a query
+     *
+     * @param numVolumes
+     */
+    public synchronized void addReturnedVolumes(int numVolumes) {
+        totalVolCounter += numVolumes;
+    }
+
+    /**
+     * Counts a volume that was removed as a duplicate
+     */
+    public synchronized void addDuplicate() {
+        duplicateCounter++;
+    }
+
+    /**
+     * Counts a volume that was rejected by the filters
+     */
+    public synchronized void addFiltered() {
+        filteredCounter++;
+    }
+
+    /**
+     * Logs the search information of a completed query and returns the logged entry
+     *
+     * @param query
+     * @param retainedVolCounter the number of volumes retained for the query
+     * @return the logged entry [query, totalVol, retainedVol, start index in the stored volumes]
+     */
+    public synchronized ArrayList<String> logQuery(String query, int retainedVolCounter) {
+        ArrayList<String> logInfo = new ArrayList<String>();
+        logInfo.add(query);
+        logInfo.add(Integer.toString(totalVolCounter));
+        logInfo.add(Integer.toString(retainedVolCounter));
+        logInfo.add(Integer.toString(startVolList));
+        logList.add(logInfo);
+
+        startVolList += retainedVolCounter;
+
+        return logInfo;
+    }
+
+    /**
+     * The stored volumes, which is empty if the volumes are streamed to a result writer
+     */
+    public synchronized VolumeStore getVolumes() {
+        return volumes;
+    }
+
+    public synchronized ArrayList<ArrayList<String>> getLogList() {
+        return logList;
+    }
+
+    public synchronized int getTotalVolCounter() {
+        return totalVolCounter;
+    }
+
+    public synchronized int getStoredVolCounter() {
+        return storedVolCounter;
+    }
+
+    public synchronized int getDuplicateCounter() {
+        return duplicateCounter;
+    }
+
+    public synchronized int getFilteredCounter() {
+        return filteredCounter;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replaces a file with a temporary file that holds its new content, so that readers see either 
+ * the old or the new content. The temporary file is renamed to the file, which replaces it in 
+ * one step on most platforms. Where a rename doesn't replace an existing file, the file is first
+ * renamed to a backup '{@code <file>.bak}', which is deleted once the temporary file is in place.
+ * If the replacement is interrupted in between, {@link #restoreBackup(File)} brings back the old
+ * content before the file is read again.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+final class FileReplacer {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileReplacer.class.getSimpleName());
+
+    private FileReplacer() {
+    }
+
+    /**
+     * Replaces the target with the temporary file, or creates it if it doesn't exist
+     *
+     * @param tmp the new content, written and closed
+     * @param target
+     * @throws IOException if the target cannot be replaced, in which case it keeps its old content
+     */
+    static void replaceFile(File tmp, File target) throws IOException {
+        if (tmp.renameTo(target)) return;   // fails on some platforms if the target exists
+
+        File backup = backupOf(target);
+        backup.delete();
+
+        if (!target.renameTo(backup))
+            throw new IOException("Cannot replace " + target + " with " + tmp);
+
+        if (!tmp.renameTo(target)) {
+            backup.renameTo(target);
+            throw new IOException("Cannot replace " + target + " with " + tmp);
+        }
+
+        backup.delete();
+    }
+
+    /**
+     * Restores the target from its backup if a replacement was interrupted after the target was 
+     * moved to the backup, and removes the backup of a completed replacement
+     *
+     * @param target
+     */
+    static void restoreBackup(File target) {
+        File backup = backupOf(target);
+
+        if (!backup.exists()) return;
+
+        if (target.exists())
+            backup.delete();
+        else if (backup.renameTo(target))
+            logger.warn("Restored {} from its backup, as the last replacement of the file was interrupted", target);
+        else
+            logger.error("Cannot restore {} from its backup {}", target, backup);
+    }
+
+    private static File backupOf(File target) {
+        return new File(target.getPath() + ".bak");
+    }
+}
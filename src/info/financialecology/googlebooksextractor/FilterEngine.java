@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The regex filters from the parameter file, compiled once and applied to the title and the
+ * description of the volumes. The filters have the same meaning as before: each filter is
+ * lower-cased and has to match the full lower-cased title or description (as in
+ * {@code String.matches(...)}), and the filters are OR'ed.
+ * <p>
+ * To make filtering linear in the length of the text
+ * <ul>
+ * <li> filters that only look for a literal, such as {@code (.*)handbook(.*)} or {@code .*euro.*},
+ *      are merged into a single Aho-Corasick automaton that finds any of the literals in one
+ *      pass over the text
+ * <li> the other filters are merged into a single compiled pattern {@code (?:f1)|(?:f2)|...}.
+ *      Filters that can't be merged without changing what they match are compiled separately:
+ *      filters with back references, since merging would renumber their groups, filters with
+ *      named groups, since two filters may use the same name, and filters with a {@code \Q}
+ *      quote that isn't closed by {@code \E}, which would quote the rest of the merged pattern.
+ * </ul>
+ * Note that {@code .*} does not match line terminators, so a literal filter only matches texts
+ * without line terminators, exactly as the regex would.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class FilterEngine {
+
+    // A literal filter: optional (.*) or .* at both ends, and no regex meta characters in between
+    private static final Pattern LITERAL_FILTER = Pattern.compile("^(?:\\(\\.\\*\\)|\\.\\*)([^\\\\^$.|?*+()\\[\\]{}\\r\\n\\u0085\\u2028\\u2029]+)(?:\\(\\.\\*\\)|\\.\\*)$");
+
+    // Back references and named groups, which can't be merged into one pattern
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+    private static final Pattern NAMED_GROUP    = Pattern.compile("\\(\\?<[a-zA-Z]");
+
+    private final boolean empty;
+    private final LiteralMatcher literals;      // null if there are no literal filters
+    private final Matcher combined;             // null if there are no other filters
+    private final ArrayList<Matcher> separate = new ArrayList<Matcher>();
+
+    /**
+     * Compiles the filters
+     *
+     * @param filters the regex filters, may be {@code null} or empty, in which case every volume
+     *                is accepted
+     */
+    public FilterEngine(List<String> filters) {
+        ArrayList<String> literalList = new ArrayList<String>();
+        StringBuilder alternation = new StringBuilder();
+
+        empty = (filters == null || filters.isEmpty());
+
+        if (!empty) {
+            for (String filter : filters) {
+                String f = filter.toLowerCase();
+                Matcher m = LITERAL_FILTER.matcher(f);
+
+                if (m.matches())
+                    literalList.add(m.group(1));
+                else if (!isMergeable(f))
+                    separate.add(Pattern.compile(f).matcher(""));
+                else {
+                    Pattern.compile(f);     // report an invalid filter as such, not as part of the merged pattern
+
+                    if (alternation.length() > 0) alternation.append('|');
+
+                    alternation.append("(?:").append(f).append(')');
+                }
+            }
+        }
+
+        literals = literalList.isEmpty() ? null : new LiteralMatcher(literalList);
+        combined = (alternation.length() == 0) ? null : Pattern.compile(alternation.toString()).matcher("");
+    }
+
+    /**
+     * Returns true if the volume passes the filters, i.e. if there are no filters or if any filter
+     * matches the title or the (non-empty) description. Not thread-safe, since the compiled
+     * matchers are reused.
+     *
+     * @param title the title, or {@code null}
+     * @param description the description, or {@code null}
+     * @return true if the volume is to be stored
+     */
+    public boolean accepts(String title, String description) {
+        if (empty) return true;
+
+        if ((description != null) && (!description.isEmpty()) && matches(description.toLowerCase()))
+            return true;
+
+        return matches((title == null) ? "" : title.toLowerCase());    // if no description is provided, the filters only apply to the title
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Returns true if the filter matches the same texts when merged into the alternation
+     */
+    static boolean isMergeable(String filter) {
+        if (BACK_REFERENCE.matcher(filter).find() || NAMED_GROUP.matcher(filter).find())
+            return false;
+
+        for (int i = 0; i < filter.length(); i++) {     // look for a \Q without a closing \E
+            if (filter.charAt(i) != '\\') continue;
+
+            if (i + 1 < filter.length() && filter.charAt(i + 1) == 'Q') {
+                int end = filter.indexOf("\\E", i + 2);
+
+                if (end < 0) return false;
+
+                i = end + 1;
+            }
+            else
+                i++;    // skip the escaped character
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if any filter matches the full lower-cased text
+     */
+    private boolean matches(String text) {
+        if (literals != null && literals.matchesAny(text))
+            return true;
+
+        if (combined != null && combined.reset(text).matches())
+            return true;
+
+        for (Matcher m : separate)
+            if (m.reset(text).matches())
+                return true;
+
+        return false;
+    }
+
+    /**
+     * An Aho-Corasick automaton for a set of literals, compiled into a deterministic transition
+     * table over the characters that occur in the literals.
+     */
+    private static class LiteralMatcher {
+        private static final int OTHER      = 0;    // class of characters that don't occur in any literal
+        private static final int TERMINATOR = -1;   // class of line terminators, which '.*' doesn't match
+
+        private final int[] charClass = new int[Character.MAX_VALUE + 1];
+        private final int[][] delta;                // state x char class -> state
+        private final boolean[] accepting;          // true if a literal ends in the state
+
+        LiteralMatcher(List<String> literals) {
+            int numClasses = 1;
+
+            for (String literal : literals)
+                for (int i = 0; i < literal.length(); i++)
+                    if (charClass[literal.charAt(i)] == OTHER)
+                        charClass[literal.charAt(i)] = numClasses++;
+
+            charClass['\n'] = charClass['\r'] = charClass['\u0085'] = charClass['\u2028'] = charClass['\u2029'] = TERMINATOR;
+
+            // Build the trie
+            ArrayList<int[]> go = new ArrayList<int[]>();
+            ArrayList<Boolean> out = new ArrayList<Boolean>();
+            go.add(newRow(numClasses));
+            out.add(false);
+
+            for (String literal : literals) {
+                int state = 0;
+
+                for (int i = 0; i < literal.length(); i++) {
+                    int c = charClass[literal.charAt(i)];
+
+                    if (go.get(state)[c] < 0) {
+                        go.get(state)[c] = go.size();
+                        go.add(newRow(numClasses));
+                        out.add(false);
+                    }
+
+                    state = go.get(state)[c];
+                }
+
+                out.set(state, true);
+            }
+
+            // Breadth-first construction of the failure links, turning the trie into a DFA
+            delta = go.toArray(new int[go.size()][]);
+            accepting = new boolean[delta.length];
+            int[] fail = new int[delta.length];
+            LinkedList<Integer> queue = new LinkedList<Integer>();
+
+            for (int s = 0; s < delta.length; s++)
+                accepting[s] = out.get(s);
+
+            for (int c = 0; c < numClasses; c++) {
+                if (delta[0][c] < 0)
+                    delta[0][c] = 0;
+                else {
+                    fail[delta[0][c]] = 0;
+                    queue.add(delta[0][c]);
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                int s = queue.removeFirst();
+                accepting[s] |= accepting[fail[s]];
+
+                for (int c = 0; c < numClasses; c++) {
+                    int t = delta[s][c];
+
+                    if (t < 0)
+                        delta[s][c] = delta[fail[s]][c];
+                    else {
+                        fail[t] = delta[fail[s]][c];
+                        queue.add(t);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns true if the text contains any of the literals and no line terminator, i.e. if
+         * any of the filters '.*literal.*' matches the full text
+         */
+        boolean matchesAny(String text) {
+            int state = 0;
+            boolean found = false;
+
+            for (int i = 0, n = text.length(); i < n; i++) {
+                int c = charClass[text.charAt(i)];
+
+                if (c == TERMINATOR) return false;
+
+                if (!found) {
+                    state = delta[state][c];
+                    found = accepting[state];
+                }
+            }
+
+            return found;
+        }
+
+        private static int[] newRow(int numClasses) {
+            int[] row = new int[numClasses];
+
+            for (int i = 0; i < numClasses; i++)
+                row[i] = -1;
+
+            return row;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent index of the books stored in earlier runs, shared across runs and parameter 
+ * files, so that a run can skip the books that were extracted before. The index holds the 
+ * fingerprints of the dedup keys (see {@link DedupIndex}) in a compact sorted file:
+ * <pre>
+ *   int   magic ('GBXD')
+ *   int   version
+ *   long  number of fingerprints
+ *   long  fingerprints, sorted in ascending order
+ * </pre>
+ * i.e. 8 bytes per book. On opening, the fingerprints are read once into memory, as the sorted
+ * array and as a Bloom filter, which answers most lookups of books that are not in the index 
+ * without a search. Positive answers of the Bloom filter are confirmed by a binary search in
+ * the array. Lookups are thread-safe.
+ * <p>
+ * The fingerprints of the books stored in a run are merged into the file by {@link #save(long[])}
+ * or {@link #merge(String, long[])} at the end of the run; the file is replaced atomically. The 
+ * merges into a file are serialized within the JVM, so that runs in the same JVM, e.g. the jobs 
+ * of the extraction service, don't overwrite each other's additions. Runs in different JVMs that 
+ * use the same index file at the same time do, so they should be run one after the other.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class GlobalDedupIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(GlobalDedupIndex.class.getSimpleName());
+
+    private static final int MAGIC = 0x47425844;    // 'GBXD'
+    private static final int VERSION = 1;
+
+    private static final HashMap<String, Object> fileLocks = new HashMap<String, Object>();  // by canonical path
+
+    private final File file;
+    private final long count;                   // the number of fingerprints in the file
+    private final BloomFilter bloom;
+    private volatile long[] sorted;             // the fingerprints in the file, null once closed
+
+    /**
+     * Opens the index, which is created by {@link #save(long[])} if it doesn't exist yet
+     *
+     * @param fileName
+     * @throws IOException if the file is not a valid index
+     */
+    public GlobalDedupIndex(String fileName) throws IOException {
+        file = new File(fileName);
+        FileReplacer.restoreBackup(file);
+
+        if (!file.exists()) {
+            count = 0;
+            bloom = new BloomFilter(0);
+            sorted = new long[0];
+            logger.debug("Global dedup index {} doesn't exist yet, it will be created at the end of the run", file);
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+
+        try {
+            count = readHeader(in);
+
+            if (count > Integer.MAX_VALUE)
+                throw new IOException("Global dedup index " + file + " is too large (" + count + " books)");
+
+            bloom = new BloomFilter(count);
+            sorted = new long[(int) count];
+
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = in.readLong();
+                bloom.add(sorted[i]);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Global dedup index " + file + " is truncated");
+        } finally {
+            in.close();
+        }
+
+        logger.debug("Global dedup index {}: {} books from earlier runs", file, count);
+    }
+
+    /**
+     * Returns true if the fingerprint is in the index, i.e. if the book was stored in an earlier run
+     *
+     * @param fingerprint
+     */
+    public boolean contains(long fingerprint) {
+        if (!bloom.mightContain(fingerprint)) return false;
+
+        long[] fingerprints = sorted;
+
+        return (fingerprints != null) && Arrays.binarySearch(fingerprints, fingerprint) >= 0;
+    }
+
+    /**
+     * The number of books in the index
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Merges the fingerprints of the run into the index file and closes the index
+     *
+     * @param fingerprints the fingerprints of the books of the run, in any order
+     * @throws IOException
+     */
+    public synchronized void save(long[] fingerprints) throws IOException {
+        close();
+        merge(file, fingerprints);
+    }
+
+    /**
+     * Merges the fingerprints of a run into the index file, without reading the index into memory,
+     * e.g. for a run that doesn't look up the books of earlier runs. The file is created if it 
+     * doesn't exist.
+     *
+     * @param fileName
+     * @param fingerprints the fingerprints of the books of the run, in any order
+     * @throws IOException
+     */
+    public static void merge(String fileName, long[] fingerprints) throws IOException {
+        merge(new File(fileName), fingerprints);
+    }
+
+    private static void merge(File file, long[] fingerprints) throws IOException {
+        synchronized (lockOf(file)) {
+            mergeInto(file, fingerprints);
+        }
+    }
+
+    /**
+     * The lock that serializes the merges into the file
+     */
+    private static Object lockOf(File file) throws IOException {
+        String path = file.getCanonicalPath();
+
+        synchronized (fileLocks) {
+            Object lock = fileLocks.get(path);
+
+            if (lock == null) {
+                lock = new Object();
+                fileLocks.put(path, lock);
+            }
+
+            return lock;
+        }
+    }
+
+    private static void mergeInto(File file, long[] fingerprints) throws IOException {
+        FileReplacer.restoreBackup(file);
+
+        long[] added = fingerprints.clone();
+        Arrays.sort(added);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+        DataInputStream in = null;
+        long merged = 0;
+        long count = 0;
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(0);   // the count is written at the end
+
+            long remaining = 0;
+            long current = 0;
+            boolean hasCurrent = false;
+
+            if (file.exists()) {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+                remaining = readHeader(in, file);
+                count = remaining;
+            }
+
+            // Merge the two sorted sequences, dropping duplicates
+            int i = 0;
+            long last = 0;
+            boolean hasLast = false;
+
+            while (true) {
+                if (!hasCurrent && remaining > 0) {
+                    current = in.readLong();
+                    remaining--;
+                    hasCurrent = true;
+                }
+
+                long next;
+
+                if (hasCurrent && (i >= added.length || current <= added[i])) {
+                    next = current;
+                    hasCurrent = false;
+                }
+                else if (i < added.length)
+                    next = added[i++];
+                else
+                    break;
+
+                if (hasLast && next == last) continue;
+
+                out.writeLong(next);
+                last = next;
+                hasLast = true;
+                merged++;
+            }
+        } finally {
+            out.close();
+
+            if (in != null) in.close();
+        }
+
+        RandomAccessFile header = new RandomAccessFile(tmp, "rw");
+
+        try {
+            header.seek(8);
+            header.writeLong(merged);
+        } finally {
+            header.close();
+        }
+
+        FileReplacer.replaceFile(tmp, file);
+
+        logger.debug("Global dedup index {}: {} books, {} new", new Object[] {file, merged, merged - count});
+    }
+
+    /**
+     * Closes the index, releasing the fingerprints held in memory. The index finds no books 
+     * afterwards.
+     */
+    public synchronized void close() {
+        sorted = null;
+    }
+
+    private long readHeader(DataInputStream in) throws IOException {
+        return readHeader(in, file);
+    }
+
+    private static long readHeader(DataInputStream in, File file) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new IOException("Not a global dedup index: " + file);
+
+        return in.readLong();
+    }
+}
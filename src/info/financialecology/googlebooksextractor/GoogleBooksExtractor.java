@@ -14,22 +14,12 @@ package info.financialecology.googlebooksextractor;
  */
 
 
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.services.books.Books;
-import com.google.api.services.books.BooksRequestInitializer;
-import com.google.api.services.books.Books.Volumes.List;
-import com.google.api.services.books.model.Volume;
-import com.google.api.services.books.model.Volume.VolumeInfo.IndustryIdentifiers;
-import com.google.api.services.books.model.Volumes;
-
-
+import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.regex.Pattern;
 
 import jargs.gnu.CmdLineParser;
 import ch.qos.logback.classic.Level;
@@ -81,6 +71,11 @@ import org.slf4j.LoggerFactory;
  *        and searches the Google Books API for each of them. The results are then merged and duplicates
  *        removed.   
  *    
+ *    With more than two clusters, the clusterArity parameter sets how many clusters are combined
+ *    in a query (default 2, i.e. pairs of terms from any two clusters). With an arity of 3, each 
+ *    query takes one term from each of three clusters, and so on. The number of queries grows 
+ *    quickly with the arity, so use the dry run option (-d) to check the cost before a run.
+ *    
  * The search terms together with other parameters are provided in .xml files, which can be 
  * edited using standard text editors. The parameters are described in below. See the example files
  * in the folder ./in/examples for further help.
@@ -125,13 +120,151 @@ import org.slf4j.LoggerFactory;
  *     (if provided). An example which stores only those books where the title or description
  *     contains the word 'handbook' is
  *           <string>(.*)handbook(.*)</string>
+ *           
+ *   - Cluster arity (optional), the number of clusters combined in a query, see above. The default 
+ *     is 2. With fewer clusters, all clusters are combined.
+ *       <clusterArity>3</clusterArity>
+ *
+ *   - Concurrency (optional), the number of queries that are sent to Google Books in parallel. The 
+ *     default is 1, i.e. the queries are run one after the other. The results are the same as for
+ *     a sequential run, whatever the concurrency level.
+ *       <concurrency>4</concurrency>
+ *
+ *   - Connection settings (optional). All queries share one client with a pool of keep-alive
+ *     connections. The transport is either 'apache' (default) or 'net', the pool size defaults to
+ *     the concurrency, and the timeouts are given in milliseconds.
+ *       <httpTransport>apache</httpTransport>
+ *       <connectionPoolSize>8</connectionPoolSize>
+ *       <connectTimeout>20000</connectTimeout>
+ *       <readTimeout>20000</readTimeout>
+ *
+ *   - API root URL (optional). The queries are sent to Google Books, unless another server with
+ *     the same API is given, e.g. a local mock server (see MockBooksServer in the bench folder).
+ *     The root URL can also be given on the command line (-u).
+ *       <rootUrl>http://localhost:8088/</rootUrl>
+ *
+ *   - Payload settings (optional). By default only the volume fields that are written to the output
+ *     are requested (partial response), and responses are gzip-compressed, which makes them a
+ *     fraction of the size of full volumes. Set to false to download full, uncompressed volumes.
+ *       <partialResponses>true</partialResponses>
+ *       <gzipResponses>true</gzipResponses>
+ *
+ *   - Response cache (optional). If a cache directory is given, the responses of Google Books are
+ *     stored on disk and repeated requests are answered from the cache, e.g. when re-running a 
+ *     parameter file with a different filter. Entries expire after the time-to-live (in hours) and
+ *     the least recently used entries are evicted when the cache exceeds its size (in megabytes).
+ *       <cacheDir>./cache/</cacheDir>
+ *       <cacheTtlHours>168</cacheTtlHours>
+ *       <cacheMaxMegabytes>512</cacheMaxMegabytes>
+ *
+ *   - Response archive (optional). If an archive directory is given, every response of Google Books
+ *     is appended to a compressed archive, which never expires. The archive is made of segment 
+ *     files of the given size (in megabytes) and an index by query and page. A run can be re-run
+ *     offline (-x) from the archive, e.g. with different filters or output settings. Set 
+ *     partialResponses to false to archive the full volumes.
+ *       <archiveDir>./archive/</archiveDir>
+ *       <archiveSegmentMegabytes>256</archiveSegmentMegabytes>
+ *
+ *   - Quota settings (optional). The requests to Google Books are limited to the given rate and 
+ *     to the daily quota, counted in the quota file across runs. Throttled (403, 429) and failed
+ *     (5xx) requests are retried with exponential backoff. When the daily quota is used up, the
+ *     run stops and writes the results obtained so far. A rate or quota of 0 means no limit.
+ *       <requestsPerSecond>5</requestsPerSecond>
+ *       <dailyQuota>1000</dailyQuota>
+ *       <maxRetries>5</maxRetries>
+ *       <quotaFile>./google_books_quota.txt</quotaFile>
+ *
+ *   - Output settings (optional). By default the stored volumes are streamed to the CSV file as 
+ *     they come in, and the file is flushed at the given interval (in seconds), so that memory use
+ *     doesn't grow with the number of volumes. Set streamOutput to false to write all volumes at 
+ *     the end of the run instead.
+ *       <streamOutput>true</streamOutput>
+ *       <flushIntervalSeconds>10</flushIntervalSeconds>
+ *     The output format is either 'csv' (default) or 'jsonl' (JSON Lines, one JSON object per 
+ *     volume and line, with the authors and categories as arrays). Either can be gzip-compressed, 
+ *     which adds '.gz' to the file name. Compressed output is only complete once the run ends and
+ *     cannot be resumed (-r).
+ *       <outputFormat>jsonl</outputFormat>
+ *       <compressOutput>true</compressOutput>
+ *     For very large runs the volumes can be written to a number of part files in parallel, e.g. 
+ *     one per core, named like 'books-part-00000.csv'. The volumes are sharded by their dedup 
+ *     'key' (default) or by their 'query'. With mergeShards set, the part files are sorted by 
+ *     dedup key and merged into the single output file. Large shards are sorted in runs that 
+ *     are written next to the part files and merged at the end of the run. Part files cannot be 
+ *     resumed (-r).
+ *       <outputShards>8</outputShards>
+ *       <shardBy>key</shardBy>
+ *       <mergeShards>true</mergeShards>
+ *
+ *   - Duplicate removal (optional). Volumes are identified by their ISBN (normalized to ISBN-13) or, 
+ *     if they have none, by their normalized title. In addition, volumes without an ISBN whose 
+ *     title is a near-duplicate of a title seen before can be removed. The threshold is the 
+ *     similarity (0..1) of the titles' character 3-grams above which titles are near-duplicates; 
+ *     0 switches the detection off (default).
+ *       <fuzzyTitleThreshold>0.8</fuzzyTitleThreshold>
+ *
+ *   - Global duplicate removal (optional). The books stored in a run are added to a global index 
+ *     file, which can be shared by all parameter files. With newVolumesOnly set, the books that 
+ *     are in the index from earlier runs are not stored, so that the output only holds new books.
+ *     Books that were removed by the filters are not added, so a later run with other filters 
+ *     still stores them. Runs sharing an index should not be run at the same time.
+ *       <globalDedupFile>./out/books.dedup</globalDedupFile>
+ *       <newVolumesOnly>true</newVolumesOnly>
+ *
+ *   - Metrics (optional). The requests (with a latency histogram), the bytes downloaded, the pages,
+ *     retries and quota errors, and the volumes stored, filtered and removed as duplicates are 
+ *     counted per query and overall. At the end of the run they are written as a JSON report next 
+ *     to the output file (<name>.metrics.json). During the run, they can be exported in the 
+ *     Prometheus text format to a file, rewritten at the given interval (in seconds), and on an 
+ *     HTTP endpoint (http://host:port/metrics).
+ *       <metricsReport>true</metricsReport>
+ *       <prometheusFile>./out/gbx.prom</prometheusFile>
+ *       <prometheusPort>9464</prometheusPort>
+ *       <metricsIntervalSeconds>15</metricsIntervalSeconds>
+ *
+ *   - Event log (optional). The events of the run (queryStarted, pageFetched, volumeStored, 
+ *     duplicate, filtered) are written as JSON Lines next to the output file (<name>.events.jsonl)
+ *     by a background thread. Each event type can be sampled, e.g. to log one in 100 stored 
+ *     volumes. The event log replaces the per-volume trace output of the verbose mode (-v).
+ *       <eventLog>true</eventLog>
+ *       <eventSampling>
+ *         <entry><string>volumeStored</string><double>0.01</double></entry>
+ *       </eventSampling>
+ *
+ *   - Service settings (optional). The number of jobs that the extraction service (-s) runs at the
+ *     same time.
+ *       <maxRunningJobs>2</maxRunningJobs>
  * <p>
  * The application can be run from the command line with the parameters:
- *    -p                name of parameter file, including path
+ *    -p                name of parameter file, including path, or a directory or glob (e.g. 
+ *                      './params/*.xml') of parameter files. The files are run one after another
+ *                      in one JVM, sharing the client, the response cache, the quota governor and
+ *                      the worker threads, which are set up from the first parameter file.
  *    -v (optional)     verbose output
  *    -o (optional)     name of the output file
  *    -a (optional)     api key provided externally, as an alternative to hard coding in 
  *                      {@code ClientCredentials}
+ *    -c (optional)     number of queries run in parallel, overrides the value in the parameter file
+ *    -r (optional)     resume an interrupted run, skipping the queries and pages stored before. The
+ *                      progress of a run is journaled next to the output file (<name>.journal).
+ *                      A run that completed can't be resumed.
+ *    -d (optional)     dry run: estimate the number of queries and requests and the runtime under 
+ *                      the configured request rate, without sending any query
+ *    -f (optional)     refresh an earlier run, fetching only the volumes that are new since then. 
+ *                      The queries ask for the newest volumes first and stop paginating at the 
+ *                      first page of volumes that are known from the earlier runs (<name>.known, 
+ *                      created from the output file on the first refresh). The new volumes are 
+ *                      written to <name>.delta.csv and merged into the output file.
+ *    -x (optional)     offline run: read the responses from the response archive (archiveDir) 
+ *                      instead of Google Books, with one thread per core. Duplicate removal, the 
+ *                      filters and the output are applied as in an online run. No API key is 
+ *                      needed, and queries or pages missing from the archive are reported.
+ *    -u (optional)     root URL of the Books API, overrides the value in the parameter file
+ *    -s (optional)     run as a long-running extraction service, which takes extraction jobs on 
+ *                      the local HTTP endpoint http://127.0.0.1:port/jobs (see ExtractionService).
+ *                      The parameter file (-p) is optional and only provides the connection, 
+ *                      cache and quota settings, the global dedup index and maxRunningJobs. The 
+ *                      output of the jobs is written below the output directory (-o, default ./out/).
  * <p>
  * To run the application in Eclipse, you need to set up the command line parameters as follows
  * <ul>
@@ -171,52 +304,41 @@ public class GoogleBooksExtractor {
 
     private static final Logger root = (Logger)LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
     
-	/**
-	 * The name of the application. If the application name is {@code null} or blank, the Google 
-	 * Books API will log a warning.
-	 */
-	private static final String APPLICATION_NAME = "GilbertPeffer-GoogleBookParser/1.0";
-
 	// The command line arguments and parameters extracted from the parameter file
 	private static class CmdArgs {
-		static GoogleBooksExtractorParams params; // parameters from the parameter file 
+		static GoogleBooksExtractorParams params; // parameters from the (first) parameter file 
 		static Boolean verbose;                   // command line argument 
 		static String output;                     // output file name (relative path)
 		static String apikey = null;              // api key, so that jar can be executed without need for changes in java code
+		static Integer concurrency = null;        // number of parallel queries, overrides the value in the parameter file
+		static Boolean resume;                    // resume an interrupted run from its journal
+		static Boolean dryRun;                    // only estimate the cost of the run, without sending queries
+		static Boolean refresh;                   // only fetch the volumes that are new since the earlier runs
+		static Boolean offline;                   // read the responses from the response archive
+		static String rootUrl = null;             // root URL of the Books API, overrides the value in the parameter file
+		static Integer serve = null;              // port of the extraction service, if run as a service
 	}
 	
-	// Book identifiers = a unique ID stored in the 'id' field of the volumes data structure
-	private static HashSet<String> bookIds = new HashSet<String>();
-	
-	// Details of all identified book volumes
-	private static ArrayList<ArrayList<String>> volList = new ArrayList<ArrayList<String>>();
-	
-	// Logged search information
-	private static ArrayList<ArrayList<String>> logList = new ArrayList<ArrayList<String>>(); 
-		
-	// Misc parameters
-	private static int maxResults = 40;			// maximum number of results returned by the Google Books API (40 is the maximum allowed)
-	private static int startIndex = 0;			// volume index at which to start in the Google Books search
-	private static int startVolList = 0;		// start index for a given set of volumes in the volList ArrayList
-	private static int totalVolCounter = 0;		// Total number of volumes returned by Google Books for a particular query
-	private static int retainedVolCounter = 0;	// Total number of volumes retained for a given set returned by Google Books (excludes duplicates)
-	
 	/**      
 	 * Main routine
-	 *     - Read arguments from the command line and parameters from the parameter file
-	 *     - Determine whether simple search or a term cluster search
-	 *     - For each term or term combination
-	 *         - build the query string
-	 *         - get the volumes (books) using the query, up to the maximum number of paginations
-	 *         - remove duplicates and store the volumes
-	 *     - Output information on results
+	 *     - Read arguments from the command line and parameters from the parameter file(s)
+	 *     - Set up the extraction engine, which is shared by all parameter files
+	 *     - Run each parameter file through the engine, see {@link ExtractionEngine#run(ExtractionContext)}
 	 *      
 	 * Command line arguments:
-	 *    -p                name of parameter file, including path
+	 *    -p                name of parameter file, including path, or a directory or glob of 
+	 *                      parameter files that are run one after another
 	 *    -v (optional)     verbose output
 	 *    -o (optional)     name of the output file
 	 *    -a (optional)     api key provided externally, as an alternative to hard coding in 
 	 *                      {@code ClientCredentials}
+	 *    -c (optional)     number of queries run in parallel, overrides the value in the parameter file
+	 *    -r (optional)     resume an interrupted run from its journal
+	 *    -d (optional)     estimate the cost of the run without sending any query
+	 *    -f (optional)     refresh an earlier run, see {@link RefreshState}
+	 *    -x (optional)     re-run offline from the response archive, see {@link ResponseArchive}
+	 *    -u (optional)     root URL of the Books API, e.g. of a local mock server
+	 *    -s (optional)     run as an extraction service on the port, see {@link ExtractionService}
 	 */
 	public static void main(String[] args) {
 	    root.setLevel(Level.DEBUG);
@@ -226,356 +348,99 @@ public class GoogleBooksExtractor {
         System.out.println("======================");
         System.out.println("[add brief description]\n");
 
-		JsonFactory jsonFactory = new JacksonFactory();
-		
 //        String outputDir = "./out/";	// TODO add folder name equal to parameter file name
 
-		logger.debug("\n\nSTART PROCESSING GOOGLE BOOKS METADATA\n");
-
 		try {
 	        logger.trace("Reading command line arguments and parameter file...");
 
-	        String fileName = processCmdLine(args);		// process command line arguments
-
-	        logger.trace("Reading parameter values from file: {}...", fileName);
-	        GoogleBooksExtractorParams params = CmdArgs.params;
+	        ArrayList<String> paramFiles = processCmdLine(args);		// process command line arguments
 	        
-	        String outputDir = CmdArgs.output;
+	        if (!CmdArgs.dryRun && !CmdArgs.offline) ClientCredentials.errorIfNotSpecified(CmdArgs.apikey);
 	        
-	        // Validate parameters
-	        GoogleBooksExtractorParams.validate(params);
+	        String apiKey = ClientCredentials.API_KEY;
 	        
-	        ArrayList<String> tmpNameList;
-	        	        
-	        // Extract file name from path
-	        if (fileName.indexOf("/") >= 0)  // path name with forward slashes (when running from MS-DOS)
-                tmpNameList = new ArrayList<String>(Arrays.asList(fileName.split("/")));
-	        else
-    	        tmpNameList = new ArrayList<String>(Arrays.asList(fileName.split("\\\\")));
+	        if (CmdArgs.apikey != null) apiKey = CmdArgs.apikey;
 	        
-            String fileNameStripped = (tmpNameList.get(tmpNameList.size() - 1).split("\\."))[0];              
-	        
-	        // Extract book volumes from Google Books for all inter-cluster term combinations
-	        Set<String> clusterNames = params.clusters.keySet();
-	        ArrayList<String> clusterNameList = new ArrayList<String>(clusterNames);
-	        	        
-	        logger.trace("Term clusters: {}", params.clusters);
-	        
-	        int totalTermCombinations = 0;
-	        int numClusters = clusterNameList.size();
-	        if (numClusters == 1) clusterNameList.add("null_cluster");	// get it to work with just one cluster
+	        /*
+	         * One engine for all parameter files, so that the pooled client, the response cache, the quota
+	         * governor and the worker threads are set up once. Their settings are taken from the first 
+	         * parameter file.
+	         */
+	        final ExtractionEngine engine = ExtractionEngine.newInstance(CmdArgs.params, apiKey);
 	        
 	        /*
-	         * Loop over all pairwise cluster combinations and create pairs of terms
+	         * As a service, the engine runs the jobs submitted over HTTP until the JVM is stopped
 	         */
-	        for (int i = 0; i < clusterNameList.size(); i++) {
-		        for (int j = i + 1; j < clusterNameList.size(); j++) {
-        			logger.trace("Cluster combination: [{}, {}]", clusterNameList.get(i), clusterNameList.get(j));
-
-		        	// Get the terms for the clusters 'i' and 'j'
-		        	ArrayList<String> terms_1 = params.clusters.get(clusterNameList.get(i));
-		        	ArrayList<String> terms_2;
-		        	
-		        	// Handle special case where just one cluster of terms is given
-		        	if (clusterNameList.get(j).compareTo("null_cluster") != 0)
-		        		terms_2 = params.clusters.get(clusterNameList.get(j));
-		        	else {
-		        		terms_2 = new ArrayList<String>();
-		        		terms_2.add("null_term");
-		        	}
-		        	
-		        	/*
-		        	 * Loop over all term pairs of {cluster 'i', cluster 'j'}
-		        	 */
-		        	for (String term_1 : terms_1) {			// loop over all terms in the first cluster
-		        		for (String term_2 : terms_2) {		// loop over all terms in the second cluster
-		        		    
-		        		    if (terms_2.get(0).compareTo("null_term") == 0)
-	                            logger.trace("\n\nNEW TERM: [{}]\n", term_1);
-		        		    else
-		        		        logger.trace("\n\nNEW TERM COMBINATION: [{}, {}]\n", term_1, term_2);
-		        			
-		        			retainedVolCounter = 0;
-		        			startIndex = 0;
-		        			int queryPage = 0;
-		        			
-		        			// Construct full query term
-                            String query = term_1;
-
-                            if (terms_2.get(0).compareTo("null_term") != 0)
-		        			    query += "+" + term_2;
-                            
-                            // Surround '+' with spaces, to prevent strange (unexplicable) behaviour of the Google Books query
-                            query = query.replaceAll("\\+", " + ");
-		        					        			
-   		        			/*
-		        			 * Apply pagination to extract all (available) book volumes - there seems 
-		        			 * to be a limit of approx. 1000 volumes returned, imposed (probably) by 
-		        			 * Google Books API.
-		        			 */
-		        			Volumes volumes = null;
-		        			int numPaginations = 0;
-		        			logger.trace("\n\nQUERY PAGE {}\n", queryPage + 1);
-		        			
-		        			do {		        			    
-	                            try {
-	                                volumes = queryGoogleBooks(jsonFactory, query, startIndex, maxResults);
-	                            } catch (IOException e) {
-	                                System.err.println(e.getMessage());
-	                            }
-	                            
-	                            if (volumes != null) {
-                                    storeBooks(params.filters, volumes, query);
-                                    totalVolCounter += volumes.getItems().size();
-                                    startIndex += maxResults;
-                                    
-                                    logger.trace("\n\nQUERY PAGE {} (startIndex = {})\n", ++queryPage + 1, startIndex);
-	                            }
-	                            
-	                            numPaginations++;
-	                            
-		        			} while ((volumes != null) && (numPaginations < params.paginations));		        			
-
-		        			// Volume information
-		        			ArrayList<String> logInfo = new ArrayList<String>();
-		        			logInfo.add(query);
-		        			logInfo.add(Integer.toString(totalVolCounter));
-		        			logInfo.add(Integer.toString(retainedVolCounter));
-		        			logInfo.add(Integer.toString(startVolList));
-		        			logList.add(logInfo);
-
-		        			logger.trace("\n\nEND QUERY PAGES\n");
-		        			logger.debug("Logged query: [query, totalVol, retainedVol, start index in volList] {}", logInfo);
-		        			
-		        			startVolList += retainedVolCounter;
-		        			totalTermCombinations++;
-		        		}
-		        	}
-		        			        	
-                    if (terms_2.get(0).compareTo("null_term") == 0) // only one cluster was provided
-                        logger.debug("\n\nPROCESSED {} CLUSTER TERMS\n", terms_1.size());
-		        }
+	        if (CmdArgs.serve != null) {
+	            final ExtractionService service;
+	            
+	            try {
+	                service = new ExtractionService(engine, CmdArgs.serve, (CmdArgs.output != null) ? CmdArgs.output : "./out/", 
+	                        CmdArgs.params.maxRunningJobs, CmdArgs.params.globalDedupFile);
+	            } catch (IOException e) {
+	                engine.close();
+	                throw e;
+	            }
+	            
+	            Runtime.getRuntime().addShutdownHook(new Thread() {
+	                public void run() {
+	                    service.stop();
+	                    engine.close();
+	                }
+	            });
+	            
+	            service.start();
+	            return;
 	        }
 	        
-            if (clusterNameList.get(1).compareTo("null_cluster") != 0)  // only one cluster was provided
-                logger.debug("\n\nPROCESSED {} TERM COMBINATIONS FROM {} CLUSTERS\n", totalTermCombinations, clusterNameList.size());
-
-
-        	/*
-        	 *  Write volList results to CSV file
-        	 */
-            if ((outputDir != null) && (volList.size() != 0)) {
-    	        logger.debug("\n\nWriting results to CSV file: {}\n", outputDir + fileNameStripped + ".csv");
-    	        ResultWriterFactory.newCsvWriter(outputDir + fileNameStripped + ".csv").write(volList);
-            }
-            
-	        logger.debug("\n\nFINISHED PROCESSING GOOGLE BOOKS METADATA\n");
-            logger.debug("Total number of volumes returned by Google Books API: {}", totalVolCounter);
-        	logger.debug("Total number of volumes stored: {}", volList.size() - 1);
-        	
-            if (volList.size() == 0) {
-                logger.debug("\n\n### IMPORTANT ### Google Books has returned no results, which can mean "
-                        + "that your API key has not been set\n");
-            }
+	        boolean invalid = false;    // a run was rejected, e.g. for invalid parameters or a changed parameter file
+	        
+	        try {
+	            for (int i = 0; i < paramFiles.size(); i++) {
+	                String fileName = paramFiles.get(i);
+	                
+	                if (paramFiles.size() > 1)
+	                    logger.debug("\n\nPARAMETER FILE {} OF {}: {}\n", new Object[] {i + 1, paramFiles.size(), fileName});
+	                
+	                logger.trace("Reading parameter values from file: {}...", fileName);
+	                GoogleBooksExtractorParams params = (i == 0) ? CmdArgs.params : readParameters(fileName);
+	                ExtractionResult result;
+	                
+	                try {
+	                    result = engine.run(new ExtractionContext(ExtractionContext.runName(fileName), params, CmdArgs.output, 
+	                            CmdArgs.resume, CmdArgs.dryRun, CmdArgs.refresh, CmdArgs.offline));
+	                } catch (IllegalArgumentException e) {
+	                    logger.error("Cannot run {}: {}", fileName, e.getMessage());
+	                    invalid = true;
+	                    break;
+	                } catch (IllegalStateException e) {
+	                    logger.error("Cannot run {}: {}", fileName, e.getMessage());
+	                    invalid = true;
+	                    break;
+	                } catch (Throwable t) {
+	                    t.printStackTrace();    // continue with the next parameter file
+	                    continue;
+	                }
+	                
+	                if (result.isQuotaExhausted() && (i + 1 < paramFiles.size())) {
+	                    logger.error("\n\n### QUOTA EXHAUSTED ### {} of {} parameter files not run\n", paramFiles.size() - i - 1, paramFiles.size());
+	                    break;
+	                }
+	            }
+	        } finally {
+	            engine.close();
+	        }
+	        
+	        if (invalid) {      // as for invalid command line arguments
+	            logger.error("----- Stopping execution -----");
+	            System.exit(0);
+	        }
 		} catch (Throwable t) {
 			t.printStackTrace();
 		}
 	}
 
 	
-	/**
-	 * Execute the query on Google Books to obtain the list of volumes. The maximum number of volumes
-	 * returned is 40.
-	 * 
-	 * @param jsonFactory
-	 * @param query
-	 * @param startIndex
-	 * @param maxResults
-	 * @return volumes
-	 * @throws Exception
-	 */
-    private static Volumes queryGoogleBooks(JsonFactory jsonFactory, String query, int startIndex, int maxResults) throws Exception {
-        Logger logger = (Logger)LoggerFactory.getLogger("queryGoogleBooks");
-        
-        ClientCredentials.errorIfNotSpecified(CmdArgs.apikey);
-        
-        String apiKey = ClientCredentials.API_KEY;
-        
-        if (CmdArgs.apikey != null) apiKey = CmdArgs.apikey;
-
-        // Create books client (provides the query service)
-        final Books books = new Books.Builder(new NetHttpTransport(), jsonFactory, null)
-                                     .setApplicationName(APPLICATION_NAME)
-                                     .setGoogleClientRequestInitializer(new BooksRequestInitializer(apiKey))
-                                     .build();
-        
-        logger.trace("Query: [{}]\n", query);
-        
-        List volumesList = books.volumes().list(query);
-        volumesList.setStartIndex((long) startIndex);
-        volumesList.setMaxResults((long) maxResults);
-
-        Volumes volumes = volumesList.execute();    // Execute the query
-        
-        // No volumes found
-        if (volumes.getTotalItems() == 0 || volumes.getItems() == null) {
-            logger.trace("==============================");
-            logger.trace("No (further) matches found for query");
-            logger.trace("==============================\n");
-            return null;
-        }
-
-        return volumes;
-    }
-    
-    
-    /**
-     * Storing the volumes (books) in the global table {@code volList}. The table is represented 
-     * internally as an arraylist of arraylists of strings (the volume information).
-     * 
-     * Duplicates and books that have no title are not stored. If filters are provided in the parameter
-     * file, they are applied here and only those books are stored whose title or description (if 
-     * provided) are matched by the regex filter(s). 
-     * 
-     * @param filters
-     * @param volumes
-     * @param query
-     */
-	private static void storeBooks(ArrayList<String> filters, Volumes volumes, String query) {
-		
-		Logger logger = (Logger)LoggerFactory.getLogger("storeBooks");
-
-		// Store each book (volume) in the array list volList if it isn't there already
-		for (Volume volume : volumes.getItems()) {
-			Volume.VolumeInfo volumeInfo = volume.getVolumeInfo();
-			java.util.List<IndustryIdentifiers> ids = volumeInfo.getIndustryIdentifiers();
-            String title = volumeInfo.getTitle();
-            String bookId = "";
-			
-	        if (title != null) // skip volumes where a title is not provided
-	               if (title.isEmpty()) continue;
-			
-			/*
-			 * We are using the industry identifiers such as ISBN to avoid duplicate entries. In case
-			 * that the identifier is not available, we use the 20 first characters of the title.
-			 */
-			if (ids != null && !ids.isEmpty()) {
-				bookId = ids.get(0).getIdentifier();
-				
-				if (bookIds.contains(bookId)) {
-					logger.trace("DUPLICATE: Book not added, because industry identifier [{}] already registered. [TITLE: {}]", bookId, title);
-					continue;
-				}
-				else
-					bookIds.add(bookId);
-			}
-			else {
-				// TODO If no industry identifier is given, create a hash key using the first N terms of the title
-				bookId = volumeInfo.getTitle();
-				
-				if (bookId != null && !bookId.isEmpty()) {
-					int len = bookId.length();
-					if (len > 20) len = 20;
-					bookId = bookId.substring(0, len-1);
-					
-					if (bookIds.contains(bookId)) {
-						logger.trace("DUPLICATE: Book not added, because title substring [{}] already registered. [TITLE: {}]", bookId, title);
-						continue;
-					}
-					else {
-						bookIds.add(bookId);
-						logger.trace("Book added, with title substring [{}] registered in HashSet", bookId);
-					}
-				} else {
-					logger.error("Book not added, because of both the industry identifier and the title are missing");
-					continue;					
-				}
-			}
-			
-			/*
-			 *  Apply regex filters to titles and descriptions. Filters are OR'ed, meaning
-			 *  that if several are provided, one match is sufficient to store the volume.
-			 */
-			Boolean match = false;
-	        Boolean storeVolume = true;
-
-			String description = volumeInfo.getDescription();
-			
-			if (description == null) description = "";
-			
-            if (filters != null && !filters.isEmpty()) {
-				for (String filter : filters) { // no need to apply multiple filters since this can be handled by regex
-				    if ((description != null) && (!description.isEmpty())) {
-    					if (description.toLowerCase().matches(filter.toLowerCase()) || title.toLowerCase().matches(filter.toLowerCase())) {
-    						match = true;
-    						break;
-    					}
-				    }
-				    else {  // if no description is provided, do not apply filter to it
-                        if (title.toLowerCase().matches(filter.toLowerCase())) {
-                            match = true;
-                            break;
-                        }				        
-				    }
-				}
-				
-                if (!match)     // don't store the book if there is no regex match for the given title or description
-                    storeVolume = false;
-			}
-            
-            /*
-             * Create a list of lists containing the book information (in string form) 
-             */
-			if (storeVolume) {
-				ArrayList<String> volInfo = new ArrayList<String>();
-				
-				// Add a header with the entry labels
-				if (volList.isEmpty()) {					
-					ArrayList<String> volHeader = new ArrayList<String>();
-					volHeader.add("title");
-					volHeader.add("query");
-					volHeader.add("authors");
-					volHeader.add("categories");
-					volHeader.add("description");
-					volHeader.add("published");
-					volHeader.add("previewLink");
-					volHeader.add("industryId");
-					volList.add(volHeader);
-				}
-				
-				if (volumeInfo.getSubtitle() != null)
-					title += ". " + volumeInfo.getSubtitle();
-				
-				volInfo.add(title);
-				
-				volInfo.add(query);
-				
-				if (volumeInfo.getAuthors() == null)
-					volInfo.add(null);
-				else
-					volInfo.add(volumeInfo.getAuthors().toString());
-				
-				if (volumeInfo.getCategories() == null)
-					volInfo.add(null);
-				else
-					volInfo.add(volumeInfo.getCategories().toString());
-				
-				volInfo.add(volumeInfo.getDescription());
-				volInfo.add(volumeInfo.getPublishedDate());		// TODO extract year, using regex
-				volInfo.add(volumeInfo.getPreviewLink());
-				volInfo.add(bookId);
-				volList.add(volInfo);
-				
-				logger.trace("Stored title: {}", title.substring(0, Math.min(title.length(), 100)));
-	
-				retainedVolCounter++;   // counter for the number of stored volumes (books)
-			}
-			else
-				logger.trace("NOT STORED: {}", title.substring(0, Math.min(title.length(), 100)));
-
-		}
-	}
-
 	    
 	/**
 	 * Print the help string for command line usage 
@@ -589,7 +454,7 @@ public class GoogleBooksExtractor {
      * The help string for command line usage 
      */
 	private static String getUsage() {
-		return "Usage: GoogleBooksExtractor [{-v,--verbose}] {-p,--params} parameter file [{-o,--output} output file] [{-a,--apikey} api key]";
+		return "Usage: GoogleBooksExtractor [{-v,--verbose}] {-p,--params} parameter file, directory or glob [{-o,--output} output file] [{-a,--apikey} api key] [{-c,--concurrency} number of parallel queries] [{-r,--resume}] [{-d,--dry-run}] [{-f,--refresh}] [{-x,--offline}] [{-u,--root-url} api root url] [{-s,--serve} port]";
 	}
 
 	
@@ -597,9 +462,9 @@ public class GoogleBooksExtractor {
 	 * Processing the command line arguments
 	 * 
 	 * @param args
-	 * @return
+	 * @return the parameter files
 	 */
-	private static String processCmdLine(String[] args) {
+	private static ArrayList<String> processCmdLine(String[] args) {
 		Logger logger = (Logger)LoggerFactory.getLogger("processCmdLine");
 
 		CmdLineParser parser = new CmdLineParser();
@@ -607,6 +472,13 @@ public class GoogleBooksExtractor {
         CmdLineParser.Option inputFileName = parser.addStringOption('p', "params");
         CmdLineParser.Option outputFileName = parser.addStringOption('o', "output");
         CmdLineParser.Option apiKey = parser.addStringOption('a', "apikey");
+        CmdLineParser.Option concurrency = parser.addIntegerOption('c', "concurrency");
+        CmdLineParser.Option resume = parser.addBooleanOption('r', "resume");
+        CmdLineParser.Option dryRun = parser.addBooleanOption('d', "dry-run");
+        CmdLineParser.Option refresh = parser.addBooleanOption('f', "refresh");
+        CmdLineParser.Option offline = parser.addBooleanOption('x', "offline");
+        CmdLineParser.Option rootUrl = parser.addStringOption('u', "root-url");
+        CmdLineParser.Option serve = parser.addIntegerOption('s', "serve");
 
 		try {
 			parser.parse(args);
@@ -618,30 +490,122 @@ public class GoogleBooksExtractor {
 		}
 
         String fileNameValue = (String)parser.getOptionValue(inputFileName);
-        Assertion.assertStrict(fileNameValue != null, Assertion.Level.ERR, "Parameter file name argument is missing\n\n" + getUsage() + "\n");
+        CmdArgs.serve = (Integer)parser.getOptionValue(serve);
+        Assertion.assertStrict(fileNameValue != null || CmdArgs.serve != null, Assertion.Level.ERR, "Parameter file name argument is missing\n\n" + getUsage() + "\n");
 
         CmdArgs.output = (String)parser.getOptionValue(outputFileName);
         CmdArgs.apikey = (String)parser.getOptionValue(apiKey);
+        CmdArgs.concurrency = (Integer)parser.getOptionValue(concurrency);
+        CmdArgs.rootUrl = (String)parser.getOptionValue(rootUrl);
+        Assertion.assertStrict(CmdArgs.concurrency == null || CmdArgs.concurrency > 0, Assertion.Level.ERR, "Concurrency needs to be at least 1");
 
 		CmdArgs.verbose = (Boolean)parser.getOptionValue(verbose, Boolean.FALSE);
+		CmdArgs.resume = (Boolean)parser.getOptionValue(resume, Boolean.FALSE);
+		CmdArgs.dryRun = (Boolean)parser.getOptionValue(dryRun, Boolean.FALSE);
+		CmdArgs.refresh = (Boolean)parser.getOptionValue(refresh, Boolean.FALSE);
+		Assertion.assertStrict(!CmdArgs.refresh || !CmdArgs.resume, Assertion.Level.ERR, "A refresh cannot be resumed (-r)");
+		CmdArgs.offline = (Boolean)parser.getOptionValue(offline, Boolean.FALSE);
+		Assertion.assertStrict(!CmdArgs.offline || !CmdArgs.refresh, Assertion.Level.ERR, "A refresh cannot be run offline (-x)");
+		Assertion.assertStrict(!CmdArgs.offline || CmdArgs.serve == null, Assertion.Level.ERR, "The service cannot be run offline (-x)");
 
 		if (CmdArgs.verbose)
 			root.setLevel(Level.TRACE);
 		else
 			root.setLevel(Level.DEBUG);
 
+		if (CmdArgs.serve != null && fileNameValue == null) {    // a service with the default settings
+		    CmdArgs.params = new GoogleBooksExtractorParams();
+		    CmdArgs.params.rootUrl = CmdArgs.rootUrl;
+		    
+		    if (CmdArgs.concurrency != null) CmdArgs.params.concurrency = CmdArgs.concurrency;
+		    
+		    return new ArrayList<String>();
+		}
+
+		ArrayList<String> paramFiles = listParameterFiles(fileNameValue);
+		Assertion.assertStrict(!paramFiles.isEmpty(), Assertion.Level.ERR, "No parameter files found for " + fileNameValue);
+		
+		logger.trace("Parameter files: {}", paramFiles);
+
+		CmdArgs.params = readParameters(paramFiles.get(0));
+
+		return paramFiles;
+	}
+
+	
+	/**
+	 * Reads the parameter file and applies the values given on the command line, which override 
+	 * those in the file
+	 * 
+	 * @param fileName
+	 * @return the parameters
+	 */
+	private static GoogleBooksExtractorParams readParameters(String fileName) {
+		Logger logger = (Logger)LoggerFactory.getLogger("readParameters");
+
 		GoogleBooksExtractorParams params = null;
 
 		try {
-			params = GoogleBooksExtractorParams.readParameters(fileNameValue);            
+			params = GoogleBooksExtractorParams.readParameters(fileName);            
 		} catch (Throwable e) {
 			logger.error(e.getMessage());
 			System.exit(0);
 		}
 
-		CmdArgs.params = params;
+		if (CmdArgs.rootUrl != null)
+		    params.rootUrl = CmdArgs.rootUrl;
+		
+		if (CmdArgs.concurrency != null)
+		    params.concurrency = CmdArgs.concurrency;
 
-		return fileNameValue;
+		return params;
+	}
+
+	
+	/**
+	 * The parameter files given with -p: a single file, all XML files in a directory, or the files 
+	 * matching a glob such as './params/run_*.xml', where '*' and '?' may only be used in the file 
+	 * name. The files of a directory or glob are sorted by name.
+	 * 
+	 * @param fileName
+	 * @return the parameter files
+	 */
+	private static ArrayList<String> listParameterFiles(String fileName) {
+	    File file = new File(fileName);
+	    final Pattern pattern;
+	    File dir;
+	    
+	    if (file.isDirectory()) {
+	        dir = file;
+	        pattern = Pattern.compile("(?i).*\\.xml");
+	    }
+	    else if (file.getName().indexOf('*') >= 0 || file.getName().indexOf('?') >= 0) {
+	        dir = (file.getParentFile() != null) ? file.getParentFile() : new File(".");
+	        StringBuilder regex = new StringBuilder();
+	        
+	        for (char c : file.getName().toCharArray())
+	            regex.append((c == '*') ? ".*" : (c == '?') ? "." : Pattern.quote(String.valueOf(c)));
+	        
+	        pattern = Pattern.compile(regex.toString());
+	    }
+	    else
+	        return new ArrayList<String>(Arrays.asList(fileName));
+	    
+	    File[] files = dir.listFiles(new FilenameFilter() {
+	        public boolean accept(File d, String name) {
+	            return pattern.matcher(name).matches() && new File(d, name).isFile();
+	        }
+	    });
+	    ArrayList<String> paramFiles = new ArrayList<String>();
+	    
+	    if (files != null) {
+	        Arrays.sort(files);
+	        
+	        for (File f : files)
+	            paramFiles.add(f.getPath());
+	    }
+	    
+	    return paramFiles;
 	}
 
 }
\ No newline at end of file
@@ -16,6 +16,10 @@ package info.financialecology.googlebooksextractor;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
 
 
 /**
@@ -41,6 +45,41 @@ public class GoogleBooksExtractorParams extends XmlParameters {
     public HashMap<String, ArrayList<String>> clusters = new HashMap<String, ArrayList<String>>();  // the clusters or sets of term combinations
     public ArrayList<String> filters = new ArrayList<String>(); // the regex filters for the volume title or description 
     public int paginations; // the maximum number of paginations for any given search term
+    public int clusterArity = 2;    // the number of clusters combined in a query
+    public int concurrency = 1; // the number of queries that are sent to Google Books in parallel
+    public String httpTransport = BooksClient.TRANSPORT_APACHE; // the http transport, either 'apache' (pooled HttpClient) or 'net' (HttpURLConnection)
+    public int connectionPoolSize = 0;  // the maximum number of pooled connections, 0 means one connection per parallel query
+    public int connectTimeout = 20000;  // the connect timeout in milliseconds
+    public int readTimeout = 20000;     // the read timeout in milliseconds
+    public String rootUrl = null;       // the root URL of the Books API, e.g. of a local mock server, Google Books if not set
+    public boolean partialResponses = true; // request only the volume fields written to the output
+    public boolean gzipResponses = true;    // ask for gzip-compressed responses
+    public String cacheDir = null;      // the directory of the response cache, no caching if not set
+    public int cacheTtlHours = 168;     // the time-to-live of cached responses in hours
+    public int cacheMaxMegabytes = 512; // the maximum size of the response cache in megabytes
+    public String archiveDir = null;            // the directory of the response archive, no archive if not set
+    public int archiveSegmentMegabytes = 256;   // the size at which a new segment file of the archive is started
+    public double requestsPerSecond = 5;    // the maximum rate of requests to Google Books, 0 means no limit
+    public int dailyQuota = 1000;       // the maximum number of requests per day, 0 means no limit
+    public int maxRetries = 5;          // the number of retries for throttled or failed requests
+    public String quotaFile = "./google_books_quota.txt";   // the file holding the daily request counter across runs
+    public boolean streamOutput = true; // stream the stored volumes to the output file, rather than writing them at the end
+    public int flushIntervalSeconds = 10;   // the maximum time between flushes of the streamed output
+    public String outputFormat = ResultWriterFactory.FORMAT_CSV;   // the output format, either 'csv' or 'jsonl' (JSON Lines)
+    public boolean compressOutput = false;  // compress the output file with gzip
+    public int outputShards = 1;            // the number of part files written in parallel, 1 means a single output file
+    public String shardBy = ShardedResultWriter.SHARD_BY_KEY;  // shard the volumes by dedup 'key' or by 'query'
+    public boolean mergeShards = false;     // merge the part files into a single file sorted by dedup key
+    public double fuzzyTitleThreshold = 0;  // the title similarity above which volumes without ISBN are near-duplicates, 0 means off
+    public String globalDedupFile = null;   // the index of the books of all runs, not used if not set
+    public boolean newVolumesOnly = false;  // only store the books that are not in the global index
+    public boolean metricsReport = true;    // write the run metrics as a JSON report next to the output file
+    public String prometheusFile = null;    // the file the metrics are written to in the Prometheus text format during the run, not written if not set
+    public int prometheusPort = 0;          // the port of the Prometheus metrics endpoint, 0 means no endpoint
+    public int metricsIntervalSeconds = 15; // the interval at which the Prometheus file is rewritten
+    public boolean eventLog = false;        // write the events of the run as JSON Lines next to the output file
+    public HashMap<String, Double> eventSampling = new HashMap<String, Double>();  // the share of the events of a type that are logged, all if not set
+    public int maxRunningJobs = 2;          // the number of jobs the extraction service runs at the same time
 
     //    GoogleBooksExtractorParams() {	// Uncomment to write a test XML file with writeParamDefinition(...) 
 //    	L1 = new Sweep_1();
@@ -69,9 +108,54 @@ public class GoogleBooksExtractorParams extends XmlParameters {
      * Parameter validation
      */
     public static void validate(GoogleBooksExtractorParams params) {
+        validate(params, info.financialecology.googlebooksextractor.Assertion.Level.ERR);
+    }
+    
+    /**
+     * Parameter validation, failing with the given assertion level, e.g. {@code EXCEPTION} for 
+     * the parameters of a job
+     */
+    public static void validate(GoogleBooksExtractorParams params, Assertion.Level level) {
         
-        Assertion.assertStrict(params.paginations > 0, info.financialecology.googlebooksextractor.Assertion.Level.ERR,
+        Assertion.assertStrict(params.paginations > 0, level,
                 "Number of paginations either not set or set to less than 1 in parameter file");
+        Assertion.assertStrict(params.clusters != null && !params.clusters.isEmpty(), level,
+                "No term clusters in parameter file");
+        Assertion.assertStrict(params.clusterArity > 0, level,
+                "Cluster arity set to less than 1 in parameter file");
+        Assertion.assertStrict(params.concurrency > 0, level,
+                "Concurrency set to less than 1 in parameter file");
+        Assertion.assertStrict(params.connectTimeout >= 0 && params.readTimeout >= 0, level,
+                "Connect or read timeout set to a negative value in parameter file");
+        Assertion.assertStrict(params.cacheTtlHours > 0 && params.cacheMaxMegabytes > 0, level,
+                "Cache time-to-live or cache size set to less than 1 in parameter file");
+        Assertion.assertStrict(params.archiveSegmentMegabytes > 0, level,
+                "Archive segment size set to less than 1 in parameter file");
+        Assertion.assertStrict(params.requestsPerSecond >= 0 && params.dailyQuota >= 0 && params.maxRetries >= 0, level,
+                "Request rate, daily quota or number of retries set to a negative value in parameter file");
+        Assertion.assertStrict(params.fuzzyTitleThreshold >= 0 && params.fuzzyTitleThreshold <= 1, level,
+                "Fuzzy title threshold not between 0 and 1 in parameter file");
+        Assertion.assertStrict(!params.newVolumesOnly || params.globalDedupFile != null, level,
+                "Storing new volumes only requires a global dedup file in parameter file");
+        Assertion.assertStrict(ResultWriterFactory.FORMAT_CSV.equalsIgnoreCase(params.outputFormat) 
+                || ResultWriterFactory.FORMAT_JSON_LINES.equalsIgnoreCase(params.outputFormat), level,
+                "Output format is neither 'csv' nor 'jsonl' in parameter file");
+        Assertion.assertStrict(params.outputShards > 0, level,
+                "Number of output shards set to less than 1 in parameter file");
+        Assertion.assertStrict(ShardedResultWriter.SHARD_BY_KEY.equalsIgnoreCase(params.shardBy) 
+                || ShardedResultWriter.SHARD_BY_QUERY.equalsIgnoreCase(params.shardBy), level,
+                "Sharding is neither by 'key' nor by 'query' in parameter file");
+        Assertion.assertStrict(params.metricsIntervalSeconds > 0 && params.prometheusPort >= 0, level,
+                "Metrics interval set to less than 1 or Prometheus port set to a negative value in parameter file");
+        Assertion.assertStrict(params.maxRunningJobs > 0, level,
+                "Number of running jobs set to less than 1 in parameter file");
+
+        if (params.eventSampling != null) {
+            for (Map.Entry<String, Double> sampling : params.eventSampling.entrySet())
+                Assertion.assertStrict(EventLog.eventType(sampling.getKey()) >= 0 && sampling.getValue() != null 
+                        && sampling.getValue() >= 0 && sampling.getValue() <= 1, level,
+                        "Event sampling of '" + sampling.getKey() + "' is not an event or not between 0 and 1 in parameter file");
+        }
     }
     
     /**
@@ -95,4 +179,24 @@ public class GoogleBooksExtractorParams extends XmlParameters {
         return (GoogleBooksExtractorParams) readParams(file, new GoogleBooksExtractorParams());
     }
 
+    /**
+     * Reads the parameters from a JSON document with the same field names as the xml file, e.g. 
+     * <pre>
+     *   {"clusters": {"A": ["systemic", "risk"]}, "filters": ["(.*)risk(.*)"], "paginations": 5}
+     * </pre>
+     * Fields that are not in the document keep their default values.
+     * 
+     * @param json
+     * @return
+     * @throws JsonSyntaxException if the document is not valid
+     */
+    public static GoogleBooksExtractorParams fromJson(String json) throws JsonSyntaxException {
+        GoogleBooksExtractorParams params = new Gson().fromJson(json, GoogleBooksExtractorParams.class);
+        
+        if (params == null)
+            throw new JsonSyntaxException("Empty parameter document");
+        
+        return params;
+    }
+
 }
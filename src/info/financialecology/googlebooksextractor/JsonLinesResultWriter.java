@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+
+/**
+ * Writes the volumes to a JSON Lines file, one JSON object per volume and line, with the
+ * {@link VolumeRecord#HEADER} labels as keys. Authors and categories are written as arrays, e.g.
+ * <pre>
+ *   {"title":"...","query":"...","authors":["Author A","Author B"],"categories":["Science"],...}
+ * </pre>
+ * Rows of strings, from {@code write} or {@code writeRow}, are written as objects with the labels 
+ * of the header row as keys and string values. 
+ * <p>
+ * As for {@code CsvResultWriter}, the output is buffered and flushed at least every 
+ * {@code flushIntervalMillis}, except for the deflater of a compressed file, and the file is 
+ * only created when the first volume is written.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class JsonLinesResultWriter implements ResultWriter {
+    private static final Logger logger = LoggerFactory.getLogger(JsonLinesResultWriter.class.getSimpleName());
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final String fileName;
+    private final long flushIntervalMillis;
+    private final boolean append;
+    private final boolean gzip;
+    private JsonGenerator g = null;
+    private List<String> labels = null;     // the labels of the header row of streamed rows
+    private long lastFlush;
+    private boolean closed = false;
+    private boolean failed = false;         // a volume couldn't be written
+
+    /**
+     * Constructor
+     *
+     * @param fileName
+     * @param flushIntervalMillis the maximum time between flushes of streamed volumes
+     * @param append append the volumes to an existing file, e.g. when resuming a run
+     * @param gzip compress the file with gzip
+     */
+    public JsonLinesResultWriter(String fileName, long flushIntervalMillis, boolean append, boolean gzip) {
+        this.fileName = fileName;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.append = append;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Write results to the file. As for the CSV writer, only results in the form of an ArrayList
+     * of ArrayLists, with the header labels in the first list, can be processed.
+     *
+     * @param result
+     */
+    @SuppressWarnings({ "unchecked" })
+    public void write(Object result) {
+        if (!result.getClass().equals(ArrayList.class)) return;
+
+        for (ArrayList<String> row : (ArrayList<ArrayList<String>>) result)
+            writeRow(row);
+
+        flush();
+    }
+
+    /**
+     * Write a single row as an object. The first row needs to contain the header labels, which 
+     * become the keys of the objects.
+     *
+     * @param row
+     */
+    public void writeRow(List<String> row) {
+        if (labels == null) {
+            labels = new ArrayList<String>(row);
+            return;
+        }
+
+        JsonGenerator g = open();
+
+        if (g == null) return;
+
+        try {
+            g.writeStartObject();
+
+            for (int i = 0; i < labels.size() && i < row.size(); i++)
+                g.writeStringField(labels.get(i), row.get(i));
+
+            g.writeEndObject();
+        } catch (IOException e) {
+            error(e);
+        }
+
+        flushIfDue();
+    }
+
+    /**
+     * Write the volumes to the file
+     *
+     * @param volumes
+     */
+    public void writeVolumes(Iterator<VolumeRecord> volumes) {
+        while (volumes.hasNext())
+            writeVolume(volumes.next());
+
+        flush();
+    }
+
+    /**
+     * A JSON Lines file has no header, the labels are the keys of each object
+     */
+    public void writeHeader() {
+    }
+
+    /**
+     * Write a single volume as an object
+     *
+     * @param volume
+     */
+    public void writeVolume(VolumeRecord volume) {
+        JsonGenerator g = open();
+
+        if (g == null) return;
+
+        try {
+            g.writeStartObject();
+            writeString(g, "title", volume.getTitle());
+            writeString(g, "query", volume.getQuery());
+            writeList(g, "authors", volume.getAuthors());
+            writeList(g, "categories", volume.getCategories());
+            writeString(g, "description", volume.getDescription());
+            writeString(g, "published", volume.getPublished());
+            writeString(g, "previewLink", volume.getPreviewLink());
+            writeString(g, "industryId", volume.getIndustryId());
+            g.writeEndObject();
+        } catch (IOException e) {
+            error(e);
+        }
+
+        flushIfDue();
+    }
+
+    /**
+     * Flush the volumes written so far to the file
+     *
+     * @return false if any volume couldn't be written
+     */
+    public boolean flush() {
+        if (g == null || closed) return !failed;
+
+        try {
+            g.flush();
+        } catch (IOException e) {
+            error(e);
+        }
+
+        lastFlush = System.currentTimeMillis();
+
+        return !failed;
+    }
+
+    /**
+     * Flush and close the file
+     */
+    public void close() {
+        if (g == null || closed) return;
+
+        closed = true;
+
+        try {
+            g.writeRaw('\n');
+            g.close();
+        } catch (IOException e) {
+            logger.error("Cannot close JSON Lines file {}: {}", fileName, e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the file when the first volume is written
+     */
+    private JsonGenerator open() {
+        if (g == null && !closed) {
+            try {
+                Writer w = ResultWriterFactory.newBufferedWriter(fileName, append, gzip);
+                g = jsonFactory.createJsonGenerator(w);
+                g.setPrettyPrinter(new MinimalPrettyPrinter("\n"));    // one object per line
+
+                if (append && new File(fileName).length() > 0)
+                    g.writeRaw('\n');    // the checkpointed file of an interrupted run ends after an object
+
+                lastFlush = System.currentTimeMillis();
+            } catch (IOException e) {
+                logger.error("Cannot open JSON Lines file {}: {}", fileName, e.getMessage());
+                closed = true;
+                failed = true;
+            }
+        }
+
+        return g;
+    }
+
+    private void flushIfDue() {
+        if (System.currentTimeMillis() - lastFlush >= flushIntervalMillis)
+            flush();
+    }
+
+    private void error(IOException e) {
+        failed = true;
+        logger.error("Cannot write JSON Lines file {}: {}", fileName, e.getMessage());
+    }
+
+    private static void writeString(JsonGenerator g, String name, String value) throws IOException {
+        if (value == null)
+            g.writeNullField(name);
+        else
+            g.writeStringField(name, value);
+    }
+
+    private static void writeList(JsonGenerator g, String name, List<String> values) throws IOException {
+        if (values == null) {
+            g.writeNullField(name);
+            return;
+        }
+
+        g.writeArrayFieldStart(name);
+
+        for (String value : values)
+            g.writeString(value);
+
+        g.writeEndArray();
+    }
+}
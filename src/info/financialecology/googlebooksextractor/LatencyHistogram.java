@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+/**
+ * A histogram of request latencies with fixed buckets, as used by Prometheus: bucket {@code i} 
+ * counts the latencies of at most {@code BOUNDS[i]} seconds that are above the previous bound, 
+ * and the last bucket counts the latencies above the largest bound. The histogram also keeps 
+ * the count, the sum and the maximum of the latencies, and estimates percentiles by linear 
+ * interpolation within a bucket.
+ * <p>
+ * The histogram is not thread-safe, see {@code RunMetrics}.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class LatencyHistogram {
+
+    /**
+     * The upper bounds of the buckets in seconds
+     */
+    public static final double[] BOUNDS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30 };
+
+    private final long[] buckets = new long[BOUNDS.length + 1];
+    private long count = 0;
+    private double sumSeconds = 0;
+    private double maxSeconds = 0;
+
+    /**
+     * Records a latency
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        double seconds = nanos / 1e9;
+        int i = 0;
+
+        while (i < BOUNDS.length && seconds > BOUNDS[i])
+            i++;
+
+        buckets[i]++;
+        count++;
+        sumSeconds += seconds;
+        maxSeconds = Math.max(maxSeconds, seconds);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSumSeconds() {
+        return sumSeconds;
+    }
+
+    public double getMaxSeconds() {
+        return maxSeconds;
+    }
+
+    /**
+     * The number of latencies in the bucket, not cumulative
+     */
+    public long getBucketCount(int bucket) {
+        return buckets[bucket];
+    }
+
+    /**
+     * Estimates a percentile of the latencies
+     *
+     * @param percentile e.g. 0.99
+     * @return the latency in seconds, or 0 if no latencies were recorded
+     */
+    public double getPercentile(double percentile) {
+        if (count == 0) return 0;
+
+        double rank = percentile * count;
+        long cumulative = 0;
+
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] > 0 && cumulative + buckets[i] >= rank) {
+                double lower = (i == 0) ? 0 : BOUNDS[i - 1];
+                double upper = (i < BOUNDS.length) ? Math.min(BOUNDS[i], maxSeconds) : maxSeconds;
+
+                return lower + (upper - lower) * Math.max(0, rank - cumulative) / buckets[i];
+            }
+
+            cumulative += buckets[i];
+        }
+
+        return maxSeconds;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+/**
+ * A set of {@code long} values with open addressing and linear probing. Unlike a 
+ * {@code HashSet<Long>}, which needs a boxed {@code Long} and a map entry per value (some 50-60 
+ * bytes), the set holds each value in a slot of a single {@code long[]}, i.e. 8 bytes at full 
+ * load and about 16 bytes at the average load factor.
+ * <p>
+ * Values can't be removed. The set is not thread-safe.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class LongHashSet {
+
+    private static final long EMPTY = 0;            // marks an empty slot, the value 0 is kept in a flag
+    private static final double MAX_LOAD = 0.6;
+
+    private long[] slots;
+    private int mask;
+    private int size = 0;
+    private boolean containsZero = false;
+
+    public LongHashSet() {
+        this(1024);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param expectedSize the number of values the set holds without resizing
+     */
+    public LongHashSet(int expectedSize) {
+        int capacity = 16;
+
+        while (capacity * MAX_LOAD < expectedSize) capacity <<= 1;
+
+        slots = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds the value to the set
+     *
+     * @param value
+     * @return true if the value wasn't in the set before
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (containsZero) return false;
+
+            containsZero = true;
+            size++;
+            return true;
+        }
+
+        int i = index(value);
+
+        while (slots[i] != EMPTY) {
+            if (slots[i] == value) return false;
+
+            i = (i + 1) & mask;
+        }
+
+        slots[i] = value;
+
+        if (++size > slots.length * MAX_LOAD) rehash();
+
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY) return containsZero;
+
+        for (int i = index(value); slots[i] != EMPTY; i = (i + 1) & mask)
+            if (slots[i] == value) return true;
+
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The values of the set, in no particular order
+     */
+    public long[] toArray() {
+        long[] values = new long[size];
+        int n = 0;
+
+        if (containsZero) values[n++] = 0;
+
+        for (long value : slots)
+            if (value != EMPTY) values[n++] = value;
+
+        return values;
+    }
+
+    private int index(long value) {
+        value ^= (value >>> 33);        // spread the high bits, the values need not be hashes
+        value *= 0xff51afd7ed558ccdL;
+        value ^= (value >>> 33);
+
+        return (int) value & mask;
+    }
+
+    private void rehash() {
+        long[] old = slots;
+
+        slots = new long[old.length * 2];
+        mask = slots.length - 1;
+
+        for (long value : old) {
+            if (value == EMPTY) continue;
+
+            int i = index(value);
+
+            while (slots[i] != EMPTY) i = (i + 1) & mask;
+
+            slots[i] = value;
+        }
+    }
+}
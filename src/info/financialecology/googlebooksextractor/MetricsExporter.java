@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exports the metrics of a running extraction in the Prometheus text format, so that long runs
+ * can be monitored:
+ * <ul>
+ * <li> to a file that is rewritten at a fixed interval, e.g. for the textfile collector of the 
+ *      Prometheus node exporter, and
+ * <li> on an HTTP endpoint {@code http://host:port/metrics} that Prometheus can scrape
+ * </ul>
+ * Call {@link #stop()} at the end of the run, which writes the final metrics to the file.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class MetricsExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsExporter.class.getSimpleName());
+
+    private final RunMetrics metrics;
+    private final String fileName;          // null if the metrics aren't written to a file
+    private ScheduledExecutorService scheduler = null;
+    private HttpServer server = null;
+
+    /**
+     * Starts the export
+     *
+     * @param metrics
+     * @param fileName the file the metrics are written to, or {@code null}
+     * @param intervalSeconds the interval at which the file is rewritten
+     * @param port the port of the HTTP endpoint, or 0 for no endpoint
+     * @throws IOException if the endpoint cannot be started
+     */
+    public MetricsExporter(RunMetrics metrics, String fileName, int intervalSeconds, int port) throws IOException {
+        this.metrics = metrics;
+        this.fileName = fileName;
+
+        if (fileName != null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "metrics-exporter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    write();
+                }
+            }, 0, intervalSeconds, TimeUnit.SECONDS);
+        }
+
+        if (port > 0) {
+            server = HttpServer.create(new InetSocketAddress(port), 16);
+            server.createContext("/metrics", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    byte[] body = MetricsExporter.this.metrics.toPrometheusText().getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+
+                    OutputStream out = exchange.getResponseBody();
+
+                    try {
+                        out.write(body);
+                    } finally {
+                        out.close();
+                    }
+                }
+            });
+            server.start();
+            logger.debug("Metrics endpoint at http://localhost:{}/metrics", server.getAddress().getPort());
+        }
+    }
+
+    /**
+     * Creates the exporter from the metrics settings in the parameter file
+     *
+     * @param params
+     * @param metrics
+     * @return the exporter, or {@code null} if the metrics aren't exported during the run
+     * @throws IOException if the endpoint cannot be started
+     */
+    public static MetricsExporter newInstance(GoogleBooksExtractorParams params, RunMetrics metrics) throws IOException {
+        String fileName = (params.prometheusFile == null || params.prometheusFile.trim().isEmpty()) ? null : params.prometheusFile.trim();
+
+        if (fileName == null && params.prometheusPort <= 0)
+            return null;
+
+        return new MetricsExporter(metrics, fileName, params.metricsIntervalSeconds, params.prometheusPort);
+    }
+
+    /**
+     * Stops the export and writes the final metrics to the file
+     */
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+
+            try {
+                scheduler.awaitTermination(10, TimeUnit.SECONDS);     // let a write in progress finish
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            write();
+        }
+
+        if (server != null)
+            server.stop(0);
+    }
+
+    private void write() {
+        try {
+            metrics.writePrometheus(fileName);
+        } catch (IOException e) {
+            logger.warn("Cannot write metrics file {}: {}", fileName, e.getMessage());
+        }
+    }
+}
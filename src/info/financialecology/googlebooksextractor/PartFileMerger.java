@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Merges sorted part files into a single sorted file with a k-way merge: a priority queue holds 
+ * the next volume of each part file, and the smallest volume is copied to the output file until
+ * all part files are exhausted. Only one volume per part file is kept in memory. The volumes are
+ * compared by their sort key, see {@link ShardedResultWriter#sortKey(String, String, String)}, 
+ * and equal volumes are taken in the order of the part files.
+ * <p>
+ * The volumes are copied as they are, a JSON Lines volume line by line and a CSV volume row by 
+ * row. Note that empty CSV values are written as missing values. The same cursors are used to 
+ * concatenate output files, e.g. the output of an earlier run and the new volumes of a refresh, 
+ * and to read the identifiers of the volumes of an output file.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class PartFileMerger {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartFileMerger.class.getSimpleName());
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final int TITLE       = VolumeRecord.HEADER.indexOf("title");
+    private static final int QUERY       = VolumeRecord.HEADER.indexOf("query");
+    private static final int INDUSTRY_ID = VolumeRecord.HEADER.indexOf("industryId");
+
+    private PartFileMerger() {
+    }
+
+    /**
+     * Merges the part files into the output file. Errors are logged.
+     *
+     * @param partFiles the sorted part files
+     * @param fileName the output file
+     * @param format the output format of the part files and the output file, see {@link ResultWriterFactory}
+     * @param gzip true if the files are gzip-compressed
+     * @return the number of merged volumes, or -1 if the part files couldn't be merged
+     */
+    public static int merge(List<String> partFiles, String fileName, String format, boolean gzip) {
+        return merge(partFiles, fileName, format, gzip, gzip);
+    }
+
+    /**
+     * Merges the part files into the output file, where the part files and the output file may 
+     * differ in compression, e.g. for the uncompressed sorted runs of a shard. Volumes with equal 
+     * sort keys are taken from the part files in the order of the list. Errors are logged.
+     *
+     * @param partFiles the sorted part files
+     * @param fileName the output file
+     * @param format the output format of the part files and the output file, see {@link ResultWriterFactory}
+     * @param gzipParts true if the part files are gzip-compressed
+     * @param gzip true if the output file is to be gzip-compressed
+     * @return the number of merged volumes, or -1 if the part files couldn't be merged
+     */
+    static int merge(List<String> partFiles, String fileName, String format, boolean gzipParts, boolean gzip) {
+        long start = System.currentTimeMillis();
+        boolean csv = !ResultWriterFactory.FORMAT_JSON_LINES.equalsIgnoreCase(format);
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(1, partFiles.size()));
+        Writer w = null;
+        int volumes = 0;
+
+        try {
+            w = ResultWriterFactory.newBufferedWriter(fileName, false, gzip);
+            CSVWriter csvWriter = csv ? new CSVWriter(w) : null;
+
+            if (csv)
+                csvWriter.writeNext(VolumeRecord.HEADER.toArray(new String[VolumeRecord.HEADER.size() + 1]));   // with the trailing separator of the rows
+
+            for (int i = 0; i < partFiles.size(); i++) {
+                Cursor cursor = newCursor(i, partFiles.get(i), csv, gzipParts);
+
+                if (cursor.next())
+                    queue.add(cursor);
+                else
+                    cursor.close();
+            }
+
+            while (!queue.isEmpty()) {
+                Cursor cursor = queue.poll();
+                copy(cursor, csvWriter, w);
+                volumes++;
+
+                if (cursor.next())
+                    queue.add(cursor);
+                else
+                    cursor.close();
+            }
+
+            if (csv) {
+                csvWriter.flush();
+
+                if (csvWriter.checkError())     // the CSV writer doesn't throw on write errors
+                    throw new IOException("write error");
+            }
+        } catch (IOException e) {
+            logger.error("Cannot merge the part files into {}: {}", fileName, e.getMessage());
+            volumes = -1;
+        } finally {
+            for (Cursor cursor : queue)
+                cursor.close();
+
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    logger.error("Cannot close file {}: {}", fileName, e.getMessage());
+                    volumes = -1;
+                }
+            }
+        }
+
+        if (volumes < 0) return -1;
+
+        logger.debug("Merged {} volumes of {} part files into {} in {} ms", 
+                new Object[] {volumes, partFiles.size(), fileName, System.currentTimeMillis() - start});
+
+        return volumes;
+    }
+
+    /**
+     * Copies the volumes of the files one after the other into the output file, which gets a 
+     * single header. Files that don't exist are skipped. Errors are logged.
+     *
+     * @param files the files, in the format of the output file
+     * @param fileName the output file
+     * @param format the output format, see {@link ResultWriterFactory}
+     * @param gzip true if the files are gzip-compressed
+     * @return the number of copied volumes, or -1 if the files couldn't be copied
+     */
+    public static int concatenate(List<String> files, String fileName, String format, boolean gzip) {
+        boolean csv = !ResultWriterFactory.FORMAT_JSON_LINES.equalsIgnoreCase(format);
+        Writer w = null;
+        int volumes = 0;
+
+        try {
+            w = ResultWriterFactory.newBufferedWriter(fileName, false, gzip);
+            CSVWriter csvWriter = csv ? new CSVWriter(w) : null;
+
+            if (csv)
+                csvWriter.writeNext(VolumeRecord.HEADER.toArray(new String[VolumeRecord.HEADER.size() + 1]));
+
+            for (int i = 0; i < files.size(); i++) {
+                if (!new File(files.get(i)).exists()) continue;
+
+                Cursor cursor = newCursor(i, files.get(i), csv, gzip);
+
+                try {
+                    while (cursor.next()) {
+                        copy(cursor, csvWriter, w);
+                        volumes++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            if (csv) {
+                csvWriter.flush();
+
+                if (csvWriter.checkError())
+                    throw new IOException("write error");
+            }
+        } catch (IOException e) {
+            logger.error("Cannot concatenate the files into {}: {}", fileName, e.getMessage());
+            volumes = -1;
+        } finally {
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    logger.error("Cannot close file {}: {}", fileName, e.getMessage());
+                    volumes = -1;
+                }
+            }
+        }
+
+        return volumes;
+    }
+
+    /**
+     * Reads the industry identifiers of the volumes of an output file, i.e. the identifiers the 
+     * volumes were stored with (see {@code ExtractionEngine.storeBooks})
+     *
+     * @param fileName
+     * @param format the output format of the file, see {@link ResultWriterFactory}
+     * @param gzip true if the file is gzip-compressed
+     * @return the identifiers, in the order of the volumes
+     * @throws IOException
+     */
+    public static ArrayList<String> readIndustryIds(String fileName, String format, boolean gzip) throws IOException {
+        ArrayList<String> ids = new ArrayList<String>();
+        Cursor cursor = newCursor(0, fileName, !ResultWriterFactory.FORMAT_JSON_LINES.equalsIgnoreCase(format), gzip);
+
+        try {
+            while (cursor.next())
+                ids.add(cursor.industryId);
+        } finally {
+            cursor.close();
+        }
+
+        return ids;
+    }
+
+    /**
+     * Copies the current volume of the cursor to the CSV writer, or to the writer for JSON Lines
+     */
+    private static void copy(Cursor cursor, CSVWriter csvWriter, Writer w) throws IOException {
+        if (csvWriter != null)
+            csvWriter.writeNext(((CsvCursor) cursor).row);
+        else {
+            w.write(((JsonLinesCursor) cursor).line);
+            w.write('\n');
+        }
+    }
+
+    private static Cursor newCursor(int part, String fileName, boolean csv, boolean gzip) throws IOException {
+        return csv ? new CsvCursor(part, open(fileName, gzip)) : new JsonLinesCursor(part, open(fileName, gzip));
+    }
+
+    private static BufferedReader open(String fileName, boolean gzip) throws IOException {
+        InputStream in = new FileInputStream(fileName);
+
+        if (gzip) in = new GZIPInputStream(in, 1 << 16);
+
+        return new BufferedReader(new InputStreamReader(in, "UTF-8"), 1 << 16);
+    }
+
+    /**
+     * The next volume of a part file
+     */
+    private static abstract class Cursor implements Comparable<Cursor> {
+        final int part;
+        final BufferedReader r;
+        String[] key;
+        String industryId;
+
+        Cursor(int part, BufferedReader r) {
+            this.part = part;
+            this.r = r;
+        }
+
+        /**
+         * Reads the next volume, returns false at the end of the file
+         */
+        abstract boolean next() throws IOException;
+
+        public int compareTo(Cursor other) {
+            int c = ShardedResultWriter.SORT_ORDER.compare(key, other.key);
+
+            return (c != 0) ? c : part - other.part;
+        }
+
+        void close() {
+            try {
+                r.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close part file: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static class CsvCursor extends Cursor {
+        final CSVReader csv;
+        String[] row;
+
+        CsvCursor(int part, BufferedReader r) throws IOException {
+            super(part, r);
+            csv = new CSVReader(r);
+            csv.readNext();     // the header
+        }
+
+        boolean next() throws IOException {
+            row = csv.readNext();
+
+            if (row == null) return false;
+
+            for (int i = 0; i < row.length; i++)
+                if (row[i].isEmpty()) row[i] = null;
+
+            industryId = field(INDUSTRY_ID);
+            key = ShardedResultWriter.sortKey(field(TITLE), field(QUERY), industryId);
+
+            return true;
+        }
+
+        private String field(int i) {
+            return (i < row.length) ? row[i] : null;
+        }
+    }
+
+    private static class JsonLinesCursor extends Cursor {
+        String line;
+
+        JsonLinesCursor(int part, BufferedReader r) {
+            super(part, r);
+        }
+
+        boolean next() throws IOException {
+            do {
+                line = r.readLine();
+            } while (line != null && line.trim().isEmpty());
+
+            if (line == null) return false;
+
+            String title = null, query = null;
+            industryId = null;
+            JsonParser p = jsonFactory.createJsonParser(line);
+
+            try {
+                if (p.nextToken() != JsonToken.START_OBJECT)
+                    throw new IOException("Not a JSON object: " + line);
+
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = p.getCurrentName();
+                    JsonToken value = p.nextToken();
+
+                    if (value == JsonToken.VALUE_STRING) {
+                        if (field.equals("title")) title = p.getText();
+                        else if (field.equals("query")) query = p.getText();
+                        else if (field.equals("industryId")) industryId = p.getText();
+                    }
+                    else
+                        p.skipChildren();
+                }
+            } finally {
+                p.close();
+            }
+
+            key = ShardedResultWriter.sortKey(title, query, industryId);
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The plan of the queries of a run, built before any request is sent. Each query is parsed into
+ * a canonical form, and queries that are equivalent to an earlier query are dropped, since they
+ * would return the same volumes and only use up quota. Two queries are equivalent if they have
+ * the same set of terms, where
+ * <ul>
+ * <li> terms are separated by spaces or '+', which Google Books both treats as AND, so that the
+ *      order of the terms doesn't matter and repeated terms count once, e.g. {@code risk risks}, 
+ *      {@code risks + risk} and {@code risks risk risk} are equivalent
+ * <li> a term keeps its field operator ({@code intitle:}, {@code inauthor:}, ...) and its 
+ *      exclusion ('-'), and quoted phrases are kept as one term with their word order
+ * <li> terms are compared in lower case, with the whitespace inside phrases collapsed
+ * </ul>
+ * Queries with an {@code OR} or '|' are only dropped if they are the same after normalizing
+ * case and whitespace, since reordering terms would change their meaning.
+ * <p>
+ * The candidate queries are streamed, e.g. from {@link ClusterCombinations}, and the plan only 
+ * keeps the 64-bit fingerprints of the canonical forms (see {@link DedupIndex#fingerprint(String)}),
+ * not the queries themselves. Building the plan counts the planned queries; iterating over the
+ * plan generates them again. The planned queries keep the form in which they were first given, 
+ * so the requests and the logged search information are the same as without the plan, apart 
+ * from the dropped queries.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class QueryPlan implements Iterable<String> {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryPlan.class.getSimpleName());
+
+    private final Iterable<String> candidates;
+    private final long candidateCount;
+    private final long size;
+
+    /**
+     * Plans the queries
+     *
+     * @param candidates the queries in the order in which they would be run
+     */
+    public QueryPlan(Iterable<String> candidates) {
+        this.candidates = candidates;
+
+        long n = 0;
+        long planned = 0;
+        LongHashSet seen = new LongHashSet();
+
+        for (String query : candidates) {
+            n++;
+
+            if (seen.add(DedupIndex.fingerprint(canonicalize(query))))
+                planned++;
+            else
+                logger.trace("Dropped query [{}], equivalent to an earlier query", query);
+        }
+
+        candidateCount = n;
+        size = planned;
+    }
+
+    /**
+     * The planned queries, in the order in which they were given
+     */
+    public Iterator<String> iterator() {
+        final Iterator<String> source = candidates.iterator();
+        final LongHashSet seen = new LongHashSet();
+
+        return new Iterator<String>() {
+            private String next = advance();
+
+            private String advance() {
+                while (source.hasNext()) {
+                    String query = source.next();
+
+                    if (seen.add(DedupIndex.fingerprint(canonicalize(query)))) return query;
+                }
+
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public String next() {
+                if (next == null) throw new NoSuchElementException();
+
+                String query = next;
+                next = advance();
+
+                return query;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * The number of planned queries
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * The number of candidate queries, including those that were dropped
+     */
+    public long getCandidateCount() {
+        return candidateCount;
+    }
+
+    /**
+     * The number of queries that were dropped because they are equivalent to a planned query
+     */
+    public long getPrunedCount() {
+        return candidateCount - size;
+    }
+
+    /**
+     * The maximum number of requests sent for the plan, i.e. the number of planned queries times
+     * the number of paginations. Queries with fewer matches need fewer requests.
+     *
+     * @param paginations the maximum number of paginations per query
+     */
+    public long getMaxRequests(int paginations) {
+        return size * paginations;
+    }
+
+    /**
+     * The canonical form of a query: its terms in lower case, sorted and without repetitions, 
+     * joined by ' + '. Queries with an {@code OR} keep the order of their terms.
+     *
+     * @param query
+     * @return the canonical form
+     */
+    public static String canonicalize(String query) {
+        ArrayList<String> terms = tokenize(query);
+        boolean ordered = false;
+
+        for (String term : terms)
+            if (term.equals("OR") || term.equals("|")) ordered = true;
+
+        StringBuilder sb = new StringBuilder();
+
+        for (String term : ordered ? terms : new TreeSet<String>(lowerCase(terms))) {
+            if (sb.length() > 0) sb.append(" + ");
+
+            sb.append(ordered && term.equals("OR") ? term : term.toLowerCase());
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Splits the query into terms at spaces and '+' outside of quotes. Whitespace inside quotes
+     * is collapsed to a single space.
+     */
+    static ArrayList<String> tokenize(String query) {
+        ArrayList<String> terms = new ArrayList<String>();
+        StringBuilder term = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+
+            if (c == '"') {
+                quoted = !quoted;
+                term.append(c);
+            }
+            else if (Character.isWhitespace(c) || (c == '+' && !quoted)) {
+                if (quoted) {
+                    if (term.charAt(term.length() - 1) != ' ' && term.charAt(term.length() - 1) != '"') term.append(' ');
+                }
+                else if (term.length() > 0) {
+                    terms.add(term.toString());
+                    term.setLength(0);
+                }
+            }
+            else
+                term.append(c);
+        }
+
+        if (term.length() > 0) terms.add(term.toString());
+
+        for (int i = 0; i < terms.size(); i++)
+            terms.set(i, terms.get(i).replace(" \"", "\""));   // trailing space inside a phrase
+
+        return terms;
+    }
+
+    private static ArrayList<String> lowerCase(List<String> terms) {
+        ArrayList<String> lower = new ArrayList<String>(terms.size());
+
+        for (String term : terms)
+            lower.add(term.toLowerCase());
+
+        return lower;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+/**
+ * Thrown when the daily request quota for the Google Books API is used up, either according to
+ * the local quota counter or because Google Books refuses further requests. Unlike an 
+ * {@code IOException} for a single failed request, this stops the run.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class QuotaExhaustedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public QuotaExhaustedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+
+/**
+ * Keeps the requests to Google Books within the limits of the API, so that a run gets the most
+ * out of the quota instead of being throttled halfway.
+ * <ul>
+ * <li> A token bucket limits the request rate to {@code requestsPerSecond}, with bursts of up to
+ *      one second's worth of requests
+ * <li> A daily request counter is persisted in the quota file, so that it survives across runs.
+ *      The counter is reset at midnight Pacific Time, when Google resets the quota. The file is
+ *      written to a temporary file and renamed, outside the lock of the rate limiter, so that a
+ *      crash can't truncate it and concurrent writes are coalesced.
+ * <li> Requests that fail with 403 (rate limit), 429 or 5xx are retried with exponential backoff
+ *      and random jitter. Other 403 errors, e.g. an invalid API key, are not retried.
+ * <li> When the daily quota is used up, a {@code QuotaExhaustedException} is thrown, so that the
+ *      run can stop cleanly and write the results obtained so far
+ * </ul>
+ * The governor is thread-safe and is shared by all query threads.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class QuotaGovernor {
+
+    private static final Logger logger = LoggerFactory.getLogger(QuotaGovernor.class.getSimpleName());
+
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;    // backoff before the first retry
+    private static final long MAX_BACKOFF_MILLIS     = 64000;   // cap on the backoff between retries
+
+    private final double requestsPerSecond;     // 0 means no rate limit
+    private final int dailyQuota;               // 0 means no daily limit
+    private final int maxRetries;
+    private final File quotaFile;               // null if the counter isn't persisted
+
+    private final Random random = new Random();
+    private final SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+    // Token bucket
+    private double tokens;
+    private long lastRefill;
+
+    // Daily quota counter
+    private String day;
+    private int requestsToday;
+    private boolean exhausted = false;
+
+    private final Object fileLock = new Object();   // serializes the writes of the quota file
+    private String writtenDay = null;               // the counter last written to the quota file
+    private int writtenRequests = -1;
+
+    /**
+     * Constructor
+     *
+     * @param requestsPerSecond the maximum request rate, 0 for no limit
+     * @param dailyQuota the maximum number of requests per day, 0 for no limit
+     * @param maxRetries the number of retries for throttled or failed requests
+     * @param quotaFile the file holding the daily request counter, {@code null} to not persist it
+     */
+    public QuotaGovernor(double requestsPerSecond, int dailyQuota, int maxRetries, String quotaFile) {
+        this.requestsPerSecond = requestsPerSecond;
+        this.dailyQuota = dailyQuota;
+        this.maxRetries = maxRetries;
+        this.quotaFile = (quotaFile == null || quotaFile.trim().isEmpty()) ? null : new File(quotaFile.trim());
+
+        dayFormat.setTimeZone(TimeZone.getTimeZone("America/Los_Angeles"));     // the quota is reset at midnight Pacific Time
+
+        tokens = Math.max(1, requestsPerSecond);
+        lastRefill = System.nanoTime();
+        day = today();
+        requestsToday = readCounter();
+
+        logger.debug("Quota governor: {} requests/s, {} of {} daily requests used", new Object[] {requestsPerSecond, requestsToday, dailyQuota});
+    }
+
+    /**
+     * Creates the governor from the quota settings in the parameter file
+     *
+     * @param params
+     * @return the governor
+     */
+    public static QuotaGovernor newInstance(GoogleBooksExtractorParams params) {
+        return new QuotaGovernor(params.requestsPerSecond, params.dailyQuota, params.maxRetries, params.quotaFile);
+    }
+
+    /**
+     * Waits for a token of the rate limiter and counts the request against the daily quota
+     *
+     * @throws QuotaExhaustedException if the daily quota is used up
+     * @throws InterruptedException
+     */
+    public void acquire() throws QuotaExhaustedException, InterruptedException {
+        long waitNanos;
+
+        synchronized (this) {
+            countRequest();
+
+            if (requestsPerSecond <= 0)
+                waitNanos = 0;
+            else {
+                long now = System.nanoTime();
+                tokens = Math.min(Math.max(1, requestsPerSecond), tokens + (now - lastRefill) * requestsPerSecond / 1e9);
+                lastRefill = now;
+                tokens -= 1;    // reserve the token, possibly going into debt
+
+                waitNanos = (tokens >= 0) ? 0 : (long) (-tokens * 1e9 / requestsPerSecond);
+            }
+        }
+
+        writeCounter();
+
+        if (waitNanos > 0)
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+    }
+
+    /**
+     * Handles a failed request. Returns after the backoff if the request should be retried, and
+     * throws otherwise.
+     *
+     * @param e the error returned by Google Books
+     * @param attempt the number of the failed attempt, starting at 0
+     * @throws QuotaExhaustedException if Google Books reports that the daily quota is used up
+     * @throws HttpResponseException if the request should not be retried
+     * @throws InterruptedException
+     */
+    public void backoff(HttpResponseException e, int attempt) throws QuotaExhaustedException, HttpResponseException, InterruptedException {
+        int status = e.getStatusCode();
+        String reason = reason(e);
+
+        if ("dailyLimitExceeded".equals(reason) || "quotaExceeded".equals(reason)) {
+            synchronized (this) {
+                exhausted = true;
+            }
+            throw new QuotaExhaustedException("Google Books daily quota exceeded (" + reason + ")");
+        }
+
+        boolean rateLimited = "rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason);
+        boolean retryable = (status == 403 && rateLimited) || status == 429 || status >= 500;
+
+        if (!retryable || attempt >= maxRetries)
+            throw e;
+
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt, 16));
+        long sleep;
+
+        synchronized (random) {
+            sleep = backoff / 2 + (long) (random.nextDouble() * backoff / 2);   // jitter, so that the query threads don't retry in lockstep
+        }
+
+        logger.warn("Request failed with status {} ({}), retry {} of {} in {} ms", new Object[] {status, reason, attempt + 1, maxRetries, sleep});
+
+        Thread.sleep(sleep);
+    }
+
+    /**
+     * Returns true if the daily quota is used up, until the quota is reset at midnight Pacific Time
+     */
+    public synchronized boolean isExhausted() {
+        if (!today().equals(day)) return false;     // a new quota day, the counter is reset with the next request
+
+        return exhausted || (dailyQuota > 0 && requestsToday >= dailyQuota);
+    }
+
+    public synchronized int getRequestsToday() {
+        return requestsToday;
+    }
+
+    /**
+     * Counts a request against the daily quota. The counter is persisted by the caller, after 
+     * releasing the lock.
+     */
+    private void countRequest() throws QuotaExhaustedException {
+        String now = today();
+
+        if (!now.equals(day)) {     // a new quota day
+            day = now;
+            requestsToday = 0;
+            exhausted = false;
+        }
+
+        if (exhausted || (dailyQuota > 0 && requestsToday >= dailyQuota))
+            throw new QuotaExhaustedException("Daily quota of " + dailyQuota + " requests used up (" + requestsToday + " requests on " + day + ")");
+
+        requestsToday++;
+    }
+
+    /**
+     * The reason of the first error reported by Google Books, e.g. 'userRateLimitExceeded'
+     */
+    private static String reason(HttpResponseException e) {
+        if (e instanceof GoogleJsonResponseException) {
+            GoogleJsonError details = ((GoogleJsonResponseException) e).getDetails();
+
+            if (details != null && details.getErrors() != null && !details.getErrors().isEmpty())
+                return details.getErrors().get(0).getReason();
+        }
+
+        return null;
+    }
+
+    private String today() {
+        return dayFormat.format(new Date());
+    }
+
+    /**
+     * Reads the counter from the quota file, which holds a single line 'yyyy-MM-dd count'
+     */
+    private int readCounter() {
+        if (quotaFile == null) return 0;
+
+        FileReplacer.restoreBackup(quotaFile);
+
+        if (!quotaFile.exists()) return 0;
+
+        try {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(quotaFile), "UTF-8"));
+
+            try {
+                String line = r.readLine();
+
+                if (line != null) {
+                    String[] fields = line.trim().split("\\s+");
+
+                    if (fields.length == 2 && fields[0].equals(day))
+                        return Integer.parseInt(fields[1]);
+                }
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot read quota file {}: {}", quotaFile, e.getMessage());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid quota file {}", quotaFile);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Writes the current counter to the quota file, unless a concurrent call has already written 
+     * it. The counter is written to a temporary file which then replaces the quota file.
+     */
+    private void writeCounter() {
+        if (quotaFile == null) return;
+
+        synchronized (fileLock) {
+            String currentDay;
+            int currentRequests;
+
+            synchronized (this) {
+                currentDay = day;
+                currentRequests = requestsToday;
+            }
+
+            if (currentDay.equals(writtenDay) && currentRequests == writtenRequests) return;
+
+            File tmp = new File(quotaFile.getPath() + ".tmp");
+
+            try {
+                Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+
+                try {
+                    w.write(currentDay + " " + currentRequests + "\n");
+                } finally {
+                    w.close();
+                }
+
+                FileReplacer.replaceFile(tmp, quotaFile);
+
+                writtenDay = currentDay;
+                writtenRequests = currentRequests;
+            } catch (IOException e) {
+                logger.warn("Cannot write quota file {}: {}", quotaFile, e.getMessage());
+                tmp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The state of an incremental refresh, which re-runs a parameter file to pick up the volumes 
+ * that Google Books indexed since the last run, without fetching every page of every query again:
+ * <ul>
+ * <li> the books seen by the earlier runs of the parameter file are kept in a state file next to 
+ *      the output file ({@code <name>.known}), in the format of the {@link GlobalDedupIndex}. If 
+ *      there is no state file yet, it is created from the identifiers in the output file of the 
+ *      earlier run. The state file also holds the books that were removed as duplicates or 
+ *      rejected by the filters, so pagination stops earlier from the second refresh on.
+ * <li> the queries ask for the newest volumes first ({@code orderBy=newest}), and the pagination
+ *      of a query stops after the first page that only holds known books
+ * <li> known books are treated as duplicates, so the run only stores the new volumes, in the 
+ *      delta file ({@code <name>.delta.csv}). If there are no new volumes, there is no delta file.
+ * <li> at the end, the output of the earlier run and the delta are concatenated into the new 
+ *      output file, which replaces the earlier one, and the books of the run are added to the 
+ *      state file
+ * </ul>
+ * Since the identifiers in an output file are either industry identifiers or normalized titles 
+ * (see {@code ExtractionEngine.storeBooks}), both keys of each identifier are added when the 
+ * state file is created from an output file.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class RefreshState {
+
+    private static final Logger logger = LoggerFactory.getLogger(RefreshState.class.getSimpleName());
+
+    public static final String ORDER_BY_NEWEST = "newest";
+
+    private final String outputFile;    // the output of the earlier runs, replaced by the merged output
+    private final String deltaFile;     // the new volumes of the refresh
+    private final GlobalDedupIndex known;
+    private final AtomicInteger stoppedQueries = new AtomicInteger();
+
+    /**
+     * Opens the state of the earlier runs and removes the delta file of the previous refresh
+     *
+     * @param outputFile the output file of the earlier runs, which doesn't need to exist
+     * @param deltaFile the file the new volumes are written to
+     * @param stateFile the file holding the books seen by the earlier runs
+     * @param params the parameters, for the output format of the files
+     * @throws IOException if the output file or the state file can't be read
+     */
+    public RefreshState(String outputFile, String deltaFile, String stateFile, GoogleBooksExtractorParams params) throws IOException {
+        this.outputFile = outputFile;
+        this.deltaFile = deltaFile;
+
+        FileReplacer.restoreBackup(new File(outputFile));   // if the previous refresh was interrupted while replacing it
+
+        if (!new File(stateFile).exists() && new File(outputFile).exists()) {
+            ArrayList<String> ids = PartFileMerger.readIndustryIds(outputFile, params.outputFormat, params.compressOutput);
+            long[] fingerprints = new long[2 * ids.size()];
+            int n = 0;
+
+            for (String id : ids) {
+                String key = DedupIndex.identifierKey(id);
+
+                if (key == null) continue;
+
+                fingerprints[n++] = DedupIndex.fingerprint(key);
+                fingerprints[n++] = DedupIndex.fingerprint(DedupIndex.TITLE_PREFIX + id);
+            }
+
+            logger.debug("Creating refresh state {} from the {} volumes of {}", new Object[] {stateFile, ids.size(), outputFile});
+            GlobalDedupIndex.merge(stateFile, Arrays.copyOf(fingerprints, n));
+        }
+
+        known = new GlobalDedupIndex(stateFile);
+
+        if (known.size() == 0)
+            logger.warn("No earlier run found for the refresh, all volumes are new");
+
+        new File(deltaFile).delete();
+    }
+
+    /**
+     * The index of the books seen by the earlier runs
+     */
+    public GlobalDedupIndex getKnown() {
+        return known;
+    }
+
+    /**
+     * Returns true if all the books of the page were seen by the earlier runs, meaning that the 
+     * pagination of the query can stop, since the later pages hold older volumes. Volumes without 
+     * a title or an identifier are ignored. Thread-safe.
+     *
+     * @param volumes the page
+     * @return true if the page only holds known books
+     */
+    public boolean isKnownPage(VolumePage volumes) {
+        int knownVolumes = 0;
+
+        for (VolumeRow volume : volumes.getRows()) {
+            String key = volume.hasIndustryIds() ? DedupIndex.identifierKey(volume.getIndustryId()) : null;
+
+            if (key == null) key = DedupIndex.titleKey(volume.getTitle());
+
+            if (key == null) continue;
+
+            if (!known.contains(DedupIndex.fingerprint(key))) return false;
+
+            knownVolumes++;
+        }
+
+        return knownVolumes > 0;
+    }
+
+    /**
+     * Counts a query whose pagination stopped at a page of known books
+     */
+    public void addStoppedQuery() {
+        stoppedQueries.incrementAndGet();
+    }
+
+    public int getStoppedQueries() {
+        return stoppedQueries.get();
+    }
+
+    public String getDeltaFile() {
+        return deltaFile;
+    }
+
+    /**
+     * Concatenates the output of the earlier runs and the delta into the new output file, and 
+     * adds the books of the run to the state file
+     *
+     * @param fingerprints the fingerprints of the books of the run, see {@link DedupIndex#getFingerprints()}
+     * @param params the parameters, for the output format of the files
+     * @return the number of volumes in the new output file
+     * @throws IOException if the files can't be written
+     */
+    public int finish(long[] fingerprints, GoogleBooksExtractorParams params) throws IOException {
+        String tmp = outputFile + ".tmp";
+        int volumes = PartFileMerger.concatenate(Arrays.asList(outputFile, deltaFile), tmp, params.outputFormat, params.compressOutput);
+
+        if (volumes < 0)
+            throw new IOException("Cannot merge the new volumes into " + outputFile);
+
+        FileReplacer.replaceFile(new File(tmp), new File(outputFile));
+
+        known.save(fingerprints);
+
+        return volumes;
+    }
+}
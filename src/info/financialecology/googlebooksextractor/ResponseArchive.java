@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only archive of the raw responses of Google Books volume queries. Unlike the 
+ * {@link ResponseCache}, entries never expire and are never evicted, so that a run can be 
+ * re-processed offline at any time later, e.g. with different filters or output settings, 
+ * without sending a single request (see the offline mode of {@code ExtractionEngine}).
+ * <p>
+ * The archive directory holds
+ * <ul>
+ * <li> Segment files ({@code segment-00000.gz}, ...), to which the responses are appended. Each
+ *      response is a gzip member of its own, so that a single response can be read from its
+ *      offset, and a whole segment can still be read with {@code zcat}. A new segment is started
+ *      when the current one exceeds the segment size.
+ * <li> The index ({@code index.tsv}), with one tab-separated line per response: the query, the 
+ *      start index, the maximum number of results, the order of the volumes, the segment, the 
+ *      offset and the length of the response in the segment, and the time it was archived. 
+ *      The index is read into memory when the archive is opened.
+ * </ul>
+ * A response is appended to its segment before its index line is written, so that a crash 
+ * leaves at most an unindexed response at the end of a segment. Index lines that point beyond 
+ * the end of their segment are ignored. When a page is archived more than once, the latest 
+ * response is used. Responses are compressed by the calling thread, outside the lock, and read 
+ * without a lock, so that many threads can use the archive at the same time. The archive 
+ * should not be written by several processes at the same time.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ResponseArchive {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResponseArchive.class.getSimpleName());
+
+    private static final String INDEX_FILE = "index.tsv";
+    private static final String UTF8       = "UTF-8";
+
+    private final File dir;
+    private final long maxSegmentBytes;
+
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    private int segment = 0;                // the segment the responses are appended to
+    private long segmentLength = 0;         // the length of that segment
+    private OutputStream segmentOut = null; // opened with the first response appended
+    private Writer index = null;            // opened with the first response appended
+    private long appended = 0;              // the number of responses appended since the archive was opened
+
+    /**
+     * The location of an archived response
+     */
+    static final class Entry {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Entry(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Constructor. Reads the index of the archive.
+     *
+     * @param dir the archive directory, which is created if it doesn't exist
+     * @param maxSegmentMegabytes the size at which a new segment is started, in megabytes
+     */
+    public ResponseArchive(String dir, int maxSegmentMegabytes) {
+        this.dir = new File(dir);
+        this.maxSegmentBytes = maxSegmentMegabytes * 1048576L;
+
+        if (!this.dir.isDirectory() && !this.dir.mkdirs())
+            throw new IllegalArgumentException("Cannot create archive directory " + dir);
+
+        loadIndex();
+    }
+
+    /**
+     * Creates the archive from the archive settings in the parameter file. Returns {@code null} 
+     * if no archive directory is set.
+     *
+     * @param params
+     * @return the archive or {@code null}
+     */
+    public static ResponseArchive newInstance(GoogleBooksExtractorParams params) {
+        if (params.archiveDir == null || params.archiveDir.trim().isEmpty())
+            return null;
+
+        return new ResponseArchive(params.archiveDir.trim(), params.archiveSegmentMegabytes);
+    }
+
+    /**
+     * The archive key of a volume query, the cache key (see {@link ResponseCache#key(String, int, int)})
+     * and the order of the volumes
+     */
+    static String key(String query, int startIndex, int maxResults, String orderBy) {
+        return ResponseCache.key(query, startIndex, maxResults) + "|" + ((orderBy != null) ? orderBy : "");
+    }
+
+    /**
+     * Returns true if a response of the volume query is archived
+     *
+     * @param query
+     * @param startIndex
+     * @param maxResults
+     * @param orderBy the order of the volumes, or {@code null} for the default order
+     * @return true if the response is archived
+     */
+    public synchronized boolean contains(String query, int startIndex, int maxResults, String orderBy) {
+        return entries.containsKey(key(query, startIndex, maxResults, orderBy));
+    }
+
+    /**
+     * Appends the response of a volume query to the archive. Errors are logged, a response that 
+     * can't be archived doesn't stop the run.
+     *
+     * @param query
+     * @param startIndex
+     * @param maxResults
+     * @param orderBy the order of the volumes, or {@code null} for the default order
+     * @param json the JSON response
+     */
+    public void append(String query, int startIndex, int maxResults, String orderBy, String json) {
+        byte[] bytes;
+
+        try {
+            bytes = compress(json);     // outside the lock
+        } catch (IOException e) {
+            logger.warn("Cannot compress response of [{}]: {}", query, e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            try {
+                if (segmentOut != null && segmentLength > 0 && segmentLength + bytes.length > maxSegmentBytes) {
+                    segmentOut.close();
+                    segmentOut = null;
+                    segment++;
+                    segmentLength = 0;
+                }
+
+                if (segmentOut == null) {
+                    File file = segmentFile(segment);
+                    segmentLength = file.length();
+                    segmentOut = new FileOutputStream(file, true);
+                }
+
+                if (index == null)
+                    index = new OutputStreamWriter(new FileOutputStream(new File(dir, INDEX_FILE), true), UTF8);
+
+                Entry entry = new Entry(segment, segmentLength, bytes.length);
+                segmentOut.write(bytes);
+                segmentLength += bytes.length;
+
+                index.write(RunJournal.escape(query) + "\t" + startIndex + "\t" + maxResults + "\t" 
+                        + ((orderBy != null) ? orderBy : "") + "\t" + entry.segment + "\t" + entry.offset + "\t" 
+                        + entry.length + "\t" + System.currentTimeMillis() + "\n");
+                index.flush();
+
+                entries.put(key(query, startIndex, maxResults, orderBy), entry);
+                appended++;
+            } catch (IOException e) {
+                logger.warn("Cannot append response of [{}] to archive {}: {}", new Object[] {query, dir, e.getMessage()});
+            }
+        }
+    }
+
+    /**
+     * Returns the archived response of a volume query, or {@code null} if it isn't archived
+     *
+     * @param query
+     * @param startIndex
+     * @param maxResults
+     * @param orderBy the order of the volumes, or {@code null} for the default order
+     * @return the JSON response or {@code null}
+     * @throws IOException if the response can't be read
+     */
+    public String get(String query, int startIndex, int maxResults, String orderBy) throws IOException {
+        Entry entry;
+
+        synchronized (this) {
+            entry = entries.get(key(query, startIndex, maxResults, orderBy));
+        }
+
+        return (entry != null) ? read(entry) : null;
+    }
+
+    /**
+     * The number of archived responses
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * The number of responses appended since the archive was opened
+     */
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    /**
+     * Closes the current segment and the index. Responses appended later reopen them.
+     */
+    public synchronized void close() {
+        try {
+            if (segmentOut != null) segmentOut.close();
+            if (index != null) index.close();
+        } catch (IOException e) {
+            logger.warn("Cannot close archive {}: {}", dir, e.getMessage());
+        }
+
+        segmentOut = null;
+        index = null;
+    }
+
+    /**
+     * Reads and inflates an archived response. Each read opens the segment, so that reads of 
+     * several threads don't share a file position.
+     */
+    private String read(Entry entry) throws IOException {
+        byte[] bytes = new byte[entry.length];
+        RandomAccessFile raf = new RandomAccessFile(segmentFile(entry.segment), "r");
+
+        try {
+            raf.seek(entry.offset);
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+
+        Reader r = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(bytes)), UTF8);
+        StringBuilder sb = new StringBuilder(bytes.length * 8);
+        char[] buffer = new char[8192];
+
+        try {
+            for (int n; (n = r.read(buffer)) != -1; )
+                sb.append(buffer, 0, n);
+        } finally {
+            r.close();
+        }
+
+        return sb.toString();
+    }
+
+    private static byte[] compress(String json) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length() / 4 + 64);
+        Writer w = new OutputStreamWriter(new GZIPOutputStream(bytes), UTF8);
+
+        try {
+            w.write(json);
+        } finally {
+            w.close();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private File segmentFile(int segment) {
+        return new File(dir, String.format("segment-%05d.gz", segment));
+    }
+
+    /**
+     * Reads the index, skipping malformed lines and lines pointing beyond the end of their segment,
+     * and continues with the last segment
+     */
+    private void loadIndex() {
+        File file = new File(dir, INDEX_FILE);
+        HashMap<Integer, Long> segmentLengths = new HashMap<Integer, Long>();
+        int skipped = 0;
+
+        if (file.exists()) {
+            try {
+                BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+
+                try {
+                    for (String line; (line = r.readLine()) != null; ) {
+                        String[] fields = line.split("\t", -1);
+
+                        try {
+                            if (fields.length != 8) throw new NumberFormatException();
+
+                            Entry entry = new Entry(Integer.parseInt(fields[4]), Long.parseLong(fields[5]), Integer.parseInt(fields[6]));
+                            Long length = segmentLengths.get(entry.segment);
+
+                            if (length == null) {
+                                length = segmentFile(entry.segment).length();
+                                segmentLengths.put(entry.segment, length);
+                            }
+
+                            if (entry.offset + entry.length > length) throw new NumberFormatException();
+
+                            String orderBy = fields[3].isEmpty() ? null : fields[3];
+                            entries.put(key(RunJournal.unescape(fields[0]), Integer.parseInt(fields[1]), 
+                                    Integer.parseInt(fields[2]), orderBy), entry);
+                            segment = Math.max(segment, entry.segment);
+                        } catch (NumberFormatException e) {
+                            skipped++;
+                        }
+                    }
+                } finally {
+                    r.close();
+                }
+            } catch (IOException e) {
+                logger.warn("Cannot read archive index {}: {}", file, e.getMessage());
+            }
+
+            terminateIndex(file);
+        }
+
+        if (skipped > 0)
+            logger.warn("Skipped {} invalid lines of archive index {}", skipped, file);
+
+        logger.debug("Response archive {}: {} responses", dir, entries.size());
+    }
+
+    /**
+     * Ends the index with a line break, in case the last line was cut short by a crash, so that
+     * the next line doesn't run on from it
+     */
+    private void terminateIndex(File file) {
+        if (file.length() == 0) return;
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+            try {
+                raf.seek(raf.length() - 1);
+
+                if (raf.read() != '\n')
+                    raf.write('\n');
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot repair archive index {}: {}", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A disk-backed cache for the responses of Google Books volume queries. Re-running a parameter
+ * file, e.g. after changing a regex filter, then does not re-issue the requests that have been
+ * made before, which saves both time and the daily request quota.
+ * <p>
+ * The responses are keyed by the normalised query (lower case, single spaces), the paging
+ * parameters, the root URL of the API and the fields selector, so that the responses of a mock 
+ * server or of partial responses are not taken for those of other requests. Each entry is a gzip-compressed file named after the SHA-1 hash of the key. The
+ * first line of an entry holds the creation time and the key, followed by the JSON response.
+ * <ul>
+ * <li> Entries older than the time-to-live are ignored and removed
+ * <li> When the total size of the entries exceeds the size cap, the least recently used entries
+ *      are evicted. The last access time is the modification time of the entry file, so that
+ *      the LRU order survives across runs.
+ * <li> Entries are written to a temporary file and then renamed, so that concurrent readers,
+ *      whether threads or other processes, never see a partial entry
+ * </ul>
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ResponseCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResponseCache.class.getSimpleName());
+
+    private static final String SUFFIX = ".json.gz";
+    private static final String UTF8   = "UTF-8";
+
+    private final File dir;
+    private final long ttlMillis;
+    private final long maxBytes;
+
+    private long totalBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    // Entry files and their sizes, in access order (least recently used first)
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(256, 0.75f, true);
+
+    /**
+     * Constructor. Scans the cache directory for existing entries.
+     *
+     * @param dir the cache directory, which is created if it doesn't exist
+     * @param ttlHours the time-to-live of the entries in hours
+     * @param maxMegabytes the size cap of the cache in megabytes
+     */
+    public ResponseCache(String dir, int ttlHours, int maxMegabytes) {
+        this.dir = new File(dir);
+        this.ttlMillis = ttlHours * 3600000L;
+        this.maxBytes = maxMegabytes * 1048576L;
+
+        if (!this.dir.isDirectory() && !this.dir.mkdirs())
+            throw new IllegalArgumentException("Cannot create cache directory " + dir);
+
+        loadIndex();
+    }
+
+    /**
+     * Creates the cache from the cache settings in the parameter file. Returns {@code null} if no
+     * cache directory is set.
+     *
+     * @param params
+     * @return the cache or {@code null}
+     */
+    public static ResponseCache newInstance(GoogleBooksExtractorParams params) {
+        if (params.cacheDir == null || params.cacheDir.trim().isEmpty())
+            return null;
+
+        return new ResponseCache(params.cacheDir.trim(), params.cacheTtlHours, params.cacheMaxMegabytes);
+    }
+
+    /**
+     * The cache key for a volume query. Queries that only differ in case or white space share
+     * the same key.
+     *
+     * @param query
+     * @param startIndex
+     * @param maxResults
+     * @return the key
+     */
+    public static String key(String query, int startIndex, int maxResults) {
+        String normalised = query.trim().replaceAll("\\s+", " ").toLowerCase();
+
+        return normalised + "|" + startIndex + "|" + maxResults;
+    }
+
+    /**
+     * The cache key for a volume query sent to the API at the root URL, with the fields selector
+     *
+     * @param rootUrl the root URL of the Books API
+     * @param fields the fields selector, or {@code null} for full volumes
+     * @param query
+     * @param startIndex
+     * @param maxResults
+     * @return the key
+     */
+    public static String key(String rootUrl, String fields, String query, int startIndex, int maxResults) {
+        return key(query, startIndex, maxResults) + "|" + rootUrl + "|" + ((fields != null) ? fields : "");
+    }
+
+    /**
+     * Returns the cached response for the key, or {@code null} if there is no valid entry
+     *
+     * @param key
+     * @return the JSON response or {@code null}
+     */
+    public String get(String key) {
+        String name = fileName(key);
+        File file = new File(dir, name);
+
+        synchronized (this) {
+            if (entries.get(name) == null) {    // a get, so that the hit moves the entry to the end of the LRU order
+                misses++;
+                return null;
+            }
+        }
+
+        String json = null;
+
+        try {
+            json = readEntry(file, key);
+        } catch (IOException e) {
+            logger.warn("Cannot read cache entry {}: {}", file, e.getMessage());
+        }
+
+        synchronized (this) {
+            if (json == null) {
+                remove(name);
+                misses++;
+            }
+            else {
+                file.setLastModified(System.currentTimeMillis());   // LRU order across runs
+                hits++;
+            }
+        }
+
+        return json;
+    }
+
+    /**
+     * Stores the response under the key and evicts the least recently used entries if the cache
+     * exceeds its size cap.
+     *
+     * @param key
+     * @param json
+     */
+    public void put(String key, String json) {
+        String name = fileName(key);
+        File file = new File(dir, name);
+        File tmp = new File(dir, name + "." + Thread.currentThread().getId() + ".tmp");
+
+        try {
+            Writer w = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tmp)), UTF8));
+
+            try {
+                w.write(Long.toString(System.currentTimeMillis()));
+                w.write('\t');
+                w.write(key.replace('\n', ' '));
+                w.write('\n');
+                w.write(json);
+            } finally {
+                w.close();
+            }
+
+            FileReplacer.replaceFile(tmp, file);
+        } catch (IOException e) {
+            logger.warn("Cannot write cache entry {}: {}", file, e.getMessage());
+            tmp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            Long previous = entries.put(name, file.length());
+
+            if (previous != null) totalBytes -= previous;
+
+            totalBytes += file.length();
+            evict();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Reads the entry and checks its key and age. Returns {@code null} for stale entries or hash
+     * collisions.
+     */
+    private String readEntry(File file, String key) throws IOException {
+        Reader r = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), UTF8));
+
+        try {
+            StringBuilder header = new StringBuilder();
+            int c;
+
+            while ((c = r.read()) != -1 && c != '\n')
+                header.append((char) c);
+
+            int tab = header.indexOf("\t");
+
+            if (tab < 0) return null;
+
+            long created = Long.parseLong(header.substring(0, tab));
+
+            if (System.currentTimeMillis() - created > ttlMillis) {
+                logger.trace("Cache entry expired: {}", key);
+                return null;
+            }
+
+            if (!header.substring(tab + 1).equals(key.replace('\n', ' '))) return null;
+
+            StringBuilder json = new StringBuilder(16384);
+            char[] buf = new char[8192];
+            int n;
+
+            while ((n = r.read(buf)) != -1)
+                json.append(buf, 0, n);
+
+            return json.toString();
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Loads the existing entries, oldest access first, and removes those that are over the cap
+     */
+    private synchronized void loadIndex() {
+        File[] files = dir.listFiles();
+
+        if (files == null) return;
+
+        boolean restored = false;
+
+        for (File f : files) {
+            if (f.getName().endsWith(SUFFIX + ".bak")) {    // the replacement of an entry was interrupted
+                FileReplacer.restoreBackup(new File(dir, f.getName().substring(0, f.getName().length() - ".bak".length())));
+                restored = true;
+            }
+        }
+
+        if (restored) files = dir.listFiles();
+
+        if (files == null) return;
+
+        ArrayList<File> cached = new ArrayList<File>();
+
+        for (File f : files) {
+            if (f.getName().endsWith(SUFFIX))
+                cached.add(f);
+            else if (f.getName().endsWith(".tmp") && System.currentTimeMillis() - f.lastModified() > 3600000L)
+                f.delete();     // left over from an interrupted write
+        }
+
+        File[] sorted = cached.toArray(new File[cached.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long d = a.lastModified() - b.lastModified();
+                return d < 0 ? -1 : (d > 0 ? 1 : 0);
+            }
+        });
+
+        for (File f : sorted) {
+            entries.put(f.getName(), f.length());
+            totalBytes += f.length();
+        }
+
+        evict();
+
+        logger.debug("Response cache {}: {} entries, {} bytes", new Object[] {dir, entries.size(), totalBytes});
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is within its size cap
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            totalBytes -= eldest.getValue();
+            new File(dir, eldest.getKey()).delete();
+            it.remove();
+        }
+    }
+
+    private void remove(String name) {
+        Long size = entries.remove(name);
+
+        if (size != null) totalBytes -= size;
+
+        new File(dir, name).delete();
+    }
+
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF8));
+            StringBuilder sb = new StringBuilder(digest.length * 2 + SUFFIX.length());
+
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+
+            return sb.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -13,14 +13,22 @@
  */
 package info.financialecology.googlebooksextractor;
 
+import java.util.List;
+
 
 /**
- * An interface for the result writers
+ * An interface for the result writers. Results can either be written in one go with 
+ * {@code write} or {@code writeVolumes}, or streamed row by row with {@code writeRow}, where the 
+ * first row holds the header labels, or volume by volume with {@code writeVolume}, preceded by 
+ * {@code writeHeader}. In all cases {@code close} needs to be called once all results are written. 
+ * {@code flush} forces the rows written so far to the file, e.g. before a checkpoint. The volume
+ * methods are those of {@link VolumeWriter}.
  * 
  * @author Gilbert Peffer
  *
  */
-public interface ResultWriter {
+public interface ResultWriter extends VolumeWriter {
     public void write(Object o);
 //    public void write(Object o, Object[] params);
+    public void writeRow(List<String> row);
 }
@@ -13,15 +13,95 @@
  */
 package info.financialecology.googlebooksextractor;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
 /**
- * A factory to create new result writers
+ * A factory to create new result writers. Two output formats are supported, CSV and JSON Lines 
+ * (one JSON object per volume and line), both of which can be gzip-compressed. All writers 
+ * write UTF-8 through large buffers.
  * 
  * @author Gilbert Peffer
  *
  */
 public class ResultWriterFactory {
 
+    public static final String FORMAT_CSV         = "csv";
+    public static final String FORMAT_JSON_LINES  = "jsonl";
+
+    private static final int BUFFER_SIZE = 1 << 18;         // 256 KB of characters before encoding
+    private static final int GZIP_BUFFER_SIZE = 1 << 16;    // input buffer of the deflater
+
     public static ResultWriter newCsvWriter(String fileName) {
         return new CsvResultWriter(fileName);
     }
+    
+    /**
+     * A writer for the output format, flushing the buffered rows at least every 
+     * {@code flushIntervalMillis}
+     * 
+     * @param fileName
+     * @param format the output format, {@link #FORMAT_CSV} or {@link #FORMAT_JSON_LINES}
+     * @param gzip compress the file with gzip
+     * @param flushIntervalMillis
+     * @param append append the rows to an existing file, e.g. when resuming a run
+     * @return the writer
+     */
+    public static ResultWriter newWriter(String fileName, String format, boolean gzip, long flushIntervalMillis, boolean append) {
+        if (FORMAT_JSON_LINES.equalsIgnoreCase(format))
+            return new JsonLinesResultWriter(fileName, flushIntervalMillis, append, gzip);
+        
+        return new CsvResultWriter(fileName, ',', flushIntervalMillis, append, gzip);
+    }
+    
+    /**
+     * A writer for the output settings in the parameter file: a writer of the output format, or a 
+     * writer of part files if more than one output shard is set
+     * 
+     * @param fileName
+     * @param params
+     * @param append append the rows to an existing file, e.g. when resuming a run; not supported 
+     *               for part files
+     * @return the writer
+     */
+    public static VolumeWriter newWriter(String fileName, GoogleBooksExtractorParams params, boolean append) {
+        if (params.outputShards > 1)
+            return ShardedResultWriter.newInstance(fileName, params);
+        
+        return newWriter(fileName, params.outputFormat, params.compressOutput, params.flushIntervalSeconds * 1000L, append);
+    }
+    
+    /**
+     * The file name extension of the output format, e.g. '.csv' or '.jsonl.gz'
+     */
+    public static String fileExtension(String format, boolean gzip) {
+        String extension = FORMAT_JSON_LINES.equalsIgnoreCase(format) ? ".jsonl" : ".csv";
+        
+        return gzip ? extension + ".gz" : extension;
+    }
+    
+    /**
+     * Opens a buffered UTF-8 writer on the file. Appending to a gzip-compressed file adds a new 
+     * gzip member, which readers decompress as part of the same stream.
+     * 
+     * @param fileName
+     * @param append
+     * @param gzip
+     * @return the writer
+     * @throws IOException
+     */
+    static Writer newBufferedWriter(String fileName, boolean append, boolean gzip) throws IOException {
+        OutputStream out = new FileOutputStream(fileName, append);
+        
+        if (gzip)
+            out = new GZIPOutputStream(new BufferedOutputStream(out, GZIP_BUFFER_SIZE), GZIP_BUFFER_SIZE);
+        
+        return new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+    }
 }
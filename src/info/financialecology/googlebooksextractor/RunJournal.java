@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only journal of the work completed in a run, so that an interrupted run can be
+ * resumed where it stopped rather than re-issuing every query. The journal is a text file with
+ * one tab-separated record per line:
+ * <pre>
+ *   ID     bookId                                   a key registered for duplicate removal, see DedupIndex
+ *   PAGE   query page returned retained stored length    a page of a query was stored; 'length' is the
+ *                                                   size of the output file after the page
+ *   QUERY  query totalVol retainedVol startIndex queryString    a query is complete (the logged entry)
+ *   DONE                                            the run is complete, there is nothing to resume
+ * </pre>
+ * where 'query' is the index of the query in the query list. The ID records of a page are only
+ * valid if they are followed by the PAGE record, so a page that was interrupted while being
+ * stored is simply stored again. When resuming, the output file is truncated to the length
+ * recorded by the last PAGE record, which removes rows that were written after the last
+ * checkpoint.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class RunJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(RunJournal.class.getSimpleName());
+
+    private final File file;
+    private final BufferedWriter w;
+
+    // Restored state
+    private final HashSet<String> bookIds = new HashSet<String>();
+    private final HashMap<Integer, String> completedQueries = new HashMap<Integer, String>();
+    private final HashMap<Integer, Integer> pagesDone = new HashMap<Integer, Integer>();
+    private final HashMap<Integer, Integer> retainedSoFar = new HashMap<Integer, Integer>();
+    private final ArrayList<ArrayList<String>> logList = new ArrayList<ArrayList<String>>();
+    private int totalVolCounter = 0;
+    private int storedVolCounter = 0;
+    private long outputLength = 0;
+    private boolean complete = false;
+
+    /**
+     * Opens the journal. If {@code resume} is set, the existing journal is read first and new
+     * records are appended to it, otherwise any existing journal is replaced.
+     *
+     * @param fileName
+     * @param resume
+     * @throws IOException
+     */
+    public RunJournal(String fileName, boolean resume) throws IOException {
+        file = new File(fileName);
+
+        if (resume) {
+            if (file.exists())
+                read();
+            else
+                logger.warn("No journal {} found, starting from the beginning", fileName);
+        }
+
+        w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, resume), "UTF-8"));
+    }
+
+    /**
+     * Records a book identifier that was registered for duplicate removal
+     *
+     * @param bookId
+     */
+    public synchronized void recordBookId(String bookId) {
+        writeRecord("ID", escape(bookId));
+    }
+
+    /**
+     * Records that a page of a query was stored, and flushes the journal. The output needs to be
+     * flushed before, so that {@code outputLength} covers the rows of the page.
+     *
+     * @param query the index of the query
+     * @param page the index of the page, starting at 0
+     * @param returned the number of volumes returned for the page
+     * @param retained the number of volumes stored for the query so far
+     * @param stored the number of volumes stored over all queries
+     * @param outputLength the length of the output file
+     */
+    public synchronized void recordPage(int query, int page, int returned, int retained, int stored, long outputLength) {
+        writeRecord("PAGE", query + "\t" + page + "\t" + returned + "\t" + retained + "\t" + stored + "\t" + outputLength);
+        flush();
+    }
+
+    /**
+     * Records that a query is complete, together with its logged search information
+     *
+     * @param query the index of the query
+     * @param logInfo the logged entry [query, totalVol, retainedVol, start index in the stored volumes]
+     */
+    public synchronized void recordQuery(int query, List<String> logInfo) {
+        writeRecord("QUERY", query + "\t" + logInfo.get(1) + "\t" + logInfo.get(2) + "\t" + logInfo.get(3) + "\t" + escape(logInfo.get(0)));
+        flush();
+    }
+
+    /**
+     * Records that the run is complete, so that it isn't resumed
+     */
+    public synchronized void recordDone() {
+        writeRecord("DONE", "");
+        flush();
+    }
+
+    public synchronized void close() {
+        try {
+            w.close();
+        } catch (IOException e) {
+            logger.error("Cannot close journal {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the query string of a completed query, or {@code null} if the query isn't complete
+     */
+    public String getCompletedQuery(int query) {
+        return completedQueries.get(query);
+    }
+
+    /**
+     * The number of queries that were completed before the run stopped
+     */
+    public int getCompletedQueryCount() {
+        return completedQueries.size();
+    }
+
+    /**
+     * The number of pages of an incomplete query that were stored before the run stopped
+     */
+    public int getPagesDone(int query) {
+        Integer pages = pagesDone.get(query);
+        return (pages == null) ? 0 : pages;
+    }
+
+    /**
+     * The number of volumes of an incomplete query that were stored before the run stopped
+     */
+    public int getRetainedSoFar(int query) {
+        Integer retained = retainedSoFar.get(query);
+        return (retained == null) ? 0 : retained;
+    }
+
+    /**
+     * The number of volumes stored for all incomplete queries before the run stopped
+     */
+    public int getRetainedSoFarTotal() {
+        int total = 0;
+
+        for (int retained : retainedSoFar.values())
+            total += retained;
+
+        return total;
+    }
+
+    public HashSet<String> getBookIds() {
+        return bookIds;
+    }
+
+    public ArrayList<ArrayList<String>> getLogList() {
+        return logList;
+    }
+
+    public int getTotalVolCounter() {
+        return totalVolCounter;
+    }
+
+    public int getStoredVolCounter() {
+        return storedVolCounter;
+    }
+
+    /**
+     * Returns true if the journaled run is complete
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * The length of the output file at the last checkpoint
+     */
+    public long getOutputLength() {
+        return outputLength;
+    }
+
+    /**
+     * Reads the journal of an earlier run up to the last complete page
+     */
+    private void read() throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        ArrayList<String> pendingIds = new ArrayList<String>();     // IDs of a page that isn't checkpointed yet
+        int lines = 0;
+
+        try {
+            String line;
+
+            while ((line = r.readLine()) != null) {
+                String[] f = line.split("\t", -1);
+                lines++;
+
+                if (f[0].equals("ID") && f.length == 2)
+                    pendingIds.add(unescape(f[1]));
+                else if (f[0].equals("PAGE") && f.length == 7) {
+                    int query = Integer.parseInt(f[1]);
+                    bookIds.addAll(pendingIds);
+                    pendingIds.clear();
+                    pagesDone.put(query, Integer.parseInt(f[2]) + 1);
+                    totalVolCounter += Integer.parseInt(f[3]);
+                    retainedSoFar.put(query, Integer.parseInt(f[4]));
+                    storedVolCounter = Integer.parseInt(f[5]);
+                    outputLength = Long.parseLong(f[6]);
+                }
+                else if (f[0].equals("QUERY") && f.length == 6) {
+                    int query = Integer.parseInt(f[1]);
+                    ArrayList<String> logInfo = new ArrayList<String>();
+                    logInfo.add(unescape(f[5]));
+                    logInfo.add(f[2]);
+                    logInfo.add(f[3]);
+                    logInfo.add(f[4]);
+                    logList.add(logInfo);
+                    completedQueries.put(query, logInfo.get(0));
+                    pagesDone.remove(query);
+                    retainedSoFar.remove(query);
+                }
+                else if (f[0].equals("DONE"))
+                    complete = true;
+                else
+                    logger.warn("Ignoring invalid journal record {}: {}", lines, line);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid journal " + file + " at line " + lines + ": " + e.getMessage());
+        } finally {
+            r.close();
+        }
+
+        logger.debug("Resuming from journal {}: {} completed queries, {} stored volumes",
+                new Object[] {file, completedQueries.size(), storedVolCounter});
+    }
+
+    private void writeRecord(String type, String fields) {
+        try {
+            w.write(type);
+            w.write('\t');
+            w.write(fields);
+            w.write('\n');
+        } catch (IOException e) {
+            logger.error("Cannot write journal {}: {}", file, e.getMessage());
+        }
+    }
+
+    private void flush() {
+        try {
+            w.flush();
+        } catch (IOException e) {
+            logger.error("Cannot write journal {}: {}", file, e.getMessage());
+        }
+    }
+
+    static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            }
+            else
+                sb.append(c);
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * The metrics of a run, overall and per query:
+ * <ul>
+ * <li> the requests sent to Google Books, by outcome, with a histogram of their latency
+ * <li> the bytes downloaded, i.e. the compressed size of the responses if the server reports 
+ *      it, and the size of the decoded responses otherwise
+ * <li> the pages fetched, from Google Books, from the response cache or, offline, from the response
+ *      archive
+ * <li> the retries, the quota errors (403 and 429 responses) and the failed requests
+ * <li> the volumes returned, stored, rejected by the filters and removed as duplicates
+ * </ul>
+ * At the end of the run, the metrics are written as a JSON report. During the run, they can be
+ * exported in the Prometheus text format, see {@code MetricsExporter}.
+ * <p>
+ * All methods are synchronized, so that the metrics can be recorded by the query threads.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class RunMetrics {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final long startMillis = System.currentTimeMillis();
+    private long endMillis = 0;         // 0 while the run is going on
+
+    private final QueryMetrics total = new QueryMetrics(null);
+    private final LinkedHashMap<String, QueryMetrics> queries = new LinkedHashMap<String, QueryMetrics>();
+    private int queriesCompleted = 0;
+    private long queriesPlanned = 0;
+
+    /**
+     * Records a request sent to Google Books
+     *
+     * @param query
+     * @param nanos the latency of the request
+     * @param status the HTTP status, or 0 if no response was received
+     * @param bytes the size of the response
+     */
+    public synchronized void recordRequest(String query, long nanos, int status, long bytes) {
+        total.recordRequest(nanos, status, bytes);
+        query(query).recordRequest(nanos, status, bytes);
+    }
+
+    /**
+     * Records a request that is retried after a failure
+     */
+    public synchronized void recordRetry(String query) {
+        total.retries++;
+        query(query).retries++;
+    }
+
+    /**
+     * Records a page answered from the response cache
+     */
+    public synchronized void recordCacheHit(String query) {
+        total.cacheHits++;
+        total.pages++;
+        query(query).cacheHits++;
+        query(query).pages++;
+    }
+
+    /**
+     * Records a page read from the response archive in an offline run
+     */
+    public synchronized void recordArchivedPage(String query) {
+        total.pages++;
+        query(query).pages++;
+    }
+
+    /**
+     * Records the volumes of a completed query
+     *
+     * @param query
+     * @param returned the number of volumes returned by Google Books
+     * @param stored the number of volumes stored
+     * @param duplicates the number of volumes removed as duplicates
+     * @param filtered the number of volumes rejected by the filters
+     */
+    public synchronized void recordQuery(String query, int returned, int stored, int duplicates, int filtered) {
+        QueryMetrics m = query(query);
+        m.returned += returned;
+        m.stored += stored;
+        m.duplicates += duplicates;
+        m.filtered += filtered;
+
+        total.returned += returned;
+        total.stored += stored;
+        total.duplicates += duplicates;
+        total.filtered += filtered;
+
+        queriesCompleted++;
+    }
+
+    public synchronized void setQueriesPlanned(long queriesPlanned) {
+        this.queriesPlanned = queriesPlanned;
+    }
+
+    /**
+     * Marks the end of the run
+     */
+    public synchronized void finish() {
+        endMillis = System.currentTimeMillis();
+    }
+
+    public synchronized long getRequests() {
+        return total.requests;
+    }
+
+    public synchronized long getPages() {
+        return total.pages;
+    }
+
+    public synchronized double getLatencyPercentile(double percentile) {
+        return total.latency.getPercentile(percentile);
+    }
+
+    /**
+     * Writes the metrics as a JSON report
+     *
+     * @param fileName
+     * @throws IOException
+     */
+    public synchronized void writeJson(String fileName) throws IOException {
+        OutputStream out = new FileOutputStream(fileName);
+
+        try {
+            JsonGenerator g = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+            g.useDefaultPrettyPrinter();
+
+            g.writeStartObject();
+            g.writeNumberField("startMillis", startMillis);
+            g.writeNumberField("endMillis", endMillis);
+            g.writeNumberField("durationSeconds", getDurationSeconds());
+            g.writeNumberField("queriesPlanned", queriesPlanned);
+            g.writeNumberField("queriesCompleted", queriesCompleted);
+            g.writeFieldName("total");
+            total.writeJson(g);
+            g.writeArrayFieldStart("queries");
+
+            for (QueryMetrics m : queries.values())
+                m.writeJson(g);
+
+            g.writeEndArray();
+            g.writeEndObject();
+            g.close();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The metrics in the Prometheus text format. Only the totals are exported, since labelling 
+     * the metrics with the queries would create a time series per query.
+     */
+    public synchronized String toPrometheusText() {
+        StringBuilder sb = new StringBuilder(4096);
+
+        counter(sb, "gbx_requests_total", "Requests sent to Google Books", total.requests);
+        counter(sb, "gbx_request_errors_total", "Requests that failed, including quota errors", total.errors);
+        counter(sb, "gbx_quota_errors_total", "Requests rejected with 403 or 429", total.quotaErrors);
+        counter(sb, "gbx_retries_total", "Requests retried after a failure", total.retries);
+        counter(sb, "gbx_downloaded_bytes_total", "Bytes downloaded from Google Books", total.bytes);
+        counter(sb, "gbx_pages_total", "Pages fetched, including cache hits", total.pages);
+        counter(sb, "gbx_cache_hits_total", "Pages answered from the response cache", total.cacheHits);
+        counter(sb, "gbx_volumes_returned_total", "Volumes returned by Google Books for the completed queries", total.returned);
+        counter(sb, "gbx_volumes_stored_total", "Volumes stored", total.stored);
+        counter(sb, "gbx_volumes_duplicate_total", "Volumes removed as duplicates", total.duplicates);
+        counter(sb, "gbx_volumes_filtered_total", "Volumes rejected by the filters", total.filtered);
+        counter(sb, "gbx_queries_completed_total", "Queries completed", queriesCompleted);
+        gauge(sb, "gbx_queries_planned", "Queries in the query plan", queriesPlanned);
+        gauge(sb, "gbx_run_duration_seconds", "Duration of the run", getDurationSeconds());
+
+        LatencyHistogram h = total.latency;
+        String name = "gbx_request_duration_seconds";
+        sb.append("# HELP ").append(name).append(" Latency of the requests to Google Books\n");
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+
+        for (int i = 0; i <= LatencyHistogram.BOUNDS.length; i++) {
+            cumulative += h.getBucketCount(i);
+            String le = (i < LatencyHistogram.BOUNDS.length) ? format(LatencyHistogram.BOUNDS[i]) : "+Inf";
+            sb.append(name).append("_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+        }
+
+        sb.append(name).append("_sum ").append(format(h.getSumSeconds())).append('\n');
+        sb.append(name).append("_count ").append(h.getCount()).append('\n');
+
+        return sb.toString();
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format. The file is replaced atomically, so that 
+     * a collector never reads a partly written file.
+     *
+     * @param fileName
+     * @throws IOException
+     */
+    public void writePrometheus(String fileName) throws IOException {
+        File file = new File(fileName);
+        File tmp = new File(fileName + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+
+        try {
+            out.write(toPrometheusText().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        FileReplacer.replaceFile(tmp, file);
+    }
+
+    private double getDurationSeconds() {
+        return (((endMillis > 0) ? endMillis : System.currentTimeMillis()) - startMillis) / 1000.0;
+    }
+
+    private QueryMetrics query(String query) {
+        QueryMetrics m = queries.get(query);
+
+        if (m == null) {
+            m = new QueryMetrics(query);
+            queries.put(query, m);
+        }
+
+        return m;
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, double value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        return Double.toString(value);     // the decimal point is always a dot, whatever the locale
+    }
+
+    /**
+     * The metrics of a single query, or the totals of the run
+     */
+    private static class QueryMetrics {
+        private final String query;     // null for the totals
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long requests = 0;
+        private long errors = 0;
+        private long quotaErrors = 0;
+        private long retries = 0;
+        private long bytes = 0;
+        private long pages = 0;
+        private long cacheHits = 0;
+        private long returned = 0;
+        private long stored = 0;
+        private long duplicates = 0;
+        private long filtered = 0;
+
+        QueryMetrics(String query) {
+            this.query = query;
+        }
+
+        void recordRequest(long nanos, int status, long bytes) {
+            latency.record(nanos);
+            requests++;
+            this.bytes += bytes;
+
+            if (status == 200)
+                pages++;
+            else
+                errors++;
+
+            if (status == 403 || status == 429)
+                quotaErrors++;
+        }
+
+        void writeJson(JsonGenerator g) throws IOException {
+            g.writeStartObject();
+
+            if (query != null) g.writeStringField("query", query);
+
+            g.writeNumberField("requests", requests);
+            g.writeNumberField("errors", errors);
+            g.writeNumberField("quotaErrors", quotaErrors);
+            g.writeNumberField("retries", retries);
+            g.writeNumberField("downloadedBytes", bytes);
+            g.writeNumberField("pages", pages);
+            g.writeNumberField("cacheHits", cacheHits);
+            g.writeNumberField("volumesReturned", returned);
+            g.writeNumberField("volumesStored", stored);
+            g.writeNumberField("volumesDuplicate", duplicates);
+            g.writeNumberField("volumesFiltered", filtered);
+
+            g.writeObjectFieldStart("latencySeconds");
+            g.writeNumberField("count", latency.getCount());
+            g.writeNumberField("sum", latency.getSumSeconds());
+            g.writeNumberField("max", latency.getMaxSeconds());
+            g.writeNumberField("p50", latency.getPercentile(0.5));
+            g.writeNumberField("p90", latency.getPercentile(0.9));
+            g.writeNumberField("p99", latency.getPercentile(0.99));
+            g.writeArrayFieldStart("buckets");
+
+            for (int i = 0; i <= LatencyHistogram.BOUNDS.length; i++) {
+                g.writeStartObject();
+
+                if (i < LatencyHistogram.BOUNDS.length)
+                    g.writeNumberField("le", LatencyHistogram.BOUNDS[i]);
+                else
+                    g.writeStringField("le", "+Inf");
+
+                g.writeNumberField("count", latency.getBucketCount(i));
+                g.writeEndObject();
+            }
+
+            g.writeEndArray();
+            g.writeEndObject();
+            g.writeEndObject();
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A volume writer that spreads the volumes over a number of part files, which are written in 
+ * parallel, each by its own thread. The volumes are sharded by their dedup key (the ISBN or the 
+ * normalized title) or by their query, so that the part files can be processed independently, 
+ * e.g. by Hadoop or Spark. Each part file is a complete file of the output format, with its own 
+ * header, and is only created if the shard holds any volumes.
+ * <p>
+ * The caller hands the volumes to the shards in batches, so that encoding the volumes and 
+ * writing them to the files happens on the shard threads. The number of pending batches is 
+ * bounded, so that a fast caller doesn't pile up the volumes in memory.
+ * <p>
+ * If merging is switched on, each shard sorts its volumes by dedup key and query. A shard keeps 
+ * at most {@value #MAX_SORTED_VOLUMES} volumes in memory; when they are more, it writes them as a 
+ * sorted run next to its part file, and merges the runs into the part file when the writer is 
+ * closed. The sorted part files are then merged into a single sorted file. Both merges are k-way 
+ * merges, see {@link PartFileMerger}. If a merge fails, its inputs are kept: the runs of a shard 
+ * are not deleted, and no merged file is left if the part files cannot be merged.
+ * <p>
+ * The writer only writes volumes, not tables, see {@link VolumeWriter}.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class ShardedResultWriter implements VolumeWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedResultWriter.class.getSimpleName());
+
+    public static final String SHARD_BY_KEY   = "key";
+    public static final String SHARD_BY_QUERY = "query";
+
+    private static final int BATCH_SIZE = 512;              // volumes handed to a shard at a time
+    private static final int MAX_PENDING_BATCHES = 4;       // per shard
+    private static final int MAX_SORTED_VOLUMES = 16384;    // volumes a shard sorts in memory before writing a run, if merging
+
+    /**
+     * The order of the volumes in sorted part files and in the merged file
+     */
+    static final Comparator<String[]> SORT_ORDER = new Comparator<String[]>() {
+        public int compare(String[] a, String[] b) {
+            for (int i = 0; i < a.length; i++) {
+                int c = a[i].compareTo(b[i]);
+
+                if (c != 0) return c;
+            }
+
+            return 0;
+        }
+    };
+
+    private final String fileName;
+    private final String format;
+    private final boolean gzip;
+    private final boolean shardByQuery;
+    private final boolean merge;
+    private final long flushIntervalMillis;
+    private final Shard[] shards;
+    private final Semaphore pendingBatches;
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     *
+     * @param fileName the name of the merged file, from which the names of the part files are derived,
+     *                 see {@link #partFileName(String, int)}
+     * @param numShards the number of part files
+     * @param shardBy {@link #SHARD_BY_KEY} or {@link #SHARD_BY_QUERY}
+     * @param merge merge the part files into a single sorted file when the writer is closed
+     * @param format the output format, see {@link ResultWriterFactory}
+     * @param gzip compress the files with gzip
+     * @param flushIntervalMillis the maximum time between flushes of the part files
+     */
+    public ShardedResultWriter(String fileName, int numShards, String shardBy, boolean merge, String format, boolean gzip, 
+            long flushIntervalMillis) {
+        this.fileName = fileName;
+        this.format = format;
+        this.gzip = gzip;
+        this.shardByQuery = SHARD_BY_QUERY.equalsIgnoreCase(shardBy);
+        this.merge = merge;
+        this.flushIntervalMillis = flushIntervalMillis;
+
+        shards = new Shard[numShards];
+        pendingBatches = new Semaphore(numShards * MAX_PENDING_BATCHES);
+
+        for (int i = 0; i < numShards; i++)
+            shards[i] = new Shard(partFileName(fileName, i), ResultWriterFactory.newWriter(partFileName(fileName, i), format, gzip, 
+                    flushIntervalMillis, false));
+
+        logger.debug("Writing {} part files, sharded by {}{}", new Object[] {numShards, shardByQuery ? "query" : "dedup key", 
+                merge ? ", merged into " + fileName : ""});
+    }
+
+    /**
+     * Creates the writer from the output settings in the parameter file
+     *
+     * @param fileName the name of the output file
+     * @param params
+     * @return the writer
+     */
+    public static ShardedResultWriter newInstance(String fileName, GoogleBooksExtractorParams params) {
+        return new ShardedResultWriter(fileName, params.outputShards, params.shardBy, params.mergeShards, params.outputFormat, 
+                params.compressOutput, params.flushIntervalSeconds * 1000L);
+    }
+
+    /**
+     * The name of a part file, e.g. 'out/books-part-00003.csv.gz' for the output file 
+     * 'out/books.csv.gz'
+     *
+     * @param fileName the name of the output file
+     * @param shard the index of the shard
+     * @return the name of the part file
+     */
+    public static String partFileName(String fileName, int shard) {
+        int dot = fileName.lastIndexOf('.', fileName.endsWith(".gz") ? fileName.length() - 4 : fileName.length());
+        int slash = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\'));
+
+        if (dot <= slash) dot = fileName.length();
+
+        return fileName.substring(0, dot) + String.format("-part-%05d", shard) + fileName.substring(dot);
+    }
+
+    /**
+     * The sort key of a volume: the dedup key (the canonical ISBN, the upper-cased identifier, or
+     * the normalized title), the query and the title
+     */
+    static String[] sortKey(String title, String query, String industryId) {
+        String key = DedupIndex.identifierKey(industryId);
+
+        if (key == null) key = DedupIndex.titleKey(title);
+
+        return new String[] {(key == null) ? "" : key, (query == null) ? "" : query, (title == null) ? "" : title};
+    }
+
+    /**
+     * Writes the volumes to the part files and waits until they are written
+     *
+     * @param volumes
+     */
+    public void writeVolumes(Iterator<VolumeRecord> volumes) {
+        while (volumes.hasNext())
+            writeVolume(volumes.next());
+
+        flush();
+    }
+
+    /**
+     * Does nothing, each part file gets its header before its first volume
+     */
+    public void writeHeader() {
+    }
+
+    /**
+     * Hands the volume to its shard
+     *
+     * @param volume
+     */
+    public synchronized void writeVolume(VolumeRecord volume) {
+        if (closed) return;
+
+        Shard shard = shards[shardOf(volume)];
+        shard.batch.add(volume);
+
+        if (shard.batch.size() >= BATCH_SIZE)
+            submitBatch(shard);
+    }
+
+    /**
+     * Writes the volumes handed to the shards so far to the part files, and waits until they are 
+     * written
+     *
+     * @return false if any volume couldn't be written
+     */
+    public synchronized boolean flush() {
+        if (closed) return true;
+
+        for (final Shard shard : shards) {
+            submitBatch(shard);
+            shard.last = shard.executor.submit(new Runnable() {
+                public void run() {
+                    if (!shard.writer.flush()) shard.failed = true;
+                }
+            });
+        }
+
+        boolean written = true;
+
+        for (Shard shard : shards)
+            written &= await(shard) && !shard.failed;
+
+        return written;
+    }
+
+    /**
+     * Writes the remaining volumes, closes the part files and, if merging is switched on, merges 
+     * them into the output file
+     */
+    public synchronized void close() {
+        if (closed) return;
+
+        long start = System.currentTimeMillis();
+
+        for (final Shard shard : shards) {
+            submitBatch(shard);
+            shard.last = shard.executor.submit(new Runnable() {
+                public void run() {
+                    shard.close();
+                }
+            });
+            shard.executor.shutdown();
+        }
+
+        int volumes = 0;
+        boolean runsMerged = true;
+        ArrayList<String> partFiles = new ArrayList<String>();
+
+        for (Shard shard : shards) {
+            await(shard);
+
+            try {
+                shard.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            volumes += shard.count;
+            runsMerged &= shard.runs.isEmpty();
+
+            if (shard.count > 0) partFiles.add(shard.fileName);
+        }
+
+        closed = true;
+
+        logger.debug("Wrote {} volumes to {} part files in {} ms", new Object[] {volumes, partFiles.size(), System.currentTimeMillis() - start});
+
+        if (!merge) return;
+
+        if (!runsMerged)
+            logger.error("Not all sorted runs are merged into the part files, {} isn't written", fileName);
+        else if (PartFileMerger.merge(partFiles, fileName, format, gzip) != volumes) {
+            new File(fileName).delete();
+            logger.error("Cannot merge the part files into {}, the volumes are in the part files {}", fileName, partFiles);
+        }
+    }
+
+    /**
+     * The shard of the volume, from the fingerprint of its dedup key or query, which spreads 
+     * similar keys such as consecutive ISBNs evenly over the shards
+     */
+    private int shardOf(VolumeRecord volume) {
+        String key = shardByQuery ? volume.getQuery() : sortKey(volume.getTitle(), null, volume.getIndustryId())[0];
+
+        return (int) ((DedupIndex.fingerprint(key) >>> 1) % shards.length);
+    }
+
+    /**
+     * Hands the batch of the shard to its thread, waiting if too many batches are pending
+     */
+    private void submitBatch(final Shard shard) {
+        if (shard.batch.isEmpty()) return;
+
+        final ArrayList<VolumeRecord> batch = shard.batch;
+        shard.batch = new ArrayList<VolumeRecord>(BATCH_SIZE);
+
+        pendingBatches.acquireUninterruptibly();
+
+        shard.last = shard.executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    shard.write(batch);
+                } finally {
+                    pendingBatches.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the last task of the shard, which completes after all earlier tasks
+     *
+     * @return false if a task of the shard failed or the wait was interrupted
+     */
+    private boolean await(Shard shard) {
+        if (shard.last == null) return true;
+
+        try {
+            shard.last.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            logger.error("Cannot write part file {}: {}", shard.fileName, e.getCause().toString());
+            shard.failed = true;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * A part file and the thread that writes it. The batch is filled by the caller, all other 
+     * fields are only used by the shard thread.
+     */
+    private class Shard {
+        final String fileName;
+        final ResultWriter writer;
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final ArrayList<VolumeRecord> kept = new ArrayList<VolumeRecord>();     // the volumes to be sorted, if merging
+        final ArrayList<String> runs = new ArrayList<String>();                 // the sorted runs not merged yet, if merging
+        ArrayList<VolumeRecord> batch = new ArrayList<VolumeRecord>(BATCH_SIZE);
+        Future<?> last = null;
+        int count = 0;
+        volatile boolean failed = false;    // a volume couldn't be written to the part file
+
+        Shard(String fileName, ResultWriter writer) {
+            this.fileName = fileName;
+            this.writer = writer;
+        }
+
+        void write(List<VolumeRecord> volumes) {
+            if (merge) {
+                kept.addAll(volumes);
+
+                if (kept.size() >= MAX_SORTED_VOLUMES) writeRun();
+            } else {
+                if (count == 0) writer.writeHeader();
+
+                for (VolumeRecord volume : volumes)
+                    writer.writeVolume(volume);
+            }
+
+            count += volumes.size();
+        }
+
+        void close() {
+            if (merge && runs.isEmpty() && !kept.isEmpty())
+                writeSorted(writer);
+
+            writer.close();
+
+            if (merge && !runs.isEmpty()) {
+                if (!kept.isEmpty()) writeRun();
+
+                int merged = PartFileMerger.merge(runs, fileName, format, false, gzip);    // the runs are in the order written, so equal volumes keep their order
+
+                if (merged != count) {
+                    logger.error("Cannot merge the sorted runs into {}, the volumes are kept in {}", fileName, runs);
+                    return;
+                }
+
+                for (String run : runs)
+                    new File(run).delete();
+
+                runs.clear();
+            }
+        }
+
+        /**
+         * Writes the kept volumes, sorted, to an uncompressed run file
+         */
+        void writeRun() {
+            String run = fileName + String.format(".run-%04d", runs.size());
+            ResultWriter runWriter = ResultWriterFactory.newWriter(run, format, false, flushIntervalMillis, false);
+
+            writeSorted(runWriter);
+            runWriter.close();
+            runs.add(run);
+        }
+
+        /**
+         * Writes the kept volumes, sorted, with the writer, and clears them
+         */
+        void writeSorted(ResultWriter sortedWriter) {
+            final ArrayList<String[]> keys = new ArrayList<String[]>(kept.size());
+            ArrayList<Integer> order = new ArrayList<Integer>(kept.size());
+
+            for (int i = 0; i < kept.size(); i++) {
+                VolumeRecord volume = kept.get(i);
+                keys.add(sortKey(volume.getTitle(), volume.getQuery(), volume.getIndustryId()));
+                order.add(i);
+            }
+
+            Collections.sort(order, new Comparator<Integer>() {     // stable, so equal volumes keep their order
+                public int compare(Integer a, Integer b) {
+                    return SORT_ORDER.compare(keys.get(a), keys.get(b));
+                }
+            });
+
+            sortedWriter.writeHeader();
+
+            for (int i : order)
+                sortedWriter.writeVolume(kept.get(i));
+
+            kept.clear();
+        }
+    }
+}
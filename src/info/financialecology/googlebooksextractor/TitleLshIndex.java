@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Finds near-duplicate titles with MinHash and locality-sensitive hashing (LSH). Each title is 
+ * reduced to its set of character 3-grams (shingles), and a MinHash signature of the set is
+ * computed. The fraction of equal signature values estimates the Jaccard similarity of two 
+ * titles. To avoid comparing a title against all others, the signature is split into bands, 
+ * and only titles that agree on all values of at least one band are compared.
+ * <p>
+ * With 16 bands of 4 values, titles with a similarity of 0.8 become candidates with a 
+ * probability above 99.9%, and titles with a similarity below 0.3 hardly ever. The titles are 
+ * expected to be normalized, see {@link DedupIndex#normalizeTitle(String)}. Not thread-safe.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class TitleLshIndex {
+
+    private static final int BANDS = 16;
+    private static final int ROWS = 4;
+    private static final int SIGNATURE_SIZE = BANDS * ROWS;
+    private static final int SHINGLE = 3;
+
+    private static final int[] SEEDS = new int[SIGNATURE_SIZE];
+
+    static {
+        long x = 0x2545f4914f6cdd1dL;
+
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {  // fixed seeds, so that signatures are stable across runs
+            x ^= x << 13; x ^= x >>> 7; x ^= x << 17;
+            SEEDS[i] = (int) x;
+        }
+    }
+
+    private final double threshold;
+    private final ArrayList<int[]> signatures = new ArrayList<int[]>();
+    private final HashMap<Long, ArrayList<Integer>> buckets = new HashMap<Long, ArrayList<Integer>>();
+
+    /**
+     * Constructor
+     *
+     * @param threshold the estimated Jaccard similarity above which two titles are near-duplicates
+     */
+    public TitleLshIndex(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns true if a near-duplicate of the title was added before
+     *
+     * @param title the normalized title
+     */
+    public boolean containsNear(String title) {
+        int[] signature = signature(title);
+
+        for (int b = 0; b < BANDS; b++) {
+            ArrayList<Integer> bucket = buckets.get(bandKey(signature, b));
+
+            if (bucket == null) continue;
+
+            for (int candidate : bucket)
+                if (similarity(signature, signatures.get(candidate)) >= threshold)
+                    return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds the title to the index
+     *
+     * @param title the normalized title
+     */
+    public void add(String title) {
+        int[] signature = signature(title);
+        int id = signatures.size();
+
+        signatures.add(signature);
+
+        for (int b = 0; b < BANDS; b++) {
+            Long key = bandKey(signature, b);
+            ArrayList<Integer> bucket = buckets.get(key);
+
+            if (bucket == null) {
+                bucket = new ArrayList<Integer>(2);
+                buckets.put(key, bucket);
+            }
+
+            bucket.add(id);
+        }
+    }
+
+    public int size() {
+        return signatures.size();
+    }
+
+    /**
+     * The MinHash signature of the 3-grams of the title
+     */
+    private static int[] signature(String title) {
+        int[] signature = new int[SIGNATURE_SIZE];
+
+        for (int i = 0; i < SIGNATURE_SIZE; i++)
+            signature[i] = Integer.MAX_VALUE;
+
+        int shingles = Math.max(1, title.length() - SHINGLE + 1);
+
+        for (int s = 0; s < shingles; s++) {
+            int h = 0;
+
+            for (int i = s; i < Math.min(s + SHINGLE, title.length()); i++)
+                h = 31 * h + title.charAt(i);
+
+            for (int i = 0; i < SIGNATURE_SIZE; i++) {
+                int v = mix(h ^ SEEDS[i]);
+
+                if (v < signature[i]) signature[i] = v;
+            }
+        }
+
+        return signature;
+    }
+
+    private static double similarity(int[] a, int[] b) {
+        int equal = 0;
+
+        for (int i = 0; i < SIGNATURE_SIZE; i++)
+            if (a[i] == b[i]) equal++;
+
+        return (double) equal / SIGNATURE_SIZE;
+    }
+
+    private static Long bandKey(int[] signature, int band) {
+        long key = band;
+
+        for (int i = band * ROWS; i < (band + 1) * ROWS; i++)
+            key = key * 0x9e3779b97f4a7c15L + signature[i];
+
+        return key;
+    }
+
+    /**
+     * The MurmurHash3 finalizer, a cheap hash of an int with good avalanche
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+
+        return h;
+    }
+}
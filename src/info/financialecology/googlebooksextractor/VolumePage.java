@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.util.ArrayList;
+
+/**
+ * A page of volumes returned by Google Books for a query, decoded by {@link VolumePageParser}
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class VolumePage {
+
+    private final int totalItems;
+    private final ArrayList<VolumeRow> rows;
+
+    /**
+     * Constructor
+     *
+     * @param totalItems the total number of matches of the query
+     * @param rows the volumes of the page, {@code null} if the response has no items
+     */
+    public VolumePage(int totalItems, ArrayList<VolumeRow> rows) {
+        this.totalItems = totalItems;
+        this.rows = rows;
+    }
+
+    /**
+     * The total number of matches of the query, over all pages
+     */
+    public int getTotalItems() {
+        return totalItems;
+    }
+
+    /**
+     * The volumes of the page, or {@code null} if the response has no items
+     */
+    public ArrayList<VolumeRow> getRows() {
+        return rows;
+    }
+
+    /**
+     * True if Google Books has returned no (further) volumes for the query
+     */
+    public boolean isEmpty() {
+        return totalItems == 0 || rows == null;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Decodes the JSON response of a volume query with a streaming token parser, straight into 
+ * compact {@link VolumeRow}s. Only the fields used by the extractor are read; all other subtrees 
+ * (sale info, access info, image links, ...) are skipped without being materialized. This avoids 
+ * building the full {@code Volumes}/{@code Volume}/{@code VolumeInfo} object graph for every page, 
+ * and the garbage that comes with it.
+ * <p>
+ * The parser is stateless and thread-safe.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class VolumePageParser {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();   // thread-safe once configured
+
+    private VolumePageParser() {}
+
+    /**
+     * Decodes a page of volumes
+     *
+     * @param json the response of Google Books
+     * @return the page
+     * @throws IOException if the response is not valid JSON
+     */
+    public static VolumePage parse(String json) throws IOException {
+        JsonParser p = jsonFactory.createJsonParser(json);
+
+        try {
+            int totalItems = 0;
+            ArrayList<VolumeRow> rows = null;
+
+            expect(p, p.nextToken(), JsonToken.START_OBJECT);
+
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                JsonToken t = p.nextToken();
+
+                if (name.equals("totalItems") && t == JsonToken.VALUE_NUMBER_INT)
+                    totalItems = p.getIntValue();
+                else if (name.equals("items") && t == JsonToken.START_ARRAY) {
+                    rows = new ArrayList<VolumeRow>();
+
+                    while (p.nextToken() == JsonToken.START_OBJECT)
+                        rows.add(parseVolume(p));
+                }
+                else
+                    p.skipChildren();
+            }
+
+            return new VolumePage(totalItems, rows);
+        } finally {
+            p.close();
+        }
+    }
+
+    /**
+     * Decodes a volume, the parser is positioned at the start of the volume object
+     */
+    private static VolumeRow parseVolume(JsonParser p) throws IOException {
+        VolumeRow row = null;
+
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            JsonToken t = p.nextToken();
+
+            if (name.equals("volumeInfo") && t == JsonToken.START_OBJECT)
+                row = parseVolumeInfo(p);
+            else
+                p.skipChildren();
+        }
+
+        if (row == null)    // no volume information
+            row = new VolumeRow(null, null, null, null, null, null, null, false, null);
+
+        return row;
+    }
+
+    /**
+     * Decodes the volume information, the parser is positioned at the start of the object
+     */
+    private static VolumeRow parseVolumeInfo(JsonParser p) throws IOException {
+        String title = null, subtitle = null, description = null;
+        ArrayList<String> authors = null, categories = null;
+        String publishedDate = null, previewLink = null, industryId = null;
+        boolean hasIndustryIds = false;
+
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            JsonToken t = p.nextToken();
+
+            if (t == JsonToken.VALUE_STRING) {
+                if (name.equals("title")) title = p.getText();
+                else if (name.equals("subtitle")) subtitle = p.getText();
+                else if (name.equals("description")) description = p.getText();
+                else if (name.equals("publishedDate")) publishedDate = p.getText();
+                else if (name.equals("previewLink")) previewLink = p.getText();
+            }
+            else if (t == JsonToken.START_ARRAY) {
+                if (name.equals("authors")) authors = parseStringList(p);
+                else if (name.equals("categories")) categories = parseStringList(p);
+                else if (name.equals("industryIdentifiers")) {
+                    while (p.nextToken() == JsonToken.START_OBJECT) {
+                        String identifier = parseIdentifier(p);
+
+                        if (!hasIndustryIds) industryId = identifier;   // the first identifier is used for duplicate removal
+
+                        hasIndustryIds = true;
+                    }
+                }
+                else
+                    p.skipChildren();
+            }
+            else
+                p.skipChildren();
+        }
+
+        return new VolumeRow(title, subtitle, authors, categories, description, publishedDate, previewLink, 
+                hasIndustryIds, industryId);
+    }
+
+    /**
+     * Decodes an industry identifier object and returns its identifier
+     */
+    private static String parseIdentifier(JsonParser p) throws IOException {
+        String identifier = null;
+
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            JsonToken t = p.nextToken();
+
+            if (name.equals("identifier") && t == JsonToken.VALUE_STRING)
+                identifier = p.getText();
+            else
+                p.skipChildren();
+        }
+
+        return identifier;
+    }
+
+    /**
+     * Decodes an array of strings. Nested values are skipped and null values become 'null', so 
+     * that the list form of the output is the same as that of the decoded object graph.
+     */
+    private static ArrayList<String> parseStringList(JsonParser p) throws IOException {
+        ArrayList<String> list = new ArrayList<String>(4);
+
+        for (JsonToken t = p.nextToken(); t != JsonToken.END_ARRAY; t = p.nextToken()) {
+            if (t == JsonToken.START_ARRAY || t == JsonToken.START_OBJECT)    // not expected in a list of strings
+                p.skipChildren();
+            else
+                list.add((t == JsonToken.VALUE_NULL) ? "null" : p.getText());
+        }
+
+        return list;
+    }
+
+    private static void expect(JsonParser p, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected)
+            throw new IOException("Invalid volume query response: expected " + expected + " but found " + actual 
+                    + " at " + p.getCurrentLocation());
+    }
+}
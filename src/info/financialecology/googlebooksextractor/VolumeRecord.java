@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A stored volume, i.e. a row of the output. The title includes the subtitle, if any. The 
+ * authors and categories are lists, which are written in list form to rows of strings, e.g. 
+ * {@code [Author A, Author B]}. Any value but the title and the query may be {@code null}.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class VolumeRecord {
+
+    /**
+     * The header labels of the output, in the order of {@link #toRow()}
+     */
+    public static final List<String> HEADER = Collections.unmodifiableList(Arrays.asList(
+            "title", "query", "authors", "categories", "description", "published", "previewLink", "industryId"));
+
+    private final String title;
+    private final String query;
+    private final List<String> authors;
+    private final List<String> categories;
+    private final String description;
+    private final String published;
+    private final String previewLink;
+    private final String industryId;    // the identifier used for duplicate removal
+
+    public VolumeRecord(String title, String query, List<String> authors, List<String> categories, String description, 
+            String published, String previewLink, String industryId) {
+        this.title = title;
+        this.query = query;
+        this.authors = authors;
+        this.categories = categories;
+        this.description = description;
+        this.published = published;
+        this.previewLink = previewLink;
+        this.industryId = industryId;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public List<String> getAuthors() {
+        return authors;
+    }
+
+    public List<String> getCategories() {
+        return categories;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getPublished() {
+        return published;
+    }
+
+    public String getPreviewLink() {
+        return previewLink;
+    }
+
+    public String getIndustryId() {
+        return industryId;
+    }
+
+    /**
+     * The values of the record in the order of the {@link #HEADER} labels
+     */
+    public ArrayList<String> toRow() {
+        ArrayList<String> row = new ArrayList<String>(HEADER.size());
+        row.add(title);
+        row.add(query);
+        row.add((authors == null) ? null : authors.toString());
+        row.add((categories == null) ? null : categories.toString());
+        row.add(description);
+        row.add(published);
+        row.add(previewLink);
+        row.add(industryId);
+
+        return row;
+    }
+}
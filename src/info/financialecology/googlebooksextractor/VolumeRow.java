@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.util.List;
+
+/**
+ * The information of a single volume that is used for duplicate removal, filtering and output,
+ * decoded straight from the response of Google Books by {@link VolumePageParser}. List values
+ * (authors, categories) are kept as lists, which are written to the CSV output in list form, e.g.
+ * {@code [Author A, Author B]}, and to the JSON Lines output as arrays.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class VolumeRow {
+
+    final String title;
+    final String subtitle;
+    final List<String> authors;     // null if not provided
+    final List<String> categories;  // null if not provided
+    final String description;
+    final String publishedDate;
+    final String previewLink;
+    final boolean hasIndustryIds;   // true if the volume has at least one industry identifier
+    final String industryId;        // the first industry identifier, e.g. the ISBN
+
+    VolumeRow(String title, String subtitle, List<String> authors, List<String> categories, String description, 
+            String publishedDate, String previewLink, boolean hasIndustryIds, String industryId) {
+        this.title = title;
+        this.subtitle = subtitle;
+        this.authors = authors;
+        this.categories = categories;
+        this.description = description;
+        this.publishedDate = publishedDate;
+        this.previewLink = previewLink;
+        this.hasIndustryIds = hasIndustryIds;
+        this.industryId = industryId;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getSubtitle() {
+        return subtitle;
+    }
+
+    public List<String> getAuthors() {
+        return authors;
+    }
+
+    public List<String> getCategories() {
+        return categories;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getPublishedDate() {
+        return publishedDate;
+    }
+
+    public String getPreviewLink() {
+        return previewLink;
+    }
+
+    public boolean hasIndustryIds() {
+        return hasIndustryIds;
+    }
+
+    public String getIndustryId() {
+        return industryId;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A compact, column-oriented store for the volumes of a run, which replaces the table of string 
+ * lists that was used before. 
+ * <ul>
+ * <li> Values that repeat across volumes (query, authors, categories, published date) are 
+ *      dictionary-encoded: each distinct value is kept once and the columns hold its code. The 
+ *      lists of authors and categories are encoded as a single string.
+ * <li> The other values (title, description, preview link, industry identifier) are kept as 
+ *      UTF-8 byte arrays, which take about half the memory of a {@code String} for mostly ASCII 
+ *      text and have no per-object overhead besides the array
+ * </ul>
+ * The volumes are read back as {@link VolumeRecord}s with {@link #iterator()} or {@link #get(int)}. 
+ * The store is not thread-safe, see {@code ExtractionState} for synchronized access.
+ *
+ * @author Gilbert Peffer
+ *
+ */
+public class VolumeStore implements Iterable<VolumeRecord> {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int NULL = -1;     // dictionary code of a missing value
+    private static final char LIST_SEPARATOR = '\u001f';   // the unit separator, which doesn't occur in authors or categories
+
+    private final Dictionary dictionary = new Dictionary();
+
+    // Dictionary-encoded columns
+    private int[] query = new int[INITIAL_CAPACITY];
+    private int[] authors = new int[INITIAL_CAPACITY];
+    private int[] categories = new int[INITIAL_CAPACITY];
+    private int[] published = new int[INITIAL_CAPACITY];
+
+    // UTF-8 columns
+    private byte[][] title = new byte[INITIAL_CAPACITY][];
+    private byte[][] description = new byte[INITIAL_CAPACITY][];
+    private byte[][] previewLink = new byte[INITIAL_CAPACITY][];
+    private byte[][] industryId = new byte[INITIAL_CAPACITY][];
+
+    private int size = 0;
+
+    /**
+     * Appends a volume to the store
+     *
+     * @param record
+     */
+    public void add(VolumeRecord record) {
+        if (size == title.length) grow();
+
+        query[size] = dictionary.encode(record.getQuery());
+        authors[size] = dictionary.encode(join(record.getAuthors()));
+        categories[size] = dictionary.encode(join(record.getCategories()));
+        published[size] = dictionary.encode(record.getPublished());
+        title[size] = utf8(record.getTitle());
+        description[size] = utf8(record.getDescription());
+        previewLink[size] = utf8(record.getPreviewLink());
+        industryId[size] = utf8(record.getIndustryId());
+        size++;
+    }
+
+    /**
+     * Returns the volume at the given position, in the order in which the volumes were added
+     *
+     * @param index
+     * @return the volume
+     */
+    public VolumeRecord get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+
+        return new VolumeRecord(string(title[index]), dictionary.decode(query[index]), split(dictionary.decode(authors[index])), 
+                split(dictionary.decode(categories[index])), string(description[index]), dictionary.decode(published[index]), 
+                string(previewLink[index]), string(industryId[index]));
+    }
+
+    /**
+     * The number of volumes in the store
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Iterates over the volumes in the order in which they were added
+     */
+    public Iterator<VolumeRecord> iterator() {
+        return new Iterator<VolumeRecord>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            public VolumeRecord next() {
+                if (next >= size) throw new NoSuchElementException();
+
+                return get(next++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void grow() {
+        int capacity = title.length * 2;
+
+        query = Arrays.copyOf(query, capacity);
+        authors = Arrays.copyOf(authors, capacity);
+        categories = Arrays.copyOf(categories, capacity);
+        published = Arrays.copyOf(published, capacity);
+        title = Arrays.copyOf(title, capacity);
+        description = Arrays.copyOf(description, capacity);
+        previewLink = Arrays.copyOf(previewLink, capacity);
+        industryId = Arrays.copyOf(industryId, capacity);
+    }
+
+    /**
+     * Encodes a list as a single string, each element preceded by the separator, so that an
+     * empty list and a list with an empty element have different encodings
+     */
+    private static String join(List<String> list) {
+        if (list == null) return null;
+
+        StringBuilder sb = new StringBuilder();
+
+        for (String element : list)
+            sb.append(LIST_SEPARATOR).append(element);
+
+        return sb.toString();
+    }
+
+    private static List<String> split(String s) {
+        if (s == null) return null;
+        if (s.isEmpty()) return new ArrayList<String>(0);
+
+        return new ArrayList<String>(Arrays.asList(s.substring(1).split(String.valueOf(LIST_SEPARATOR), -1)));
+    }
+
+    private static byte[] utf8(String s) {
+        return (s == null) ? null : s.getBytes(UTF8);
+    }
+
+    private static String string(byte[] b) {
+        return (b == null) ? null : new String(b, UTF8);
+    }
+
+    /**
+     * Maps each distinct value to a code, so that a repeated value is only held once
+     */
+    private static class Dictionary {
+        private final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+        private final ArrayList<String> values = new ArrayList<String>();
+
+        int encode(String value) {
+            if (value == null) return NULL;
+
+            Integer code = codes.get(value);
+
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+
+            return code;
+        }
+
+        String decode(int code) {
+            return (code == NULL) ? null : values.get(code);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2014 Gilbert Peffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package info.financialecology.googlebooksextractor;
+
+import java.util.Iterator;
+
+/**
+ * An interface for writers of volumes. The volumes are either written in one go with 
+ * {@code writeVolumes}, or streamed volume by volume with {@code writeVolume}, preceded by 
+ * {@code writeHeader}. {@code close} needs to be called once all volumes are written, and 
+ * {@code flush} forces the volumes written so far to the file, e.g. before a checkpoint. The 
+ * write errors are logged; {@code flush} returns false once any volume couldn't be written, so 
+ * that a checkpoint isn't recorded for volumes that are not in the file.
+ * <p>
+ * The writers of a single file also write tables of strings, see {@link ResultWriter}.
+ * 
+ * @author Gilbert Peffer
+ *
+ */
+public interface VolumeWriter {
+    public void writeVolumes(Iterator<VolumeRecord> volumes);
+    public void writeHeader();
+    public void writeVolume(VolumeRecord volume);
+    public boolean flush();
+    public void close();
+}